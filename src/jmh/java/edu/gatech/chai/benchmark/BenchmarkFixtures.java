@@ -0,0 +1,82 @@
+package edu.gatech.chai.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.gatech.chai.config.ValidationServiceSettings;
+
+/**
+ * Inputs shared by the benchmarks: the repository's example resources and the
+ * service settings every benchmark runs with.
+ */
+public class BenchmarkFixtures {
+
+	public static final String IG = "hl7.fhir.us.mdi#current";
+	public static final String OBSERVATION_JSON = "/examples/Obsevation_DeathDate_Incomplete.json";
+	public static final String PARAMETERS_XML = "src/test/java/Observation_DeathDate_NoError_Plus_Request.xml";
+
+	public static final FhirContext R4 = FhirContext.forR4();
+
+	/**
+	 * Settings pointed at the stand-in terminology server. The result cache is
+	 * off so every invocation really validates instead of returning a cached
+	 * outcome, and terminology-offline keeps the engines away from tx.fhir.org.
+	 */
+	public static ValidationServiceSettings settings(StandInTerminologyServer txServer) {
+		return new ValidationServiceSettings()
+			.setBaseSupportedIgs(IG)
+			.setResultCacheMaxEntries(0)
+			.setTerminologyOffline(true)
+			.setTerminologyServer(txServer.getUrl());
+	}
+
+	public static String observationJson() throws IOException {
+		try (InputStream in = BenchmarkFixtures.class.getResourceAsStream(OBSERVATION_JSON)) {
+			if (in == null) {
+				throw new IOException("Missing fixture " + OBSERVATION_JSON);
+			}
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	public static Observation observation() throws IOException {
+		return R4.newJsonParser().parseResource(Observation.class, observationJson());
+	}
+
+	//$translate request from the test fixture, read relative to the project directory the benchmarks are run from
+	public static String parametersXml() throws IOException {
+		return new String(Files.readAllBytes(Paths.get(PARAMETERS_XML)), StandardCharsets.UTF_8);
+	}
+
+	//The same Observation wrapped as a $translate request in json
+	public static String parametersJson() throws IOException {
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName("ig").setValue(new StringType(IG));
+		parameters.addParameter().setName("resource").setResource(observation());
+		return R4.newJsonParser().setPrettyPrint(true).encodeResourceToString(parameters);
+	}
+
+	//A collection Bundle of copies of the example Observation, each with its own id
+	public static Bundle bundle(int entries) throws IOException {
+		Bundle bundle = new Bundle().setType(BundleType.COLLECTION);
+		for (int i = 0; i < entries; i++) {
+			Observation observation = observation();
+			observation.setId("observation-death-date-" + i);
+			bundle.addEntry()
+				.setFullUrl("urn:uuid:" + new UUID(0, i))
+				.setResource(observation);
+		}
+		return bundle;
+	}
+}
@@ -0,0 +1,79 @@
+package edu.gatech.chai.benchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gatech.chai.provider.ValidateProvider;
+import edu.gatech.chai.service.ValidationScheduler;
+
+/**
+ * Large Bundle validation with a warm engine: the whole Bundle as one resource
+ * through $validate, and the same Bundle split into one outcome per entry
+ * through $validate-batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 2, time = 20)
+@Measurement(iterations = 5, time = 20)
+@Fork(1)
+public class BundleValidateBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int entries;
+
+	private StandInTerminologyServer txServer;
+	private ValidateProvider provider;
+	private Bundle bundle;
+	private List<IBaseResource> batch;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		txServer = new StandInTerminologyServer();
+		provider = new ValidateProvider(BenchmarkFixtures.R4, BenchmarkFixtures.settings(txServer));
+		bundle = BenchmarkFixtures.bundle(entries);
+		batch = Collections.singletonList(bundle);
+		//Build the engine before measuring
+		provider.validateResource(new StringType(BenchmarkFixtures.IG), new StringType("application/fhir+json"),
+				new StringType("us"), new BooleanType(false), BenchmarkFixtures.observation());
+	}
+
+	@Benchmark
+	public OperationOutcome validateBundle() throws Exception {
+		return provider.validateResource(new StringType(BenchmarkFixtures.IG), new StringType("application/fhir+json"),
+				new StringType("us"), new BooleanType(false), bundle);
+	}
+
+	@Benchmark
+	public Parameters validateBatch() throws Exception {
+		return provider.validateBatch(new StringType(BenchmarkFixtures.IG), new StringType("application/fhir+json"),
+				new StringType("us"), batch, ValidationScheduler.Lane.BULK);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		provider.shutdown();
+		txServer.close();
+	}
+}
@@ -0,0 +1,279 @@
+package edu.gatech.chai.benchmark;
+
+import java.io.BufferedReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Sends the requests of a traffic capture (see CaptureFilter) to a running
+ * instance and reports latency percentiles, throughput and error rates per
+ * operation, next to the latencies recorded in the capture.
+ *
+ * Requests are sent in capture order by a fixed number of workers. With a
+ * rate, request i is due i / rate seconds after the start however long
+ * earlier ones took, and its latency counts from when it was due, so a
+ * saturated server shows up as latency rather than as a lower send rate.
+ * Without a rate every worker sends its next request as soon as the
+ * previous one is answered.
+ * Records without a body (too large, cut short or not redactable when
+ * captured) are skipped.
+ *
+ * mvn -Pbenchmark test-compile exec:exec@replay -Dreplay.args="--file capture.ndjson --base http://localhost:8080/fhir --concurrency 8 --rate 20"
+ */
+public class CaptureReplay {
+
+	private static final double[] PERCENTILES = {50, 90, 95, 99};
+
+	private static class Request {
+		String operation;
+		String method;
+		String path;
+		String query;
+		Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		String body;
+		double capturedMs;
+	}
+
+	private static class Result {
+		final String operation;
+		final int status;
+		final long latencyNanos;
+
+		Result(String operation, int status, long latencyNanos) {
+			this.operation = operation;
+			this.status = status;
+			this.latencyNanos = latencyNanos;
+		}
+
+		boolean isError() {
+			return status < 200 || status >= 400;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String file = null;
+		String base = "http://localhost:8080/fhir";
+		int concurrency = 4;
+		double rate = 0;
+		int loops = 1;
+		int timeoutSeconds = 600;
+		for(int i = 0; i < args.length; i++) {
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			switch(args[i]) {
+			case "--file":
+				file = value;
+				break;
+			case "--base":
+				base = value;
+				break;
+			case "--concurrency":
+				concurrency = Integer.parseInt(value);
+				break;
+			case "--rate":
+				rate = Double.parseDouble(value);
+				break;
+			case "--loops":
+				loops = Integer.parseInt(value);
+				break;
+			case "--timeout-seconds":
+				timeoutSeconds = Integer.parseInt(value);
+				break;
+			default:
+				usage("Unknown option " + args[i]);
+				return;
+			}
+			i++;
+		}
+		if(file == null || base == null) {
+			usage("--file is required");
+			return;
+		}
+		while(base.endsWith("/")) {
+			base = base.substring(0, base.length() - 1);
+		}
+		List<Request> requests = new ArrayList<>();
+		int skipped = read(file, requests);
+		if(requests.isEmpty()) {
+			System.out.println("No replayable requests in " + file + " (" + skipped + " skipped)");
+			return;
+		}
+		System.out.println("Replaying " + requests.size() + " requests x " + loops + " against " + base + " with concurrency " + concurrency
+				+ (rate > 0 ? " at " + rate + " requests/s" : " unthrottled") + (skipped > 0 ? " (" + skipped + " captured requests skipped)" : ""));
+		List<Result> results = replay(requests, base, Math.max(1, concurrency), rate, Math.max(1, loops), timeoutSeconds);
+		report(requests, results);
+	}
+
+	private static void usage(String problem) {
+		System.err.println(problem);
+		System.err.println("Options: --file <capture.ndjson> [--base http://localhost:8080/fhir] [--concurrency 4] [--rate <requests/s>] [--loops 1] [--timeout-seconds 600]");
+	}
+
+	//The replayable requests of the capture, in order; returns how many were skipped
+	private static int read(String file, List<Request> requests) throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		int skipped = 0;
+		try(BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.trim().isEmpty()) {
+					continue;
+				}
+				JsonNode record = mapper.readTree(line);
+				if(!record.hasNonNull("body") || !record.hasNonNull("path")) {
+					skipped++;
+					continue;
+				}
+				Request request = new Request();
+				request.method = record.path("method").asText("POST");
+				request.path = record.get("path").asText();
+				request.operation = request.path.substring(request.path.lastIndexOf('/') + 1);
+				request.query = record.hasNonNull("query") ? record.get("query").asText() : null;
+				Iterator<Map.Entry<String, JsonNode>> headers = record.path("headers").fields();
+				while(headers.hasNext()) {
+					Map.Entry<String, JsonNode> header = headers.next();
+					request.headers.put(header.getKey(), header.getValue().asText());
+				}
+				request.body = record.get("body").asText();
+				request.capturedMs = record.path("ms").asDouble(-1);
+				requests.add(request);
+			}
+		}
+		return skipped;
+	}
+
+	private static List<Result> replay(List<Request> requests, String base, int concurrency, double rate, int loops, int timeoutSeconds) throws Exception {
+		HttpClient client = HttpClient.newBuilder()
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(Duration.ofSeconds(30))
+				.build();
+		int total = requests.size() * loops;
+		AtomicInteger next = new AtomicInteger();
+		ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<>();
+		ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+		long start = System.nanoTime();
+		for(int w = 0; w < concurrency; w++) {
+			workers.execute(() -> {
+				int i;
+				while((i = next.getAndIncrement()) < total) {
+					Request request = requests.get(i % requests.size());
+					long due = rate > 0 ? start + (long) (i * 1_000_000_000L / rate) : System.nanoTime();
+					long wait;
+					while((wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					int status;
+					try {
+						status = client.send(toHttpRequest(request, base, timeoutSeconds), HttpResponse.BodyHandlers.discarding()).statusCode();
+					} catch (Exception e) {
+						//Connection failures and timeouts count as errors
+						status = 0;
+					}
+					results.add(new Result(request.operation, status, System.nanoTime() - due));
+				}
+			});
+		}
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("Sent %d requests in %.1f s, %.2f requests/s%n", results.size(), elapsed / 1e9, results.size() / (elapsed / 1e9));
+		return new ArrayList<>(results);
+	}
+
+	private static HttpRequest toHttpRequest(Request request, String base, int timeoutSeconds) {
+		String uri = base + request.path + (request.query == null ? "" : "?" + request.query);
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(uri))
+				.timeout(Duration.ofSeconds(timeoutSeconds));
+		request.headers.forEach(builder::header);
+		if("GET".equalsIgnoreCase(request.method) || request.body.isEmpty()) {
+			builder.method(request.method, HttpRequest.BodyPublishers.noBody());
+		}
+		else {
+			builder.method(request.method, HttpRequest.BodyPublishers.ofString(request.body, StandardCharsets.UTF_8));
+		}
+		return builder.build();
+	}
+
+	private static void report(List<Request> requests, List<Result> results) {
+		Map<String, List<Result>> byOperation = new TreeMap<>();
+		for(Result result: results) {
+			byOperation.computeIfAbsent(result.operation, operation -> new ArrayList<>()).add(result);
+			byOperation.computeIfAbsent("all", operation -> new ArrayList<>()).add(result);
+		}
+		Map<String, List<Double>> captured = new TreeMap<>();
+		for(Request request: requests) {
+			if(request.capturedMs >= 0) {
+				captured.computeIfAbsent(request.operation, operation -> new ArrayList<>()).add(request.capturedMs);
+				captured.computeIfAbsent("all", operation -> new ArrayList<>()).add(request.capturedMs);
+			}
+		}
+		System.out.printf("%-18s %8s %8s %8s %10s %10s %10s %10s %10s %12s %12s%n",
+				"operation", "count", "errors", "error%", "p50 ms", "p90 ms", "p95 ms", "p99 ms", "max ms", "capt p50 ms", "capt p95 ms");
+		for(Map.Entry<String, List<Result>> entry: byOperation.entrySet()) {
+			List<Result> operationResults = entry.getValue();
+			double[] latencies = new double[operationResults.size()];
+			int errors = 0;
+			Map<Integer, Integer> statuses = new TreeMap<>();
+			for(int i = 0; i < latencies.length; i++) {
+				Result result = operationResults.get(i);
+				latencies[i] = result.latencyNanos / 1e6;
+				if(result.isError()) {
+					errors++;
+					statuses.merge(result.status, 1, Integer::sum);
+				}
+			}
+			Arrays.sort(latencies);
+			double[] capturedLatencies = toSortedArray(captured.get(entry.getKey()));
+			System.out.printf("%-18s %8d %8d %8.2f %10.1f %10.1f %10.1f %10.1f %10.1f %12.1f %12.1f%n",
+					entry.getKey(), latencies.length, errors, 100.0 * errors / latencies.length,
+					percentile(latencies, PERCENTILES[0]), percentile(latencies, PERCENTILES[1]),
+					percentile(latencies, PERCENTILES[2]), percentile(latencies, PERCENTILES[3]), latencies[latencies.length - 1],
+					percentile(capturedLatencies, 50), percentile(capturedLatencies, 95));
+			if(!statuses.isEmpty() && !"all".equals(entry.getKey())) {
+				//Status 0 is a request that got no response at all
+				System.out.println("  error statuses " + statuses);
+			}
+		}
+	}
+
+	private static double[] toSortedArray(List<Double> values) {
+		if(values == null) {
+			return new double[0];
+		}
+		double[] array = new double[values.size()];
+		for(int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		Arrays.sort(array);
+		return array;
+	}
+
+	//Nearest-rank percentile of sorted values; NaN when there are none
+	private static double percentile(double[] sorted, double percentile) {
+		if(sorted.length == 0) {
+			return Double.NaN;
+		}
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+	}
+}
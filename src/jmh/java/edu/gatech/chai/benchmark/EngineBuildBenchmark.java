@@ -0,0 +1,74 @@
+package edu.gatech.chai.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.utilities.TimeTracker;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.validation.cli.model.CliContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gatech.chai.service.MyValidationService;
+import edu.gatech.chai.service.ValidationEnginePool;
+
+/**
+ * Cold engine build: every iteration starts from a new MyValidationService, so
+ * the measured call loads the core definitions, the IG and its dependencies
+ * and prepares the engine. Packages come from the local package cache, which
+ * the first warmup iteration fills if it is empty.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EngineBuildBenchmark {
+
+	@Param({"true", "false"})
+	public boolean shareBaseEngines;
+
+	private StandInTerminologyServer txServer;
+	private MyValidationService validationService;
+
+	@Setup(Level.Trial)
+	public void startTerminologyServer() throws Exception {
+		txServer = new StandInTerminologyServer();
+	}
+
+	@Setup(Level.Iteration)
+	public void newService() {
+		validationService = new MyValidationService(BenchmarkFixtures.settings(txServer).setShareBaseEngines(shareBaseEngines));
+	}
+
+	@Benchmark
+	public ValidationEnginePool.Lease coldBuild() throws Exception {
+		CliContext cliContext = validationService.createCliContext(BenchmarkFixtures.IG, null);
+		cliContext.setSv(validationService.determineVersion(cliContext));
+		String definitions = VersionUtilities.packageForVersion(cliContext.getSv()) + "#" + VersionUtilities.getCurrentVersion(cliContext.getSv());
+		try (ValidationEnginePool.Lease lease = validationService.acquireValidator(cliContext, definitions, new TimeTracker())) {
+			return lease;
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void shutdownService() {
+		validationService.shutdown();
+	}
+
+	@TearDown(Level.Trial)
+	public void stopTerminologyServer() {
+		txServer.close();
+	}
+}
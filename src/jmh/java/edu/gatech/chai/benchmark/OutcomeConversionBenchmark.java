@@ -0,0 +1,63 @@
+package edu.gatech.chai.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gatech.chai.service.OperationOutcomeConverter;
+
+/**
+ * Conversion of the validator's R5 OperationOutcome to the R4 outcome the
+ * service returns, for outcomes shaped like the validator's: mixed
+ * severities, a FHIRPath expression and line and col extensions per issue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OutcomeConversionBenchmark {
+
+	private static final IssueSeverity[] SEVERITIES = {IssueSeverity.ERROR, IssueSeverity.WARNING, IssueSeverity.INFORMATION};
+
+	@Param({"10", "100", "1000"})
+	public int issues;
+
+	private OperationOutcome outcome;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		outcome = new OperationOutcome();
+		for (int i = 0; i < issues; i++) {
+			OperationOutcome.OperationOutcomeIssueComponent issue = outcome.addIssue()
+				.setSeverity(SEVERITIES[i % SEVERITIES.length])
+				.setCode(IssueType.INVALID);
+			issue.getDetails().setText("Observation.component[" + i + "].code: None of the codings provided are in the value set");
+			issue.addExpression("Observation.component[" + i + "].code");
+			issue.addExtension(ToolingExtensions.EXT_ISSUE_LINE, new IntegerType(12 + i));
+			issue.addExtension(ToolingExtensions.EXT_ISSUE_COL, new IntegerType(8));
+		}
+	}
+
+	@Benchmark
+	public org.hl7.fhir.r4.model.OperationOutcome toR4() {
+		return OperationOutcomeConverter.toR4(outcome);
+	}
+}
@@ -0,0 +1,138 @@
+package edu.gatech.chai.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Enumerations.FHIRVersion;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.TerminologyCapabilities;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * A minimal in-process terminology server so benchmarks never reach tx.fhir.org.
+ *
+ * It answers the two metadata calls the validator makes when it connects, says
+ * every code is valid for $validate-code (alone or in a batch), and returns a
+ * not-supported OperationOutcome for anything else, such as $expand. Timings
+ * therefore exclude terminology latency, which is what makes runs comparable.
+ */
+public class StandInTerminologyServer implements AutoCloseable {
+
+	private final HttpServer server;
+	private final IParser parser = FhirContext.forR4().newJsonParser();
+	private final AtomicLong requests = new AtomicLong();
+
+	public StandInTerminologyServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this::handle);
+		server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "stand-in-tx");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.start();
+	}
+
+	//The validator appends /r4 to the configured server, so the stand-in serves under it
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/r4";
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		String path = exchange.getRequestURI().getPath();
+		String query = exchange.getRequestURI().getQuery();
+		byte[] body;
+		try (InputStream in = exchange.getRequestBody()) {
+			body = in.readAllBytes();
+		}
+		Resource response;
+		int status = 200;
+		if (path.endsWith("/metadata")) {
+			response = query != null && query.contains("mode=terminology") ? terminologyCapabilities() : capabilityStatement();
+		} else if (path.endsWith("/$validate-code")) {
+			response = validCode();
+		} else if ("POST".equals(exchange.getRequestMethod()) && (path.endsWith("/r4") || path.endsWith("/r4/"))) {
+			response = batchResponse(new String(body, StandardCharsets.UTF_8));
+		} else {
+			status = 422;
+			response = notSupported(exchange.getRequestMethod() + " " + path);
+		}
+		byte[] out = parser.encodeResourceToString(response).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/fhir+json");
+		exchange.sendResponseHeaders(status, out.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(out);
+		}
+	}
+
+	private CapabilityStatement capabilityStatement() {
+		CapabilityStatement cs = new CapabilityStatement();
+		cs.setStatus(PublicationStatus.ACTIVE);
+		cs.setFhirVersion(FHIRVersion._4_0_1);
+		cs.getSoftware().setName("stand-in terminology server").setVersion("1.0.0");
+		return cs;
+	}
+
+	private TerminologyCapabilities terminologyCapabilities() {
+		TerminologyCapabilities tc = new TerminologyCapabilities();
+		tc.setStatus(PublicationStatus.ACTIVE);
+		tc.addCodeSystem().setUri("http://loinc.org");
+		tc.addCodeSystem().setUri("http://snomed.info/sct");
+		return tc;
+	}
+
+	private Parameters validCode() {
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName("result").setValue(new BooleanType(true));
+		return parameters;
+	}
+
+	private Resource batchResponse(String requestBody) {
+		Bundle request = parser.parseResource(Bundle.class, requestBody);
+		Bundle response = new Bundle().setType(BundleType.BATCHRESPONSE);
+		for (int i = 0; i < request.getEntry().size(); i++) {
+			BundleEntryComponent entry = response.addEntry().setResource(validCode());
+			entry.getResponse().setStatus("200 OK");
+		}
+		return response;
+	}
+
+	private OperationOutcome notSupported(String request) {
+		OperationOutcome oo = new OperationOutcome();
+		oo.addIssue()
+			.setSeverity(IssueSeverity.ERROR)
+			.setCode(IssueType.NOTSUPPORTED)
+			.setDiagnostics("The stand-in terminology server does not support " + request);
+		return oo;
+	}
+}
@@ -0,0 +1,78 @@
+package edu.gatech.chai.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.StringType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import edu.gatech.chai.provider.ValidateProvider;
+
+/**
+ * $translate in both directions, driven through the operation with mock
+ * servlet requests: json Parameters to xml, and the xml test fixture to json.
+ * A validation during setup loads the R4 definitions, so the streaming element
+ * model path is measured rather than the HAPI fallback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TranslateBenchmark {
+
+	private StandInTerminologyServer txServer;
+	private ValidateProvider provider;
+	private byte[] jsonRequest;
+	private byte[] xmlRequest;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		txServer = new StandInTerminologyServer();
+		provider = new ValidateProvider(BenchmarkFixtures.R4, BenchmarkFixtures.settings(txServer));
+		jsonRequest = BenchmarkFixtures.parametersJson().getBytes(StandardCharsets.UTF_8);
+		xmlRequest = BenchmarkFixtures.parametersXml().getBytes(StandardCharsets.UTF_8);
+		provider.validateResource(new StringType(BenchmarkFixtures.IG), new StringType("application/fhir+json"),
+				new StringType("us"), new BooleanType(false), BenchmarkFixtures.observation());
+	}
+
+	@Benchmark
+	public String jsonToXml() throws Exception {
+		return translate(jsonRequest, "application/fhir+json");
+	}
+
+	@Benchmark
+	public String xmlToJson() throws Exception {
+		return translate(xmlRequest, "application/fhir+xml");
+	}
+
+	private String translate(byte[] body, String contentType) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/fhir/$translate");
+		request.setContentType(contentType);
+		request.setContent(body);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		provider.translateResource(request, response);
+		return response.getContentAsString();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		provider.shutdown();
+		txServer.close();
+	}
+}
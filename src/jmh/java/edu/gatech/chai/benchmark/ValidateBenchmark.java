@@ -0,0 +1,87 @@
+package edu.gatech.chai.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.utilities.TimeTracker;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.validation.cli.model.CliContext;
+import org.hl7.fhir.validation.cli.model.FileInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gatech.chai.provider.ValidateProvider;
+import edu.gatech.chai.service.MyValidationService;
+import edu.gatech.chai.service.ValidatedSource;
+
+/**
+ * Warm single-resource validation of the example death date Observation, once
+ * through the $validate operation and once straight through the service. The
+ * engine is built during setup, so only parsing, profile lookup, validation
+ * and outcome conversion are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ValidateBenchmark {
+
+	private StandInTerminologyServer txServer;
+	private ValidateProvider provider;
+	private MyValidationService validationService;
+	private Observation observation;
+	private CliContext cliContext;
+	private String definitions;
+	private FileInfo source;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		txServer = new StandInTerminologyServer();
+		provider = new ValidateProvider(BenchmarkFixtures.R4, BenchmarkFixtures.settings(txServer));
+		validationService = new MyValidationService(BenchmarkFixtures.settings(txServer));
+		observation = BenchmarkFixtures.observation();
+		cliContext = validationService.createCliContext(BenchmarkFixtures.IG, null);
+		cliContext.setSv(validationService.determineVersion(cliContext));
+		definitions = VersionUtilities.packageForVersion(cliContext.getSv()) + "#" + VersionUtilities.getCurrentVersion(cliContext.getSv());
+		source = new FileInfo()
+			.setFileName("resource.json")
+			.setFileContent(BenchmarkFixtures.observationJson())
+			.setFileType("json");
+		//Build both engines before measuring
+		validateOperation();
+		validateInMemory();
+	}
+
+	@Benchmark
+	public OperationOutcome validateOperation() throws Exception {
+		return provider.validateResource(new StringType(BenchmarkFixtures.IG), new StringType("application/fhir+json"),
+				new StringType("us"), new BooleanType(false), observation);
+	}
+
+	@Benchmark
+	public ValidatedSource validateInMemory() throws Exception {
+		return validationService.validateInMemory(cliContext, definitions, source, new TimeTracker());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		provider.shutdown();
+		validationService.shutdown();
+		txServer.close();
+	}
+}
@@ -0,0 +1,457 @@
+package edu.gatech.chai.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.ServletConfig;
+
+/**
+ * Holds the validator service tuning options read from the fhirServlet
+ * init-params in web.xml. Every option has a default so the service still
+ * starts with the original web.xml. An option left empty in web.xml can also
+ * be set per instance with the system property validator.&lt;name&gt; or the
+ * environment variable VALIDATOR_&lt;NAME&gt;, e.g. VALIDATOR_CLUSTER_SELF.
+ */
+public class ValidationServiceSettings {
+
+	public static final String BASE_SUPPORTED_IGS = "base-supported-igs";
+	public static final String ENGINES_PER_KEY = "engines-per-key";
+	public static final String ENGINE_CACHE_MAX_ENTRIES = "engine-cache-max-entries";
+	public static final String ENGINE_CACHE_MAX_MB = "engine-cache-max-mb";
+	public static final String PREWARM_BASE_IGS = "prewarm-base-igs";
+	public static final String PREWARM_THREADS = "prewarm-threads";
+	public static final String VALIDATION_THREADS = "validation-threads";
+	public static final String RESULT_CACHE_MAX_ENTRIES = "result-cache-max-entries";
+	public static final String RESULT_CACHE_MAX_MB = "result-cache-max-mb";
+	public static final String SHARE_BASE_ENGINES = "share-base-engines";
+	public static final String TERMINOLOGY_SERVER = "terminology-server";
+	public static final String TERMINOLOGY_OFFLINE = "terminology-offline";
+	public static final String TERMINOLOGY_CACHE_DIR = "terminology-cache-dir";
+	public static final String TERMINOLOGY_CACHE_MAX_MB = "terminology-cache-max-mb";
+	public static final String TERMINOLOGY_CACHE_SEED = "terminology-cache-seed";
+	public static final String ENGINE_SNAPSHOT_DIR = "engine-snapshot-dir";
+	public static final String CANONICAL_CACHE_MAX_ENTRIES = "canonical-cache-max-entries";
+	public static final String CANONICAL_CACHE_TTL_MINUTES = "canonical-cache-ttl-minutes";
+	public static final String CANONICAL_CACHE_DIR = "canonical-cache-dir";
+	public static final String BUNDLE_ENTRY_MEMO_MAX_ENTRIES = "bundle-entry-memo-max-entries";
+	public static final String BUNDLE_PARTITION_MIN_ENTRIES = "bundle-partition-min-entries";
+	public static final String ASYNC_THREADS = "async-threads";
+	public static final String ASYNC_QUEUE_SIZE = "async-queue-size";
+	public static final String ASYNC_RESULT_TTL_MINUTES = "async-result-ttl-minutes";
+	public static final String INTERACTIVE_RESERVED_THREADS = "interactive-reserved-threads";
+	public static final String ENGINE_ADMISSION_LIMIT = "engine-admission-limit";
+	public static final String VIRTUAL_THREADS = "virtual-threads";
+	public static final String CLUSTER_NODES = "cluster-nodes";
+	public static final String CLUSTER_SELF = "cluster-self";
+	public static final String CLUSTER_VIRTUAL_NODES = "cluster-virtual-nodes";
+
+	private String baseSupportedIgs = "";
+	private int enginesPerKey = 1;
+	private int engineCacheMaxEntries = 10;
+	private int engineCacheMaxMb = 0;
+	private boolean prewarmBaseIgs = false;
+	private int prewarmThreads = 2;
+	private int validationThreads = Runtime.getRuntime().availableProcessors();
+	private int resultCacheMaxEntries = 1000;
+	private int resultCacheMaxMb = 64;
+	private boolean shareBaseEngines = true;
+	private String terminologyServer;
+	private boolean terminologyOffline = false;
+	private String terminologyCacheDir;
+	private int terminologyCacheMaxMb = 512;
+	private String terminologyCacheSeed;
+	private String engineSnapshotDir;
+	private int canonicalCacheMaxEntries = 500;
+	private int canonicalCacheTtlMinutes = 60;
+	private String canonicalCacheDir;
+	private int bundleEntryMemoMaxEntries = 10000;
+	private int bundlePartitionMinEntries = 50;
+	private int asyncThreads = 2;
+	private int asyncQueueSize = 10;
+	private int asyncResultTtlMinutes = 60;
+	private int interactiveReservedThreads = -1;
+	private int engineAdmissionLimit = 0;
+	private boolean virtualThreads = true;
+	private String clusterNodes = "";
+	private String clusterSelf;
+	private int clusterVirtualNodes = 128;
+
+	public static ValidationServiceSettings fromServletConfig(ServletConfig servletConfig) {
+		ValidationServiceSettings settings = new ValidationServiceSettings();
+		settings.setBaseSupportedIgs(readString(servletConfig, BASE_SUPPORTED_IGS, ""));
+		settings.setEnginesPerKey(readInt(servletConfig, ENGINES_PER_KEY, 1));
+		settings.setEngineCacheMaxEntries(readInt(servletConfig, ENGINE_CACHE_MAX_ENTRIES, 10));
+		settings.setEngineCacheMaxMb(readInt(servletConfig, ENGINE_CACHE_MAX_MB, 0));
+		settings.setPrewarmBaseIgs(readBoolean(servletConfig, PREWARM_BASE_IGS, false));
+		settings.setPrewarmThreads(readInt(servletConfig, PREWARM_THREADS, 2));
+		settings.setValidationThreads(readInt(servletConfig, VALIDATION_THREADS, Runtime.getRuntime().availableProcessors()));
+		settings.setResultCacheMaxEntries(readInt(servletConfig, RESULT_CACHE_MAX_ENTRIES, 1000));
+		settings.setResultCacheMaxMb(readInt(servletConfig, RESULT_CACHE_MAX_MB, 64));
+		settings.setShareBaseEngines(readBoolean(servletConfig, SHARE_BASE_ENGINES, true));
+		settings.setTerminologyServer(readString(servletConfig, TERMINOLOGY_SERVER, null));
+		settings.setTerminologyOffline(readBoolean(servletConfig, TERMINOLOGY_OFFLINE, false));
+		settings.setTerminologyCacheDir(readString(servletConfig, TERMINOLOGY_CACHE_DIR, null));
+		settings.setTerminologyCacheMaxMb(readInt(servletConfig, TERMINOLOGY_CACHE_MAX_MB, 512));
+		settings.setTerminologyCacheSeed(readString(servletConfig, TERMINOLOGY_CACHE_SEED, null));
+		settings.setEngineSnapshotDir(readString(servletConfig, ENGINE_SNAPSHOT_DIR, null));
+		settings.setCanonicalCacheMaxEntries(readInt(servletConfig, CANONICAL_CACHE_MAX_ENTRIES, 500));
+		settings.setCanonicalCacheTtlMinutes(readInt(servletConfig, CANONICAL_CACHE_TTL_MINUTES, 60));
+		settings.setCanonicalCacheDir(readString(servletConfig, CANONICAL_CACHE_DIR, null));
+		settings.setBundleEntryMemoMaxEntries(readInt(servletConfig, BUNDLE_ENTRY_MEMO_MAX_ENTRIES, 10000));
+		settings.setBundlePartitionMinEntries(readInt(servletConfig, BUNDLE_PARTITION_MIN_ENTRIES, 50));
+		settings.setAsyncThreads(readInt(servletConfig, ASYNC_THREADS, 2));
+		settings.setAsyncQueueSize(readInt(servletConfig, ASYNC_QUEUE_SIZE, 10));
+		settings.setAsyncResultTtlMinutes(readInt(servletConfig, ASYNC_RESULT_TTL_MINUTES, 60));
+		settings.setInteractiveReservedThreads(readInt(servletConfig, INTERACTIVE_RESERVED_THREADS, -1));
+		settings.setEngineAdmissionLimit(readInt(servletConfig, ENGINE_ADMISSION_LIMIT, 0));
+		settings.setVirtualThreads(readBoolean(servletConfig, VIRTUAL_THREADS, true));
+		settings.setClusterNodes(readString(servletConfig, CLUSTER_NODES, ""));
+		settings.setClusterSelf(readString(servletConfig, CLUSTER_SELF, null));
+		settings.setClusterVirtualNodes(readInt(servletConfig, CLUSTER_VIRTUAL_NODES, 128));
+		return settings;
+	}
+
+	public String getBaseSupportedIgs() {
+		return baseSupportedIgs;
+	}
+
+	public ValidationServiceSettings setBaseSupportedIgs(String baseSupportedIgs) {
+		this.baseSupportedIgs = baseSupportedIgs == null ? "" : baseSupportedIgs.trim();
+		return this;
+	}
+
+	//The comma delimited base-supported-igs split into trimmed name#version entries
+	public List<String> getBaseSupportedIgList() {
+		List<String> igs = new ArrayList<String>();
+		for(String ig:baseSupportedIgs.split(",")) {
+			if(!ig.trim().isEmpty()) {
+				igs.add(ig.trim());
+			}
+		}
+		return igs;
+	}
+
+	public int getEnginesPerKey() {
+		return enginesPerKey;
+	}
+
+	public ValidationServiceSettings setEnginesPerKey(int enginesPerKey) {
+		this.enginesPerKey = Math.max(1, enginesPerKey);
+		return this;
+	}
+
+	//Engine configurations kept at once; 0 removes the limit
+	public int getEngineCacheMaxEntries() {
+		return engineCacheMaxEntries;
+	}
+
+	public ValidationServiceSettings setEngineCacheMaxEntries(int engineCacheMaxEntries) {
+		this.engineCacheMaxEntries = Math.max(0, engineCacheMaxEntries);
+		return this;
+	}
+
+	//Estimated heap budget of the pooled engines; unset allows half of the maximum heap
+	public int getEngineCacheMaxMb() {
+		if (engineCacheMaxMb <= 0) {
+			return (int) Math.max(1, Runtime.getRuntime().maxMemory() / (2 * 1024 * 1024));
+		}
+		return engineCacheMaxMb;
+	}
+
+	public ValidationServiceSettings setEngineCacheMaxMb(int engineCacheMaxMb) {
+		this.engineCacheMaxMb = Math.max(0, engineCacheMaxMb);
+		return this;
+	}
+
+	public boolean isPrewarmBaseIgs() {
+		return prewarmBaseIgs;
+	}
+
+	public ValidationServiceSettings setPrewarmBaseIgs(boolean prewarmBaseIgs) {
+		this.prewarmBaseIgs = prewarmBaseIgs;
+		return this;
+	}
+
+	public int getPrewarmThreads() {
+		return prewarmThreads;
+	}
+
+	public ValidationServiceSettings setPrewarmThreads(int prewarmThreads) {
+		this.prewarmThreads = Math.max(1, prewarmThreads);
+		return this;
+	}
+
+	public int getValidationThreads() {
+		return validationThreads;
+	}
+
+	public ValidationServiceSettings setValidationThreads(int validationThreads) {
+		this.validationThreads = Math.max(1, validationThreads);
+		return this;
+	}
+
+	public int getResultCacheMaxEntries() {
+		return resultCacheMaxEntries;
+	}
+
+	//0 disables the result cache
+	public ValidationServiceSettings setResultCacheMaxEntries(int resultCacheMaxEntries) {
+		this.resultCacheMaxEntries = Math.max(0, resultCacheMaxEntries);
+		return this;
+	}
+
+	public int getResultCacheMaxMb() {
+		return resultCacheMaxMb;
+	}
+
+	public ValidationServiceSettings setResultCacheMaxMb(int resultCacheMaxMb) {
+		this.resultCacheMaxMb = Math.max(0, resultCacheMaxMb);
+		return this;
+	}
+
+	public boolean isShareBaseEngines() {
+		return shareBaseEngines;
+	}
+
+	public ValidationServiceSettings setShareBaseEngines(boolean shareBaseEngines) {
+		this.shareBaseEngines = shareBaseEngines;
+		return this;
+	}
+
+	//Overrides the validator's default tx.fhir.org; null keeps the default
+	public String getTerminologyServer() {
+		return terminologyServer;
+	}
+
+	public ValidationServiceSettings setTerminologyServer(String terminologyServer) {
+		this.terminologyServer = terminologyServer;
+		return this;
+	}
+
+	public boolean isTerminologyOffline() {
+		return terminologyOffline;
+	}
+
+	public ValidationServiceSettings setTerminologyOffline(boolean terminologyOffline) {
+		this.terminologyOffline = terminologyOffline;
+		return this;
+	}
+
+	public String getTerminologyCacheDir() {
+		return terminologyCacheDir;
+	}
+
+	public ValidationServiceSettings setTerminologyCacheDir(String terminologyCacheDir) {
+		this.terminologyCacheDir = terminologyCacheDir;
+		return this;
+	}
+
+	public int getTerminologyCacheMaxMb() {
+		return terminologyCacheMaxMb;
+	}
+
+	public ValidationServiceSettings setTerminologyCacheMaxMb(int terminologyCacheMaxMb) {
+		this.terminologyCacheMaxMb = Math.max(0, terminologyCacheMaxMb);
+		return this;
+	}
+
+	public String getTerminologyCacheSeed() {
+		return terminologyCacheSeed;
+	}
+
+	public ValidationServiceSettings setTerminologyCacheSeed(String terminologyCacheSeed) {
+		this.terminologyCacheSeed = terminologyCacheSeed;
+		return this;
+	}
+
+	//Folder for the snapshots prepare() generates; null regenerates them on every engine build
+	public String getEngineSnapshotDir() {
+		return engineSnapshotDir;
+	}
+
+	public ValidationServiceSettings setEngineSnapshotDir(String engineSnapshotDir) {
+		this.engineSnapshotDir = engineSnapshotDir;
+		return this;
+	}
+
+	//Fetched profiles and canonical resources kept in memory; 0 disables the canonical cache
+	public int getCanonicalCacheMaxEntries() {
+		return canonicalCacheMaxEntries;
+	}
+
+	public ValidationServiceSettings setCanonicalCacheMaxEntries(int canonicalCacheMaxEntries) {
+		this.canonicalCacheMaxEntries = Math.max(0, canonicalCacheMaxEntries);
+		return this;
+	}
+
+	public int getCanonicalCacheTtlMinutes() {
+		return canonicalCacheTtlMinutes;
+	}
+
+	public ValidationServiceSettings setCanonicalCacheTtlMinutes(int canonicalCacheTtlMinutes) {
+		this.canonicalCacheTtlMinutes = Math.max(1, canonicalCacheTtlMinutes);
+		return this;
+	}
+
+	//Folder for the on-disk tier of the canonical cache; null keeps it in memory only
+	public String getCanonicalCacheDir() {
+		return canonicalCacheDir;
+	}
+
+	public ValidationServiceSettings setCanonicalCacheDir(String canonicalCacheDir) {
+		this.canonicalCacheDir = canonicalCacheDir;
+		return this;
+	}
+
+	//Bundle entries whose issues are remembered for memoizeEntries; 0 turns the parameter off
+	public int getBundleEntryMemoMaxEntries() {
+		return bundleEntryMemoMaxEntries;
+	}
+
+	public ValidationServiceSettings setBundleEntryMemoMaxEntries(int bundleEntryMemoMaxEntries) {
+		this.bundleEntryMemoMaxEntries = Math.max(0, bundleEntryMemoMaxEntries);
+		return this;
+	}
+
+	//Fewest entries per partition for parallelEntries; 0 turns the parameter off
+	public int getBundlePartitionMinEntries() {
+		return bundlePartitionMinEntries;
+	}
+
+	public ValidationServiceSettings setBundlePartitionMinEntries(int bundlePartitionMinEntries) {
+		this.bundlePartitionMinEntries = Math.max(0, bundlePartitionMinEntries);
+		return this;
+	}
+
+	//Workers running Prefer: respond-async validations
+	public int getAsyncThreads() {
+		return asyncThreads;
+	}
+
+	public ValidationServiceSettings setAsyncThreads(int asyncThreads) {
+		this.asyncThreads = Math.max(1, asyncThreads);
+		return this;
+	}
+
+	//Async validations allowed to wait for a worker before new ones get a 429
+	public int getAsyncQueueSize() {
+		return asyncQueueSize;
+	}
+
+	public ValidationServiceSettings setAsyncQueueSize(int asyncQueueSize) {
+		this.asyncQueueSize = Math.max(1, asyncQueueSize);
+		return this;
+	}
+
+	public int getAsyncResultTtlMinutes() {
+		return asyncResultTtlMinutes;
+	}
+
+	public ValidationServiceSettings setAsyncResultTtlMinutes(int asyncResultTtlMinutes) {
+		this.asyncResultTtlMinutes = Math.max(1, asyncResultTtlMinutes);
+		return this;
+	}
+
+	//Validation slots bulk work may never take; unset reserves a quarter of validation-threads, at least one
+	public int getInteractiveReservedThreads() {
+		if (interactiveReservedThreads < 0) {
+			return Math.max(1, validationThreads / 4);
+		}
+		return interactiveReservedThreads;
+	}
+
+	public ValidationServiceSettings setInteractiveReservedThreads(int interactiveReservedThreads) {
+		this.interactiveReservedThreads = interactiveReservedThreads;
+		return this;
+	}
+
+	//Validations admitted at once per engine configuration; 0 matches engines-per-key
+	public int getEngineAdmissionLimit() {
+		return engineAdmissionLimit > 0 ? engineAdmissionLimit : enginesPerKey;
+	}
+
+	public ValidationServiceSettings setEngineAdmissionLimit(int engineAdmissionLimit) {
+		this.engineAdmissionLimit = Math.max(0, engineAdmissionLimit);
+		return this;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public ValidationServiceSettings setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+		return this;
+	}
+
+	//Comma delimited base URLs of every replica; IG-affinity routing is off unless there are at least two
+	public String getClusterNodes() {
+		return clusterNodes;
+	}
+
+	public ValidationServiceSettings setClusterNodes(String clusterNodes) {
+		this.clusterNodes = clusterNodes == null ? "" : clusterNodes.trim();
+		return this;
+	}
+
+	public List<String> getClusterNodeList() {
+		List<String> nodes = new ArrayList<String>();
+		for(String node:clusterNodes.split(",")) {
+			if(!node.trim().isEmpty()) {
+				nodes.add(node.trim());
+			}
+		}
+		return nodes;
+	}
+
+	//This replica's own entry in cluster-nodes
+	public String getClusterSelf() {
+		return clusterSelf;
+	}
+
+	public ValidationServiceSettings setClusterSelf(String clusterSelf) {
+		this.clusterSelf = clusterSelf;
+		return this;
+	}
+
+	public int getClusterVirtualNodes() {
+		return clusterVirtualNodes;
+	}
+
+	public ValidationServiceSettings setClusterVirtualNodes(int clusterVirtualNodes) {
+		this.clusterVirtualNodes = Math.max(1, clusterVirtualNodes);
+		return this;
+	}
+
+	protected static String readString(ServletConfig servletConfig, String name, String defaultValue) {
+		String value = servletConfig.getInitParameter(name);
+		if(value == null || value.trim().isEmpty()) {
+			value = System.getProperty("validator." + name);
+		}
+		if(value == null || value.trim().isEmpty()) {
+			value = System.getenv("VALIDATOR_" + name.toUpperCase(Locale.ROOT).replace('-', '_'));
+		}
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	protected static int readInt(ServletConfig servletConfig, String name, int defaultValue) {
+		String value = readString(servletConfig, name, null);
+		if(value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	protected static boolean readBoolean(ServletConfig servletConfig, String name, boolean defaultValue) {
+		String value = readString(servletConfig, name, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+}
@@ -1,16 +1,16 @@
 package edu.gatech.chai.provider;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
-import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -18,31 +18,34 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.http.HttpStatus;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.DecimalType;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
-import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
-import org.hl7.fhir.r5.model.ImplementationGuide;
-import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
 import org.hl7.fhir.utilities.TimeTracker;
 import org.hl7.fhir.utilities.VersionUtilities;
-import org.hl7.fhir.validation.Scanner;
-import org.hl7.fhir.validation.ValidationEngine;
 import org.hl7.fhir.validation.cli.model.CliContext;
-import org.hl7.fhir.validation.cli.utils.EngineMode;
-import org.hl7.fhir.validation.cli.utils.Params;
+import org.hl7.fhir.validation.cli.model.FileInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.DefaultCorsProcessor;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
@@ -55,38 +58,82 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import edu.gatech.chai.config.ValidationServiceSettings;
+import edu.gatech.chai.service.BundleEntryMemo;
+import edu.gatech.chai.service.CanonicalResourceCache;
+import edu.gatech.chai.service.EngineKey;
+import edu.gatech.chai.service.EngineWarmer;
+import edu.gatech.chai.service.IgRing;
 import edu.gatech.chai.service.MyValidationService;
+import edu.gatech.chai.service.OperationOutcomeConverter;
+import edu.gatech.chai.service.RequestTiming;
+import edu.gatech.chai.service.ValidatedSource;
+import edu.gatech.chai.service.ValidationEnginePool;
+import edu.gatech.chai.service.ValidationJobManager;
+import edu.gatech.chai.service.ValidationLimits;
+import edu.gatech.chai.service.ValidationMetrics;
+import edu.gatech.chai.service.ValidationOptions;
+import edu.gatech.chai.service.ValidationResultCache;
+import edu.gatech.chai.service.ValidationScheduler;
 
 public class ValidateProvider{
 	
 	private static final Logger logger = LoggerFactory.getLogger(ValidateProvider.class);
 	
-	DateFormat df;
 	IParser jsonParser;
 	IParser r5Parser;
 	IParser xmlParser;
+	IParser ndjsonParser;
+	IParser compactXmlParser;
 	ObjectMapper jsonMapper;
 	ObjectMapper xmlMapper;
 
 	MyValidationService validationService;
+	ValidationMetrics metrics;
+	EngineWarmer engineWarmer;
+	ValidationJobManager jobManager;
+	IgRing igRing;
+	List<String> baseSupportedIgList;
+	int streamWindow;
 	DefaultCorsProcessor defaultCorsProcessor;
-	String sessionId; //This is the validator sessionId that must be preserved.
 	String base_supported_igs;
-	Pattern lineAndColPattern = Pattern.compile("^\\(line\\s*(?<line>\\d+),\\s*col(?<col>\\d+)\\)$");
 	public ValidateProvider(FhirContext ctx, String base_supported_igs) {
-		TimeZone tz = TimeZone.getTimeZone("UTC");
-		df = new SimpleDateFormat("yyyy-MM-dd'T'HHmmss");
-		df.setTimeZone(tz);
+		this(ctx, new ValidationServiceSettings().setBaseSupportedIgs(base_supported_igs));
+	}
+
+	public ValidateProvider(FhirContext ctx, ValidationServiceSettings settings) {
 		jsonParser = ctx.newJsonParser().setPrettyPrint(true);
 		xmlParser = ctx.newXmlParser().setPrettyPrint(true);
+		ndjsonParser = ctx.newJsonParser().setPrettyPrint(false);
+		compactXmlParser = ctx.newXmlParser().setPrettyPrint(false);
 		r5Parser = FhirContext.forR5().newJsonParser().setPrettyPrint(true);
 		jsonMapper = new ObjectMapper();
 		xmlMapper = new XmlMapper();
-		validationService = new MyValidationService();
+		validationService = new MyValidationService(settings);
+		metrics = validationService.getMetrics();
 		defaultCorsProcessor = new DefaultCorsProcessor();
-		sessionId = "";
+		base_supported_igs = settings.getBaseSupportedIgs();
 		logger.info("base_supported_igs:"+base_supported_igs);
-		this.base_supported_igs = base_supported_igs;
+		logger.info("engines-per-key:"+settings.getEnginesPerKey());
+		engineWarmer = new EngineWarmer(validationService);
+		streamWindow = Math.max(2, 2 * settings.getEngineAdmissionLimit());
+		jobManager = new ValidationJobManager(settings.getAsyncThreads(), settings.getAsyncQueueSize(), settings.getAsyncResultTtlMinutes());
+		igRing = new IgRing(settings.getClusterNodeList(), settings.getClusterSelf(), settings.getClusterVirtualNodes());
+		baseSupportedIgList = settings.getBaseSupportedIgList();
+		if(igRing.isEnabled()) {
+			logger.info("IG-affinity routing on as "+igRing.getSelf()+" among "+igRing.getNodes());
+		}
+		else if(!settings.getClusterNodeList().isEmpty()) {
+			logger.warn("IG-affinity routing off: cluster-nodes needs at least two nodes, one of them cluster-self ("+settings.getClusterSelf()+")");
+		}
+		if(settings.isPrewarmBaseIgs()) {
+			//With routing on, only the IGs this node owns are ever validated here
+			List<String> warmIgs = igRing.owned(baseSupportedIgList);
+			logger.info("Pre-warming engines for "+warmIgs+" with "+settings.getPrewarmThreads()+" threads");
+			engineWarmer.warm(warmIgs, "us", settings.getPrewarmThreads());
+		}
 	}
 
 	@Operation(name = "$packages", manualRequest = true, manualResponse = true, global = true, idempotent = true)
@@ -96,6 +143,119 @@ public class ValidateProvider{
 		return;
 	}
 	
+	//Readiness probe; 200 once every pre-warmed IG engine has finished building, 503 before then
+	@Operation(name = "$ready", manualRequest = true, manualResponse = true, global = true, idempotent = true)
+	public void readiness(HttpServletRequest servletRequest,HttpServletResponse servletResponse) throws Exception{
+		boolean ready = engineWarmer.isReady();
+		ObjectNode jsonOutput = JsonNodeFactory.instance.objectNode();
+		jsonOutput.put("ready", ready);
+		ArrayNode igsNode = jsonOutput.putArray("igs");
+		for(Map.Entry<String, EngineWarmer.WarmState> entry:engineWarmer.getStates().entrySet()){
+			ObjectNode igNode = igsNode.addObject();
+			igNode.put("ig", entry.getKey());
+			igNode.put("state", entry.getValue().name());
+			if(engineWarmer.getError(entry.getKey()) != null){
+				igNode.put("error", engineWarmer.getError(entry.getKey()));
+			}
+		}
+		servletResponse.setStatus(ready ? HttpStatus.SC_OK : HttpStatus.SC_SERVICE_UNAVAILABLE);
+		servletResponse.setContentType("application/json");
+		servletResponse.getWriter().write(jsonMapper.writeValueAsString(jsonOutput));
+	}
+
+	@Operation(name = "$stats", manualRequest = true, manualResponse = true, global = true, idempotent = true)
+	public void statistics(HttpServletRequest servletRequest,HttpServletResponse servletResponse) throws Exception{
+		ObjectNode jsonOutput = JsonNodeFactory.instance.objectNode();
+		ValidationResultCache resultCache = validationService.getResultCache();
+		ObjectNode cacheNode = jsonOutput.putObject("resultCache");
+		cacheNode.put("hits", resultCache.getHits());
+		cacheNode.put("misses", resultCache.getMisses());
+		cacheNode.put("coalesced", resultCache.getCoalesced());
+		cacheNode.put("evictions", resultCache.getEvictions());
+		cacheNode.put("entries", resultCache.size());
+		cacheNode.put("estimatedBytes", resultCache.getTotalBytes());
+		CanonicalResourceCache canonicalCache = validationService.getCanonicalCache();
+		ObjectNode canonicalNode = jsonOutput.putObject("canonicalCache");
+		canonicalNode.put("hits", canonicalCache.getHits());
+		canonicalNode.put("diskHits", canonicalCache.getDiskHits());
+		canonicalNode.put("misses", canonicalCache.getMisses());
+		canonicalNode.put("entries", canonicalCache.size());
+		BundleEntryMemo bundleEntryMemo = validationService.getBundleEntryMemo();
+		ObjectNode memoNode = jsonOutput.putObject("bundleEntryMemo");
+		memoNode.put("reused", bundleEntryMemo.getReused());
+		memoNode.put("validated", bundleEntryMemo.getValidated());
+		memoNode.put("entries", bundleEntryMemo.size());
+		ValidationEnginePool enginePool = validationService.getEnginePool();
+		ObjectNode enginesNode = jsonOutput.putObject("engines");
+		enginesNode.put("evictions", enginePool.getEvictions());
+		enginesNode.put("estimatedBytes", enginePool.getTotalBytes());
+		ArrayNode poolsNode = enginesNode.putArray("pools");
+		for (ValidationEnginePool.KeyedPool pool : enginePool.getPools().values()) {
+			ObjectNode poolNode = poolsNode.addObject();
+			poolNode.put("id", pool.getKey().getId());
+			poolNode.put("igs", String.join(",", pool.getKey().getIgs()));
+			poolNode.put("version", pool.getKey().getVersion());
+			poolNode.put("sct", pool.getKey().getSnomedCT());
+			poolNode.put("pinned", enginePool.isPinned(pool.getKey()));
+			poolNode.put("instances", pool.getCreatedCount());
+			poolNode.put("idle", pool.getIdleCount());
+			poolNode.put("resources", pool.getResourceCount());
+			poolNode.put("estimatedBytes", pool.getEstimatedBytes());
+			poolNode.put("lastUsed", pool.getLastUsedAt());
+		}
+		ObjectNode baseEnginesNode = enginesNode.putObject("baseEngines");
+		validationService.getBaseEngineFootprints().forEach(baseEnginesNode::put);
+		ObjectNode jobsNode = jsonOutput.putObject("asyncJobs");
+		jobsNode.put("queued", jobManager.getQueued());
+		jobsNode.put("running", jobManager.getRunning());
+		jobsNode.put("retained", jobManager.getRetained());
+		servletResponse.setContentType("application/json");
+		servletResponse.getWriter().write(jsonMapper.writeValueAsString(jsonOutput));
+	}
+
+	/**
+	 * The IG-affinity ring: whether routing is on, this node, every node with the base-supported IGs it
+	 * owns, and the redirects this node has sent. ?ig= adds the owner of that ig parameter.
+	 */
+	@Operation(name = "$cluster", manualRequest = true, manualResponse = true, global = true, idempotent = true)
+	public void cluster(HttpServletRequest servletRequest,HttpServletResponse servletResponse) throws Exception{
+		ObjectNode jsonOutput = JsonNodeFactory.instance.objectNode();
+		jsonOutput.put("enabled", igRing.isEnabled());
+		jsonOutput.put("self", igRing.getSelf());
+		jsonOutput.put("redirects", igRing.getRedirects());
+		ObjectNode nodesNode = jsonOutput.putObject("nodes");
+		for(String node: igRing.getNodes()) {
+			nodesNode.putArray(node);
+		}
+		if(igRing.isEnabled()) {
+			for(String ig: baseSupportedIgList) {
+				((ArrayNode) nodesNode.get(igRing.ownerOf(ig))).add(ig);
+			}
+		}
+		ArrayNode ownedNode = jsonOutput.putArray("owned");
+		igRing.owned(baseSupportedIgList).forEach(ownedNode::add);
+		String ig = servletRequest.getParameter("ig");
+		if(ig != null && !ig.trim().isEmpty()) {
+			jsonOutput.put("ig", ig);
+			jsonOutput.put("owner", igRing.ownerOf(ig));
+		}
+		servletResponse.setContentType("application/json");
+		servletResponse.getWriter().write(jsonMapper.writeValueAsString(jsonOutput));
+	}
+
+	//Prometheus scrape endpoint
+	@Operation(name = "$metrics", manualRequest = true, manualResponse = true, global = true, idempotent = true)
+	public void metrics(HttpServletRequest servletRequest,HttpServletResponse servletResponse) throws Exception{
+		servletResponse.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		servletResponse.getWriter().write(metrics.scrape());
+	}
+
+	public void shutdown() {
+		engineWarmer.shutdown();
+		jobManager.shutdown();
+		validationService.shutdown();
+	}
+
 	@Operation(name = "$translate", manualRequest = true, manualResponse = true)
 	public void translateResource(
 			HttpServletRequest servletRequest,
@@ -107,23 +267,33 @@ public class ValidateProvider{
 		}
 		IParser sourceParser = jsonParser;
 		IParser targetParser = xmlParser;
+		//Output is compact unless _pretty=true; whitespace only adds to the bytes encoded and sent
+		boolean pretty = "true".equalsIgnoreCase(servletRequest.getParameter(Constants.PARAM_PRETTY));
 		String contentType = servletRequest.getContentType();
 		if(contentType.equalsIgnoreCase("application/json") || contentType.equalsIgnoreCase("application/fhir+json")) {
 			sourceParser = jsonParser;
-			targetParser = xmlParser;
+			targetParser = pretty ? xmlParser : compactXmlParser;
 		}
 		else if(contentType.equalsIgnoreCase("application/xml") || contentType.equalsIgnoreCase("application/fhir+xml")) {
 			sourceParser = xmlParser;
-			targetParser = jsonParser;
+			targetParser = pretty ? jsonParser : ndjsonParser;
 		}
 		else {
 			createErrorOperationOutcome("Incorrect Content-Type Header. Expecting either application/json, application/fhir+json," +
 					" application/xml, application/fhir+xml",servletResponse,sourceParser);
 			return;
 		}
+		//Stream through the element model once the R4 definitions are loaded; until then fall back to the HAPI model
+		IWorkerContext definitionsContext = validationService.getDefinitionsContextIfReady("4.0.1");
+		if(definitionsContext != null) {
+			translateElements(definitionsContext, sourceParser == xmlParser, pretty, servletRequest, servletResponse);
+			return;
+		}
 		Resource myParametersResource = null;
+		final IParser requestParser = sourceParser;
+		final IParser responseParser = targetParser;
 		try {
-			myParametersResource = (Parameters)sourceParser.parseResource(servletRequest.getInputStream());
+			myParametersResource = metrics.time("translate", ValidationMetrics.PHASE_PARSE, null, () -> (Parameters)requestParser.parseResource(servletRequest.getInputStream()));
 		} catch (IOException e) {
 			createErrorOperationOutcome("Error serializing request body:" + e.getLocalizedMessage(),servletResponse,sourceParser);
 			return;
@@ -133,7 +303,7 @@ public class ValidateProvider{
 			for(ParametersParameterComponent ppc: parameters.getParameter()) {
 				if(ppc.getName().equalsIgnoreCase("resource")) {
 					Resource translatingResource = ppc.getResource();
-					String returnBody = targetParser.encodeResourceToString(translatingResource);
+					String returnBody = metrics.time("translate", ValidationMetrics.PHASE_ENCODE, null, () -> responseParser.encodeResourceToString(translatingResource));
 					try {
 						servletResponse.getWriter().write(returnBody);
 					} catch (IOException e) {
@@ -153,13 +323,217 @@ public class ValidateProvider{
 		return;
 	}
 
-	@Operation(name = "$validate", global = true)
-	public OperationOutcome validateResource(
+	/**
+	 * Translates with the R5 element model: the request is read into Elements instead of HAPI model objects,
+	 * and the resource parameter is composed straight onto the response output stream without building
+	 * the result as a String.
+	 */
+	private void translateElements(IWorkerContext context, boolean fromXml, boolean pretty,
+			HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
+		FhirFormat sourceFormat = fromXml ? FhirFormat.XML : FhirFormat.JSON;
+		FhirFormat targetFormat = fromXml ? FhirFormat.JSON : FhirFormat.XML;
+		IParser errorParser = fromXml ? xmlParser : jsonParser;
+		Element parameters;
+		try {
+			parameters = metrics.time("translate", ValidationMetrics.PHASE_PARSE, null, () -> Manager.parseSingle(context, servletRequest.getInputStream(), sourceFormat));
+		} catch (Exception e) {
+			createErrorOperationOutcome("Error serializing request body:" + e.getLocalizedMessage(),servletResponse,errorParser);
+			return;
+		}
+		if(!"Parameters".equals(parameters.fhirType())) {
+			createErrorOperationOutcome("Expected Parameters instead found " + parameters.fhirType(),servletResponse,errorParser);
+			return;
+		}
+		for(Element parameter: parameters.getChildrenByName("parameter")) {
+			Element translatingResource = parameter.getNamedChild("resource");
+			if("resource".equalsIgnoreCase(parameter.getNamedChildValue("name")) && translatingResource != null) {
+				servletResponse.setCharacterEncoding("UTF-8");
+				servletResponse.setContentType(fromXml ? "application/fhir+json" : "application/fhir+xml");
+				postProcess(servletResponse);
+				OutputStream outputStream = servletResponse.getOutputStream();
+				metrics.time("translate", ValidationMetrics.PHASE_ENCODE, null, () -> {
+					Manager.compose(context, translatingResource, outputStream, targetFormat, pretty ? OutputStyle.PRETTY : OutputStyle.NORMAL, null);
+					return null;
+				});
+				outputStream.flush();
+				return;
+			}
+		}
+		createErrorOperationOutcome("Could not parse Parameters options. Expecting stringParam named 'ig' and resourceParam named 'resource'",servletResponse,errorParser);
+	}
+
+	//With Prefer: respond-async the validation is queued and a 202 points at $validate-status; otherwise the outcome is returned directly
+	@Operation(name = "$validate", global = true, manualResponse = true)
+	public void validateOperation(
 			@OperationParam(name = "ig", min = 1) StringType ig,
 			@OperationParam(name = "format", min = 1) StringType format,
 			@OperationParam(name = "sct", min = 1) StringType sct,
 			@OperationParam(name = "includeFormattedResource") BooleanType includeFormattedResource,
-			@OperationParam(name = "resource", min = 1) IBaseResource resource) throws Exception {
+			@OperationParam(name = "includeTiming") BooleanType includeTiming,
+			@OperationParam(name = "memoizeEntries") BooleanType memoizeEntries,
+			@OperationParam(name = "parallelEntries") BooleanType parallelEntries,
+			@OperationParam(name = "maxErrors") IntegerType maxErrors,
+			@OperationParam(name = "minSeverity") StringType minSeverity,
+			@OperationParam(name = "resource", min = 1) IBaseResource resource,
+			ServletRequestDetails theRequestDetails) throws Exception {
+		if(!igRing.isOwner(ig.getValue())) {
+			redirectToOwner(ig.getValue(), "$validate", theRequestDetails);
+			return;
+		}
+		ValidationLimits limits;
+		try {
+			limits = new ValidationLimits(maxErrors == null || maxErrors.getValue() == null ? 0 : maxErrors.getValue(),
+					ValidationLimits.parseSeverity(minSeverity == null ? null : minSeverity.getValue()));
+		} catch (IllegalArgumentException e) {
+			writeResource(createErrorOperationOutcome(e.getMessage(), jsonParser), HttpStatus.SC_BAD_REQUEST, theRequestDetails);
+			return;
+		}
+		String prefer = theRequestDetails.getHeader(Constants.HEADER_PREFER);
+		boolean async = prefer != null && prefer.contains(Constants.HEADER_PREFER_RESPOND_ASYNC);
+		//Synchronous requests are interactive and async ones bulk, unless the priority header says otherwise
+		ValidationScheduler.Lane lane = ValidationScheduler.Lane.fromHeader(theRequestDetails.getHeader(ValidationScheduler.PRIORITY_HEADER),
+				async ? ValidationScheduler.Lane.BULK : ValidationScheduler.Lane.INTERACTIVE);
+		boolean timingExtension = includeTiming != null && includeTiming.booleanValue();
+		ValidationOptions options = new ValidationOptions()
+				.setLane(lane)
+				.setMemoizeEntries(memoizeEntries != null && memoizeEntries.booleanValue())
+				.setParallelEntries(parallelEntries != null && parallelEntries.booleanValue())
+				.setLimits(limits);
+		if(!async) {
+			RequestTiming timing = new RequestTiming();
+			OperationOutcome outcome = validateResource(ig, format, sct, includeFormattedResource, resource, options.setTiming(timing));
+			addTiming(outcome, timing, timingExtension);
+			theRequestDetails.getServletResponse().setHeader("Server-Timing", timing.toServerTiming());
+			theRequestDetails.getServletResponse().setHeader("Timing-Allow-Origin", "*");
+			writeResource(outcome, HttpStatus.SC_OK, theRequestDetails);
+			return;
+		}
+		ValidationJobManager.ValidationJob job;
+		try {
+			job = jobManager.submit(() -> {
+				RequestTiming timing = new RequestTiming();
+				OperationOutcome outcome = validateResource(ig, format, sct, includeFormattedResource, resource, options.setTiming(timing));
+				addTiming(outcome, timing, timingExtension);
+				return outcome;
+			});
+		} catch (RejectedExecutionException e) {
+			long retryAfter = jobManager.getRetryAfterSeconds();
+			logger.warn("Rejected async $validate; queue is full, Retry-After " + retryAfter + "s");
+			theRequestDetails.getServletResponse().setHeader("Retry-After", String.valueOf(retryAfter));
+			OperationOutcome throttled = new OperationOutcome();
+			throttled.addIssue()
+			.setSeverity(IssueSeverity.ERROR)
+			.setCode(IssueType.THROTTLED)
+			.setDiagnostics("Too many validations are queued. Retry after " + retryAfter + " seconds");
+			writeResource(throttled, 429, theRequestDetails);
+			return;
+		}
+		theRequestDetails.getServletResponse().setHeader(Constants.HEADER_CONTENT_LOCATION, theRequestDetails.getFhirServerBase() + "/$validate-status?_jobId=" + job.getId());
+		OperationOutcome accepted = new OperationOutcome();
+		accepted.addIssue()
+		.setSeverity(IssueSeverity.INFORMATION)
+		.setCode(IssueType.INFORMATIONAL)
+		.setDiagnostics("Validation job " + job.getId() + " accepted");
+		writeResource(accepted, HttpStatus.SC_ACCEPTED, theRequestDetails);
+	}
+
+	/**
+	 * Poll an async $validate. 202 with X-Progress while the job is queued or running, then 200 with a
+	 * batch-response Bundle whose single entry holds the OperationOutcome, as in the FHIR asynchronous
+	 * request pattern. Unknown and expired jobs are 404.
+	 */
+	@Operation(name = "$validate-status", global = true, manualResponse = true, idempotent = true)
+	public void validateStatus(
+			@OperationParam(name = "_jobId", min = 1) StringType jobId,
+			ServletRequestDetails theRequestDetails) throws Exception {
+		ValidationJobManager.ValidationJob job = jobManager.getJob(jobId == null ? null : jobId.getValue());
+		if(job == null) {
+			OperationOutcome notFound = new OperationOutcome();
+			notFound.addIssue()
+			.setSeverity(IssueSeverity.ERROR)
+			.setCode(IssueType.NOTFOUND)
+			.setDiagnostics("Unknown or expired validation job " + (jobId == null ? "" : jobId.getValue()));
+			writeResource(notFound, HttpStatus.SC_NOT_FOUND, theRequestDetails);
+			return;
+		}
+		if(!job.isDone()) {
+			HttpServletResponse servletResponse = theRequestDetails.getServletResponse();
+			servletResponse.setStatus(HttpStatus.SC_ACCEPTED);
+			servletResponse.setHeader("X-Progress", job.getState() == ValidationJobManager.JobState.QUEUED ? "queued" : "in-progress");
+			return;
+		}
+		Bundle batchResponse = new Bundle().setType(BundleType.BATCHRESPONSE);
+		BundleEntryComponent entry = batchResponse.addEntry();
+		if(job.getState() == ValidationJobManager.JobState.COMPLETE) {
+			entry.setResource(job.getOutcome());
+			entry.getResponse().setStatus("200 OK");
+		}
+		else {
+			entry.setResource(createErrorOperationOutcome("Validation failed:" + job.getError().getMessage(), jsonParser));
+			entry.getResponse().setStatus("500 Internal Server Error");
+		}
+		writeResource(batchResponse, HttpStatus.SC_OK, theRequestDetails);
+	}
+
+	//Adds the urn:local:timing extension: one millisecond sub-extension per phase, plus the engine and result cache hits
+	private void addTiming(OperationOutcome outcome, RequestTiming timing, boolean includeTiming) {
+		if(!includeTiming) {
+			return;
+		}
+		Extension timingExtension = new Extension("urn:local:timing");
+		for(Map.Entry<String, Long> phase: timing.getPhases().entrySet()) {
+			timingExtension.addExtension(new Extension(phase.getKey(), new DecimalType(RequestTiming.toMillis(phase.getValue()))));
+		}
+		if(timing.getEngineCacheHit() != null) {
+			timingExtension.addExtension(new Extension("engineCacheHit", new BooleanType(timing.getEngineCacheHit())));
+		}
+		timingExtension.addExtension(new Extension("resultCacheHit", new BooleanType(timing.isResultCacheHit())));
+		outcome.addExtension(timingExtension);
+	}
+
+	//307 keeps the method and body, so the client posts the same request to the node whose engines hold the IG
+	private void redirectToOwner(String ig, String operation, ServletRequestDetails theRequestDetails) throws IOException {
+		String owner = igRing.ownerOf(ig);
+		String location = owner + "/" + operation;
+		String query = theRequestDetails.getServletRequest().getQueryString();
+		if(query != null && !query.isEmpty()) {
+			location += "?" + query;
+		}
+		igRing.recordRedirect();
+		logger.info("Redirecting " + operation + " for " + ig + " to " + owner);
+		theRequestDetails.getServletResponse().setHeader(Constants.HEADER_LOCATION, location);
+		OperationOutcome redirected = new OperationOutcome();
+		redirected.addIssue()
+		.setSeverity(IssueSeverity.INFORMATION)
+		.setCode(IssueType.INFORMATIONAL)
+		.setDiagnostics("IG " + ig + " is validated by " + owner);
+		writeResource(redirected, HttpStatus.SC_TEMPORARY_REDIRECT, theRequestDetails);
+	}
+
+	//Encodes a resource for a manualResponse operation with the format and pretty printing the client asked for
+	private void writeResource(Resource resource, int status, ServletRequestDetails theRequestDetails) throws IOException {
+		RestfulServerUtils.streamResponseAsResource(theRequestDetails.getServer(), resource,
+				RestfulServerUtils.determineSummaryMode(theRequestDetails), status, false,
+				RestfulServerUtils.respondGzip(theRequestDetails), theRequestDetails);
+	}
+
+	public OperationOutcome validateResource(
+			StringType ig,
+			StringType format,
+			StringType sct,
+			BooleanType includeFormattedResource,
+			IBaseResource resource) throws Exception {
+		return validateResource(ig, format, sct, includeFormattedResource, resource, new ValidationOptions());
+	}
+
+	//options choose the lane, timing, Bundle shortcuts and limits of the validation
+	public OperationOutcome validateResource(
+			StringType ig,
+			StringType format,
+			StringType sct,
+			BooleanType includeFormattedResource,
+			IBaseResource resource,
+			ValidationOptions options) throws Exception {
 		logger.info("Received $validate operation call");
 		logger.info("igParam:"+ig.toString());
 		logger.info("formatParam:"+format.toString());
@@ -180,117 +554,59 @@ public class ValidateProvider{
 		}
 		//TimeTracker is required for ValidationService
 		TimeTracker tt = new TimeTracker();
-		//Setup args as if they were String[] like CLI
-		List<String> cliArgsList = new ArrayList<String>();
-		if(!ig.isEmpty()){
-			cliArgsList.add("-ig");
-			cliArgsList.add(ig.getValue());
-		}
-		//Establish sct default value of "us"
-		if(sct == null || sct.isEmpty()){
-			sct = new StringType("us"); 
-		}
-		if(!sct.isEmpty()){
-			cliArgsList.add("-sct");
-			cliArgsList.add(sct.getValue());
-		}
-		String fileName = "";
-		//You have to write the resource to disk for the service to use it.
-		String nowAsISO = df.format(new Date());
-		fileName = nowAsISO;
-		//Write the source to file so validatorService can use it
-		if(format.getValue().equalsIgnoreCase("application/json") || format.getValue().equalsIgnoreCase("application/fhir+json")) {
-			fileName = fileName + ".json";
-		}
-		else if(format.getValue().equalsIgnoreCase("application/xml") || format.getValue().equalsIgnoreCase("application/fhir+xml")) {
-			fileName = fileName + ".xml";
-		}
-		String resourceBody = currentParser.encodeResourceToString(resource);
-		
-		File tempFile = new File(fileName);
-		FileOutputStream fos;
-		try {
-			tempFile.createNewFile();
-			fos = new FileOutputStream(tempFile);
-			byte[] sourceContentBytes = resourceBody.getBytes();
-			fos.write(sourceContentBytes);
-			fos.close();
-		} catch (IOException e1) {
-			OperationOutcome oo = new OperationOutcome();
-			oo.addIssue()
-			.setSeverity(IssueSeverity.FATAL)
-			.setDetails(new CodeableConcept().setText("Could not access and create file:"+tempFile.getAbsolutePath()));
-			e1.printStackTrace();
-			return oo;
-		}
-		cliArgsList.add(fileName); //Note file name is last in the set
+		RequestTiming timing = options.getTiming();
+		//The resource is validated straight from memory; nothing is written to disk
+		final IParser resourceParser = currentParser;
+		String resourceBody = metrics.time("validate", ValidationMetrics.PHASE_PARSE, ig.getValue(), timing, () -> resourceParser.encodeResourceToString(resource));
+		FileInfo sourceInfo = new FileInfo()
+				.setFileName(currentParser == xmlParser ? "resource.xml" : "resource.json")
+				.setFileContent(resourceBody)
+				.setFileType(currentParser == xmlParser ? "xml" : "json");
 		TimeTracker.Session tts = tt.start("Loading");
-		//Make CLIContext
-		CliContext cliContext = Params.loadCliContext(cliArgsList.toArray(new String[0]));
+		//Make CLIContext as if the ig and sct were CLI args; sct defaults to "us"
+		CliContext cliContext = validationService.createCliContext(ig.getValue(), sct == null ? null : sct.getValue());
+		//An engine at the level of minSeverity does not look for the issues that would be dropped
+		cliContext.setLevel(options.getLimits().engineLevel(cliContext.getLevel()));
 		//
 		logger.info("CLIContext:"+cliContext.toString());
 		//Use the validationservice to set the Server Version
-		logger.info("ValidationService determineVersion:"+validationService.determineVersion(cliContext));
-		cliContext.setSv(validationService.determineVersion(cliContext));
-		//If the sessionId exists; use it to help initialize without recreating the context
+		cliContext.setSv(metrics.time("validate", ValidationMetrics.PHASE_VERSION, ig.getValue(), timing, () -> validationService.determineVersion(cliContext)));
+		logger.info("ValidationService determineVersion:"+cliContext.getSv());
+		//Core definitions package for the detected version; part of what the engine is built from
 		String definitions = VersionUtilities.packageForVersion(cliContext.getSv()) + "#" + VersionUtilities.getCurrentVersion(cliContext.getSv());
 		logger.info("Initializing Validator");
 		logger.info("definitions:"+definitions);
-		//Make Validation Engine
-    	sessionId = validationService.initializeValidator(cliContext, definitions, tt, sessionId);
-		logger.info("Session id:"+sessionId);
-		tts.end();
+		//Validate with an engine matching this request's ig, version, sct and flags, or reuse the cached result for identical content
 		//TODO: Gracefully Handle tx.fhir.org unavailable
-		ValidationEngine validator = validationService.getValidationEngine(sessionId);
-		logger.info("ValidationEngine's LocalCache Folder:"+validator.getPcm().getFolder());
-		logger.info("IGs:");
-		for(ImplementationGuide IG:validator.getIgs()){
-			logger.info("\t"+IG.toString());
-		}
-		logger.info("ValidationEngine's Version:"+validator.getVersion());
-		ArrayNode issuesNode = null;
-		//Actually do the validation
-		logger.info("Starting profile loading.");
-		OperationOutcome successOO = new OperationOutcome();
-		for (String s : cliContext.getProfiles()) {
-		//Note our validator is R5 but we're validating R4 resources, so StructureDefinition and ImplementationGuide here are R5 classes.
-		if (!validator.getContext().hasResource(StructureDefinition.class, s) && !validator.getContext().hasResource(ImplementationGuide.class, s)) {
-			logger.info("  Fetch Profile from " + s);
-			validator.loadProfile(cliContext.getLocations().getOrDefault(s, s));
-			}
+		ValidatedSource result;
+		boolean partitioned = options.isParallelEntries() && resource instanceof Bundle && validationService.getBundlePartitioner().isEnabled();
+		//Memoized entry issues are complete, so they cannot be combined with a stopped validation
+		if(options.isMemoizeEntries() && options.getLimits().isNone() && resource instanceof Bundle && validationService.getBundleEntryMemo().isEnabled()) {
+			//Only the entries that changed since an earlier submission of this Bundle are validated again
+			result = new ValidatedSource(sourceInfo).setOutcome(validationService.getBundleEntryMemo().validate(
+					EngineKey.fromCliContext(cliContext), cliContext.getProfiles(), (Bundle)resource, bundle -> {
+						FileInfo bundleInfo = new FileInfo()
+								.setFileName(sourceInfo.getFileName())
+								.setFileContent(resourceParser.encodeResourceToString(bundle))
+								.setFileType(sourceInfo.getFileType());
+						if(partitioned) {
+							return validationService.validateBundlePartitioned(cliContext, definitions, bundleInfo, bundle,
+									resourceParser::encodeResourceToString, options).getOutcome();
+						}
+						return validationService.validateInMemory(cliContext, definitions, bundleInfo, tt, options).getOutcome();
+					}));
 		}
-		if (cliContext.getMode() == EngineMode.SCAN) {
-			logger.info("running scanning mode.");
-			Scanner validationScanner = new Scanner(validator.getContext(), validator.getValidator(null), validator.getIgLoader(), validator.getFhirPathEngine());
-			validationScanner.validateScan(cliContext.getOutput(), cliContext.getSources());
-		} else {
-			logger.info("running validate sources mode.");
-			issuesNode = validationService.validateSources(cliContext, validator);
-			logger.info("Number of issues:"+issuesNode.size());
-			for(JsonNode issue:issuesNode){
-				OperationOutcomeIssueComponent ooic = new OperationOutcomeIssueComponent();
-				ooic.setSeverity(IssueSeverity.fromCode(((ObjectNode) issue).get("severity").toString().toLowerCase().replaceAll("\"","")));
-				ooic.addExpression(((ObjectNode) issue).get("fhirPath").toString().toString().toLowerCase().replaceAll("\"",""));
-				ooic.setDiagnostics(((ObjectNode) issue).get("message").toString().toString().toLowerCase().replaceAll("\"",""));
-				String locationString = ((ObjectNode) issue).get("location").toString().toString().toLowerCase().replaceAll("\"","");
-				ooic.addLocation(locationString);
-				Matcher locationMatcher = lineAndColPattern.matcher(locationString);
-				if(locationMatcher.matches()){
-					String line = locationMatcher.group("line");
-					String col = locationMatcher.group("col");
-					Extension lineAndColExtension = new Extension("urn:local:line-and-col");
-					Extension lineExtension = new Extension("urn:local:line", new IntegerType(line));
-					lineAndColExtension.addExtension(lineExtension);
-					Extension colExtension = new Extension("urn:local:col", new IntegerType(col));
-					lineAndColExtension.addExtension(colExtension);
-					ooic.addExtension(lineAndColExtension);
-				}
-				successOO.addIssue(ooic);
-			}
+		else if(partitioned) {
+			//Partitions of the entries are validated at the same time and their issues merged
+			result = validationService.validateBundlePartitioned(cliContext, definitions, sourceInfo, (Bundle)resource,
+					resourceParser::encodeResourceToString, options);
 		}
-		ObjectNode returnNode = JsonNodeFactory.instance.objectNode();
-		returnNode.put("fhirValidatorVersion","v6.6.1");
-		returnNode.set("issues", issuesNode);
+		else {
+			result = validationService.validateInMemory(cliContext, definitions, sourceInfo, tt, options);
+		}
+		tts.end();
+		logger.info("Number of issues:"+result.getOutcome().getIssue().size());
+		OperationOutcome successOO = metrics.time("validate", ValidationMetrics.PHASE_ENCODE, ig.getValue(), timing, () -> OperationOutcomeConverter.toR4(result.getOutcome()));
 		if(includeFormattedResource != null && includeFormattedResource.booleanValue()){
 			Extension formattedResourceExtension = new Extension();
 			formattedResourceExtension.setUrl("urn:local:formattedResourceBody");
@@ -300,6 +616,156 @@ public class ValidateProvider{
 		return successOO;
 	}
 	
+	@Operation(name = "$validate-batch", global = true)
+	public Parameters validateBatch(
+			@OperationParam(name = "ig", min = 1) StringType ig,
+			@OperationParam(name = "format") StringType format,
+			@OperationParam(name = "sct") StringType sct,
+			@OperationParam(name = "resource", min = 1, max = OperationParam.MAX_UNLIMITED) List<IBaseResource> resources,
+			ServletRequestDetails theRequestDetails) throws Exception {
+		return validateBatch(ig, format, sct, resources,
+				ValidationScheduler.Lane.fromHeader(theRequestDetails.getHeader(ValidationScheduler.PRIORITY_HEADER), ValidationScheduler.Lane.BULK));
+	}
+
+	public Parameters validateBatch(
+			StringType ig,
+			StringType format,
+			StringType sct,
+			List<IBaseResource> resources,
+			ValidationScheduler.Lane lane) throws Exception {
+		logger.info("Received $validate-batch operation call");
+		logger.info("igParam:"+ig.toString());
+		//Resources are re-encoded for validation; json unless xml is asked for so line and col match the client's format
+		IParser currentParser = jsonParser;
+		if(format != null && (format.getValue().equalsIgnoreCase("application/xml") || format.getValue().equalsIgnoreCase("application/fhir+xml"))) {
+			currentParser = xmlParser;
+		}
+		//A single Bundle is treated as a set of independent resources, one outcome per entry
+		List<IBaseResource> inputs = resources;
+		if(resources.size() == 1 && resources.get(0) instanceof Bundle) {
+			inputs = new ArrayList<IBaseResource>();
+			for(BundleEntryComponent entry:((Bundle)resources.get(0)).getEntry()) {
+				inputs.add(entry.getResource());
+			}
+		}
+		List<FileInfo> sources = new ArrayList<FileInfo>();
+		for(int i = 0; i < inputs.size(); i++) {
+			sources.add(new FileInfo()
+					.setFileName("resource-" + i + (currentParser == xmlParser ? ".xml" : ".json"))
+					.setFileContent(inputs.get(i) == null ? "" : currentParser.encodeResourceToString(inputs.get(i)))
+					.setFileType(currentParser == xmlParser ? "xml" : "json"));
+		}
+		CliContext cliContext = validationService.createCliContext(ig.getValue(), sct == null ? null : sct.getValue());
+		cliContext.setSv(validationService.determineVersion(cliContext));
+		String definitions = VersionUtilities.packageForVersion(cliContext.getSv()) + "#" + VersionUtilities.getCurrentVersion(cliContext.getSv());
+		logger.info("Validating "+sources.size()+" resources against "+definitions);
+		List<ValidatedSource> results = validationService.validateSourcesConcurrently(cliContext, definitions, sources, lane);
+		Parameters response = new Parameters();
+		for(int i = 0; i < results.size(); i++) {
+			ValidatedSource result = results.get(i);
+			OperationOutcome outcome;
+			if(inputs.get(i) == null) {
+				outcome = createErrorOperationOutcome("Bundle entry has no resource", currentParser);
+			}
+			else if(result.hasError()) {
+				logger.error("Validation of resource "+i+" failed", result.getError());
+				outcome = createErrorOperationOutcome("Validation failed:" + result.getError().getMessage(), currentParser);
+			}
+			else {
+				outcome = OperationOutcomeConverter.toR4(result.getOutcome());
+			}
+			ParametersParameterComponent outcomePart = response.addParameter().setName("outcome");
+			outcomePart.addPart().setName("index").setValue(new IntegerType(i));
+			if(inputs.get(i) != null && inputs.get(i).getIdElement().hasIdPart()) {
+				outcomePart.addPart().setName("id").setValue(new StringType(inputs.get(i).getIdElement().getIdPart()));
+			}
+			outcomePart.addPart().setName("outcome").setResource(outcome);
+		}
+		return response;
+	}
+
+	/**
+	 * Bulk validation of an application/fhir+ndjson body with ig and sct as query parameters. Lines are read
+	 * and validated as they arrive, and one OperationOutcome line per input line is streamed back in input
+	 * order, tagged with its line number. A final OperationOutcome line carries the total, valid, invalid and
+	 * failed counts.
+	 */
+	@Operation(name = "$validate-ndjson", manualRequest = true, manualResponse = true, global = true)
+	public void validateNdjson(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
+		logger.info("Received $validate-ndjson operation call");
+		String contentType = servletRequest.getContentType() == null ? "" : servletRequest.getContentType().split(";")[0].trim();
+		if(!contentType.equalsIgnoreCase("application/fhir+ndjson") && !contentType.equalsIgnoreCase("application/ndjson")
+				&& !contentType.equalsIgnoreCase("application/x-ndjson")) {
+			writeNdjsonError("Incorrect Content-Type Header. Expecting application/fhir+ndjson", HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE, servletResponse);
+			return;
+		}
+		String ig = servletRequest.getParameter("ig");
+		if(ig == null || ig.isEmpty()) {
+			writeNdjsonError("Missing ig query parameter", HttpStatus.SC_BAD_REQUEST, servletResponse);
+			return;
+		}
+		CliContext cliContext = validationService.createCliContext(ig, servletRequest.getParameter("sct"));
+		cliContext.setSv(validationService.determineVersion(cliContext));
+		String definitions = VersionUtilities.packageForVersion(cliContext.getSv()) + "#" + VersionUtilities.getCurrentVersion(cliContext.getSv());
+		ValidationScheduler.Lane lane = ValidationScheduler.Lane.fromHeader(servletRequest.getHeader(ValidationScheduler.PRIORITY_HEADER), ValidationScheduler.Lane.BULK);
+		servletResponse.setStatus(HttpStatus.SC_OK);
+		servletResponse.setCharacterEncoding("UTF-8");
+		servletResponse.setContentType("application/fhir+ndjson");
+		BufferedReader reader = new BufferedReader(new InputStreamReader(servletRequest.getInputStream(), StandardCharsets.UTF_8));
+		Writer writer = servletResponse.getWriter();
+		//Line numbers of the sources in flight, consumed in the same order the results come back
+		ArrayDeque<Integer> lineNumbers = new ArrayDeque<Integer>();
+		int[] lineCount = {0};
+		long[] counts = new long[3];
+		long total = validationService.validateSourcesStreaming(cliContext, definitions, () -> {
+			String line;
+			while((line = reader.readLine()) != null) {
+				lineCount[0]++;
+				if(!line.trim().isEmpty()) {
+					lineNumbers.add(lineCount[0]);
+					return new FileInfo().setFileName("line-" + lineCount[0] + ".json").setFileContent(line).setFileType("json");
+				}
+			}
+			return null;
+		}, lane, streamWindow, result -> {
+			OperationOutcome outcome;
+			if(result.hasError()) {
+				counts[2]++;
+				outcome = createErrorOperationOutcome("Validation failed:" + result.getError().getMessage(), ndjsonParser);
+			}
+			else {
+				outcome = OperationOutcomeConverter.toR4(result.getOutcome());
+				boolean invalid = outcome.getIssue().stream().anyMatch(i -> i.getSeverity() == IssueSeverity.ERROR || i.getSeverity() == IssueSeverity.FATAL);
+				counts[invalid ? 1 : 0]++;
+			}
+			outcome.addExtension(new Extension("urn:local:ndjson-line", new IntegerType(lineNumbers.poll())));
+			writer.write(ndjsonParser.encodeResourceToString(outcome));
+			writer.write('\n');
+			writer.flush();
+		});
+		OperationOutcome summary = new OperationOutcome();
+		summary.addIssue()
+		.setSeverity(IssueSeverity.INFORMATION)
+		.setCode(IssueType.INFORMATIONAL)
+		.setDiagnostics("Validated " + total + " resources: " + counts[0] + " valid, " + counts[1] + " with errors, " + counts[2] + " failed");
+		Extension summaryExtension = new Extension("urn:local:ndjson-summary");
+		summaryExtension.addExtension(new Extension("total", new IntegerType((int) total)));
+		summaryExtension.addExtension(new Extension("valid", new IntegerType((int) counts[0])));
+		summaryExtension.addExtension(new Extension("invalid", new IntegerType((int) counts[1])));
+		summaryExtension.addExtension(new Extension("failed", new IntegerType((int) counts[2])));
+		summary.addExtension(summaryExtension);
+		writer.write(ndjsonParser.encodeResourceToString(summary));
+		writer.write('\n');
+		writer.flush();
+		logger.info(summary.getIssueFirstRep().getDiagnostics());
+	}
+
+	private void writeNdjsonError(String message, int status, HttpServletResponse servletResponse) throws IOException {
+		servletResponse.setStatus(status);
+		servletResponse.setContentType("application/fhir+json");
+		servletResponse.getWriter().write(jsonParser.encodeResourceToString(createErrorOperationOutcome(message, jsonParser)));
+	}
+
 	private OperationOutcome createErrorOperationOutcome(String message,IParser currentParser) {
 		OperationOutcome oo = new OperationOutcome();
 		oo.addIssue()
@@ -0,0 +1,194 @@
+package edu.gatech.chai.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleLinkComponent;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * The references between the entries of a Bundle, used to validate a subset
+ * of its entries as a smaller Bundle that still validates them as the whole
+ * Bundle would: what they reference resolves, and they stay reachable from
+ * the first entry.
+ */
+public class BundleEntryGraph {
+
+	//Issue expressions and locations within an entry, e.g. Bundle.entry[3].resource.code
+	static final Pattern ENTRY_PATH = Pattern.compile("^Bundle\\.entry\\[(\\d+)\\]");
+	//The validator also reports the position as a location, e.g. Line[12] Col[5]
+	static final Pattern LINE_LOCATION = Pattern.compile("^Line\\[(\\d+)\\]( Col\\[\\d+\\])?$");
+
+	private final List<List<Integer>> references = new ArrayList<>();
+	private final List<List<Integer>> referencedBy = new ArrayList<>();
+
+	public BundleEntryGraph(FhirContext fhirContext, List<BundleEntryComponent> entries) {
+		Map<String, Integer> index = new HashMap<>();
+		for (int i = 0; i < entries.size(); i++) {
+			BundleEntryComponent entry = entries.get(i);
+			if (entry.getFullUrl() != null) {
+				index.put(entry.getFullUrl(), i);
+			}
+			Resource resource = entry.getResource();
+			if (resource != null && resource.getIdElement().hasIdPart()) {
+				index.putIfAbsent(resource.fhirType() + "/" + resource.getIdElement().getIdPart(), i);
+			}
+			referencedBy.add(new ArrayList<>());
+		}
+		FhirTerser terser = fhirContext.newTerser();
+		for (int i = 0; i < entries.size(); i++) {
+			TreeSet<Integer> referenced = new TreeSet<>();
+			Resource resource = entries.get(i).getResource();
+			if (resource != null) {
+				for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+					Integer match = resolve(index, reference.getReference());
+					if (match != null && match != i) {
+						referenced.add(match);
+					}
+				}
+			}
+			references.add(new ArrayList<>(referenced));
+			for (int target : referenced) {
+				referencedBy.get(target).add(i);
+			}
+		}
+	}
+
+	//Matches a reference by fullUrl, or by its trailing Type/id for relative and absolute server references
+	private static Integer resolve(Map<String, Integer> index, String target) {
+		if (target == null || target.startsWith("#")) {
+			return null;
+		}
+		int history = target.indexOf("/_history/");
+		if (history > 0) {
+			target = target.substring(0, history);
+		}
+		Integer match = index.get(target);
+		if (match == null && target.contains("/")) {
+			String[] parts = target.split("/");
+			match = index.get(parts[parts.length - 2] + "/" + parts[parts.length - 1]);
+		}
+		return match;
+	}
+
+	public int size() {
+		return references.size();
+	}
+
+	//Entries the entry references directly
+	public List<Integer> getReferences(int entry) {
+		return references.get(entry);
+	}
+
+	//Entries the entry references directly or through other entries, in Bundle order
+	public List<Integer> referenceClosure(int entry) {
+		TreeSet<Integer> closure = new TreeSet<>();
+		walk(entry, references, closure, -1);
+		closure.remove(entry);
+		return new ArrayList<>(closure);
+	}
+
+	//Entries that reference the entry directly or through other entries, in Bundle order
+	public List<Integer> referencedByClosure(int entry) {
+		TreeSet<Integer> closure = new TreeSet<>();
+		walk(entry, referencedBy, closure, -1);
+		closure.remove(entry);
+		return new ArrayList<>(closure);
+	}
+
+	/**
+	 * The entries, everything they reference directly or indirectly, every
+	 * entry from which they can be reached, and the first entry, in Bundle
+	 * order. What the first entry references is only followed when the first
+	 * entry is one of the entries, so its checks that look into its targets,
+	 * such as target profiles or slices discriminated by resolve(), see them
+	 * as in the whole Bundle. In a document, the context of the first entry
+	 * is then nearly the whole Bundle.
+	 */
+	public List<Integer> context(Collection<Integer> entries) {
+		TreeSet<Integer> included = new TreeSet<>();
+		if (size() > 0) {
+			included.add(0);
+		}
+		int stop = entries.contains(0) ? -1 : 0;
+		for (int entry : entries) {
+			walk(entry, references, included, stop);
+			walk(entry, referencedBy, included, -1);
+		}
+		return new ArrayList<>(included);
+	}
+
+	//Adds every entry reachable from start along the edges; the edges of stop are not followed
+	private static void walk(int start, List<List<Integer>> edges, TreeSet<Integer> visited, int stop) {
+		Deque<Integer> pending = new ArrayDeque<>();
+		pending.add(start);
+		TreeSet<Integer> seen = new TreeSet<>();
+		while (!pending.isEmpty()) {
+			int current = pending.poll();
+			if (!seen.add(current)) {
+				continue;
+			}
+			visited.add(current);
+			if (current != stop) {
+				pending.addAll(edges.get(current));
+			}
+		}
+	}
+
+	/**
+	 * A new Bundle with the Bundle-level elements of the given one and copies
+	 * of the given entries, in the given order. The given Bundle is not
+	 * modified.
+	 */
+	public static Bundle subset(Bundle bundle, List<Integer> included) {
+		Bundle subset = new Bundle();
+		if (bundle.hasIdElement()) {
+			subset.setIdElement(bundle.getIdElement().copy());
+		}
+		if (bundle.hasMeta()) {
+			subset.setMeta(bundle.getMeta().copy());
+		}
+		if (bundle.hasImplicitRulesElement()) {
+			subset.setImplicitRulesElement(bundle.getImplicitRulesElement().copy());
+		}
+		if (bundle.hasLanguageElement()) {
+			subset.setLanguageElement(bundle.getLanguageElement().copy());
+		}
+		if (bundle.hasIdentifier()) {
+			subset.setIdentifier(bundle.getIdentifier().copy());
+		}
+		if (bundle.hasTypeElement()) {
+			subset.setTypeElement(bundle.getTypeElement().copy());
+		}
+		if (bundle.hasTimestampElement()) {
+			subset.setTimestampElement(bundle.getTimestampElement().copy());
+		}
+		if (bundle.hasTotalElement()) {
+			subset.setTotalElement(bundle.getTotalElement().copy());
+		}
+		for (BundleLinkComponent link : bundle.getLink()) {
+			subset.addLink(link.copy());
+		}
+		if (bundle.hasSignature()) {
+			subset.setSignature(bundle.getSignature().copy());
+		}
+		List<BundleEntryComponent> entries = bundle.getEntry();
+		for (int i : included) {
+			subset.addEntry(entries.get(i).copy());
+		}
+		return subset;
+	}
+}
@@ -0,0 +1,258 @@
+package edu.gatech.chai.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Remembers the issues reported for each entry of a validated Bundle, so a
+ * resubmitted Bundle only has its changed entries validated again.
+ *
+ * An entry is identified by a hash of its normalized content (compact json)
+ * together with the hashes of the entries it references, directly or
+ * through other entries, so an entry is also revalidated when something it
+ * points at changes. The fullUrls and ids of the entries that reference it
+ * are part of the key too, so an entry that is no longer referenced, or is
+ * referenced from elsewhere, is revalidated for reachability. The Bundle's own
+ * issues are keyed by its skeleton: everything but the entry resources.
+ *
+ * The first submission of a skeleton is validated whole and split into
+ * per-entry issues. Later submissions validate a reduced Bundle holding the
+ * changed entries, the entries they reference, the entries that lead to them
+ * and the first entry, plus everything a changed first entry references
+ * (see BundleEntryGraph), so references and document reachability still
+ * resolve; only the changed entries' issues are kept from that run. This is
+ * only sound for rule sets whose checks are local to an entry and its
+ * references, which is why callers opt in per request.
+ *
+ * Line and column numbers refer to the document that was validated, so they
+ * are removed from every outcome, so the first submission and a later
+ * identical one report the same issues.
+ */
+public class BundleEntryMemo {
+
+	//Validates a (possibly reduced) Bundle and returns the validator's outcome, which the memo only reads
+	@FunctionalInterface
+	public interface BundleValidator {
+		OperationOutcome validate(Bundle bundle) throws Exception;
+	}
+
+	private static final String ANY_ENTRY = "Bundle.entry[*]";
+
+	private final FhirContext fhirContext = FhirContext.forR4Cached();
+	private final int maxEntries;
+	private final LinkedHashMap<String, List<OperationOutcomeIssueComponent>> issues = new LinkedHashMap<>(16, 0.75f, true);
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong validated = new AtomicLong();
+
+	public BundleEntryMemo(int maxEntries) {
+		this.maxEntries = Math.max(0, maxEntries);
+	}
+
+	public boolean isEnabled() {
+		return maxEntries > 0;
+	}
+
+	public OperationOutcome validate(EngineKey engineKey, List<String> profiles, Bundle bundle, BundleValidator validator) throws Exception {
+		List<BundleEntryComponent> entries = bundle.getEntry();
+		int count = entries.size();
+		IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+		String scope = engineKey.toString() + "|" + engineKey.getFlags() + "|" + profiles + "|";
+
+		String[] entryIds = new String[count];
+		String[] entryHashes = new String[count];
+		for (int i = 0; i < count; i++) {
+			entryIds[i] = identity(entries.get(i));
+			entryHashes[i] = Hashing.sha256Hex(String.valueOf(entries.get(i).getFullUrl()) + "\n"
+				+ (entries.get(i).getResource() == null ? "" : parser.encodeResourceToString(entries.get(i).getResource())));
+		}
+		BundleEntryGraph graph = new BundleEntryGraph(fhirContext, entries);
+		String[] entryKeys = new String[count];
+		for (int i = 0; i < count; i++) {
+			TreeSet<String> referenced = new TreeSet<>();
+			for (int j : graph.referenceClosure(i)) {
+				referenced.add(entryHashes[j]);
+			}
+			//Only who references the entry matters for reachability, not what they contain
+			TreeSet<String> referencedBy = new TreeSet<>();
+			for (int j : graph.referencedByClosure(i)) {
+				referencedBy.add(entryIds[j]);
+			}
+			entryKeys[i] = Hashing.sha256Hex(scope + "entry|" + entryHashes[i] + "|" + String.join(",", referenced)
+				+ "|" + String.join(",", referencedBy));
+		}
+		String bundleKey = Hashing.sha256Hex(scope + "bundle|" + skeleton(bundle, parser, entryIds));
+
+		List<OperationOutcomeIssueComponent> bundleIssues = lookup(bundleKey);
+		if (bundleIssues == null) {
+			//New or restructured Bundle: validate it whole and remember each entry's issues
+			OperationOutcome outcome = validator.validate(bundle);
+			Map<Integer, List<OperationOutcomeIssueComponent>> byEntry = splitByEntry(outcome, count);
+			for (int i = 0; i < count; i++) {
+				store(entryKeys[i], byEntry.getOrDefault(i, Collections.emptyList()));
+			}
+			store(bundleKey, byEntry.getOrDefault(-1, Collections.emptyList()));
+			validated.addAndGet(count);
+			//The validator's outcome may be a cached result shared with other requests, so it is not modified
+			OperationOutcome returned = outcome.copy();
+			for (OperationOutcomeIssueComponent issue : returned.getIssue()) {
+				removePosition(issue);
+			}
+			return returned;
+		}
+
+		List<List<OperationOutcomeIssueComponent>> entryIssues = new ArrayList<>();
+		List<Integer> changed = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			List<OperationOutcomeIssueComponent> cached = lookup(entryKeys[i]);
+			entryIssues.add(cached);
+			if (cached == null) {
+				changed.add(i);
+			}
+		}
+		if (!changed.isEmpty()) {
+			List<Integer> included = graph.context(changed);
+			Bundle reduced = BundleEntryGraph.subset(bundle, included);
+			Map<Integer, List<OperationOutcomeIssueComponent>> byEntry = splitByEntry(validator.validate(reduced), included.size());
+			Map<Integer, Integer> position = new HashMap<>();
+			for (int p = 0; p < included.size(); p++) {
+				position.put(included.get(p), p);
+			}
+			for (int i : changed) {
+				List<OperationOutcomeIssueComponent> found = byEntry.getOrDefault(position.get(i), Collections.emptyList());
+				store(entryKeys[i], found);
+				entryIssues.set(i, relativeCopies(found));
+			}
+			validated.addAndGet(changed.size());
+		}
+		reused.addAndGet(count - changed.size());
+
+		OperationOutcome merged = new OperationOutcome();
+		for (OperationOutcomeIssueComponent issue : bundleIssues) {
+			merged.addIssue(issue);
+		}
+		for (int i = 0; i < count; i++) {
+			for (OperationOutcomeIssueComponent issue : entryIssues.get(i)) {
+				merged.addIssue(atEntry(issue, i));
+			}
+		}
+		return merged;
+	}
+
+	//Everything about the Bundle except the content of its entries
+	protected String skeleton(Bundle bundle, IParser parser, String[] entryIds) {
+		Bundle skeleton = BundleEntryGraph.subset(bundle, Collections.emptyList());
+		return parser.encodeResourceToString(skeleton) + "\n" + String.join(",", entryIds);
+	}
+
+	//The entry's fullUrl and resource type and id
+	private static String identity(BundleEntryComponent entry) {
+		Resource resource = entry.getResource();
+		return entry.getFullUrl() + " " + (resource == null ? "-" : resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+	}
+
+	//Issues per entry index of the validated Bundle, with -1 for the Bundle's own issues
+	protected Map<Integer, List<OperationOutcomeIssueComponent>> splitByEntry(OperationOutcome outcome, int count) {
+		Map<Integer, List<OperationOutcomeIssueComponent>> byEntry = new HashMap<>();
+		for (OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+			int entry = -1;
+			for (StringType expression : issue.getExpression()) {
+				Matcher matcher = BundleEntryGraph.ENTRY_PATH.matcher(expression.getValue());
+				if (matcher.find()) {
+					entry = Integer.parseInt(matcher.group(1));
+					break;
+				}
+			}
+			byEntry.computeIfAbsent(entry >= 0 && entry < count ? entry : -1, k -> new ArrayList<>()).add(issue);
+		}
+		return byEntry;
+	}
+
+	private synchronized List<OperationOutcomeIssueComponent> lookup(String key) {
+		List<OperationOutcomeIssueComponent> stored = issues.get(key);
+		return stored == null ? null : copies(stored);
+	}
+
+	//Stores entry-independent copies: entry paths as Bundle.entry[*] and no line or column
+	private synchronized void store(String key, List<OperationOutcomeIssueComponent> found) {
+		issues.put(key, relativeCopies(found));
+		Iterator<String> eldest = issues.keySet().iterator();
+		while (issues.size() > maxEntries && eldest.hasNext()) {
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	private List<OperationOutcomeIssueComponent> relativeCopies(List<OperationOutcomeIssueComponent> found) {
+		List<OperationOutcomeIssueComponent> relative = new ArrayList<>();
+		for (OperationOutcomeIssueComponent issue : found) {
+			OperationOutcomeIssueComponent copy = removePosition(issue.copy());
+			for (StringType expression : copy.getExpression()) {
+				expression.setValue(BundleEntryGraph.ENTRY_PATH.matcher(expression.getValue()).replaceFirst(Matcher.quoteReplacement(ANY_ENTRY)));
+			}
+			for (StringType location : copy.getLocation()) {
+				location.setValue(BundleEntryGraph.ENTRY_PATH.matcher(location.getValue()).replaceFirst(Matcher.quoteReplacement(ANY_ENTRY)));
+			}
+			relative.add(copy);
+		}
+		return relative;
+	}
+
+	//Removes the line and column, as extensions and as a Line[..] location
+	private static OperationOutcomeIssueComponent removePosition(OperationOutcomeIssueComponent issue) {
+		issue.removeExtension(ToolingExtensions.EXT_ISSUE_LINE);
+		issue.removeExtension(ToolingExtensions.EXT_ISSUE_COL);
+		issue.getLocation().removeIf(location -> BundleEntryGraph.LINE_LOCATION.matcher(location.getValue()).matches());
+		return issue;
+	}
+
+	private static List<OperationOutcomeIssueComponent> copies(List<OperationOutcomeIssueComponent> stored) {
+		List<OperationOutcomeIssueComponent> copies = new ArrayList<>();
+		for (OperationOutcomeIssueComponent issue : stored) {
+			copies.add(issue.copy());
+		}
+		return copies;
+	}
+
+	private static OperationOutcomeIssueComponent atEntry(OperationOutcomeIssueComponent issue, int entry) {
+		String path = "Bundle.entry[" + entry + "]";
+		for (StringType expression : issue.getExpression()) {
+			expression.setValue(expression.getValue().replace(ANY_ENTRY, path));
+		}
+		for (StringType location : issue.getLocation()) {
+			location.setValue(location.getValue().replace(ANY_ENTRY, path));
+		}
+		return issue;
+	}
+
+	public synchronized int size() {
+		return issues.size();
+	}
+
+	//Entries whose issues came from the memo
+	public long getReused() {
+		return reused.get();
+	}
+
+	public long getValidated() {
+		return validated.get();
+	}
+}
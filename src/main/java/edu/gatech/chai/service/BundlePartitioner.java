@@ -0,0 +1,262 @@
+package edu.gatech.chai.service;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r5.model.Extension;
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.hl7.fhir.validation.cli.model.FileInfo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Splits a large Bundle into partitions of contiguous entries that can be
+ * validated at the same time, and merges their outcomes back into the outcome
+ * of the whole Bundle.
+ *
+ * A partition is validated as a Bundle holding the entries it owns plus the
+ * entries they reference, the entries that lead to them and the first entry
+ * (see BundleEntryGraph), so references resolve and document reachability
+ * holds as in the whole Bundle. The first partition also holds everything
+ * the first entry leads to, so the first entry's checks see its real targets.
+ * When that is the whole Bundle, as in a document whose first entry
+ * references every other entry, the Bundle is not split. Issues a partition
+ * reports for entries it does not own are dropped; the owning partition
+ * reports them. The Bundle's own issues come from the first partition.
+ *
+ * Partitions are encoded with the same parser as the whole Bundle, so an
+ * entry has the same layout and indentation in both documents: paths are
+ * mapped back by entry index, lines by the difference between where the entry
+ * starts in either document, and columns are unchanged. Checks that span
+ * entries which share no references, such as duplicate fullUrls across
+ * partitions, are not seen, which is why callers opt in per request.
+ */
+public class BundlePartitioner {
+
+	//Encodes a Bundle the way the whole Bundle was encoded for validation
+	@FunctionalInterface
+	public interface BundleEncoder {
+		String encode(Bundle bundle) throws Exception;
+	}
+
+	public static class Partition {
+		private final int from;
+		private final int to;
+		private final List<Integer> included;
+		private final FileInfo source;
+
+		Partition(int from, int to, List<Integer> included, FileInfo source) {
+			this.from = from;
+			this.to = to;
+			this.included = included;
+			this.source = source;
+		}
+
+		//Whether the partition reports the issues of the entry with this index in the whole Bundle
+		public boolean owns(int entry) {
+			return entry >= from && entry < to;
+		}
+
+		//Index in the whole Bundle of each entry of the partition's Bundle
+		public List<Integer> getIncluded() {
+			return included;
+		}
+
+		public FileInfo getSource() {
+			return source;
+		}
+	}
+
+
+	private final FhirContext fhirContext = FhirContext.forR4Cached();
+	private final int minEntries;
+
+	public BundlePartitioner(int minEntries) {
+		this.minEntries = Math.max(0, minEntries);
+	}
+
+	public boolean isEnabled() {
+		return minEntries > 0;
+	}
+
+	/**
+	 * Up to maxPartitions partitions of at least minEntries entries each, or
+	 * an empty list when the Bundle is too small to be worth splitting or the
+	 * first partition would hold all of it.
+	 */
+	public List<Partition> partition(Bundle bundle, int maxPartitions, FileInfo source, BundleEncoder encoder) throws Exception {
+		List<Partition> partitions = new ArrayList<>();
+		int count = bundle.getEntry().size();
+		int partitionCount = isEnabled() ? Math.min(maxPartitions, count / minEntries) : 0;
+		if (partitionCount < 2) {
+			return partitions;
+		}
+		BundleEntryGraph graph = new BundleEntryGraph(fhirContext, bundle.getEntry());
+		int size = (count + partitionCount - 1) / partitionCount;
+		for (int from = 0; from < count; from += size) {
+			int to = Math.min(count, from + size);
+			List<Integer> owned = new ArrayList<>();
+			for (int i = from; i < to; i++) {
+				owned.add(i);
+			}
+			List<Integer> included = graph.context(owned);
+			if (from == 0 && included.size() == count) {
+				//The first partition would validate the whole Bundle anyway
+				return new ArrayList<>();
+			}
+			FileInfo partitionSource = new FileInfo()
+					.setFileName(source.getFileName())
+					.setFileContent(encoder.encode(BundleEntryGraph.subset(bundle, included)))
+					.setFileType(source.getFileType());
+			partitions.add(new Partition(from, to, included, partitionSource));
+		}
+		return partitions;
+	}
+
+	/**
+	 * The outcome of the whole Bundle from the outcome of each partition, in
+	 * partition order. The partition outcomes are left untouched, since they
+	 * may be shared with the result cache.
+	 */
+	public OperationOutcome merge(FileInfo source, List<Partition> partitions, List<OperationOutcome> outcomes) throws Exception {
+		int[] wholeLines = entryLines(source);
+		OperationOutcome merged = new OperationOutcome();
+		for (int p = 0; p < partitions.size(); p++) {
+			Partition partition = partitions.get(p);
+			int[] partitionLines = entryLines(partition.getSource());
+			if (outcomes.get(p).hasExtension(ValidationLimits.EXT_MAX_ERRORS_REACHED)) {
+				ValidationLimits.markStopped(merged);
+			}
+			for (OperationOutcomeIssueComponent issue : outcomes.get(p).getIssue()) {
+				int entry = entryIndex(issue);
+				if (entry < 0 || entry >= partition.getIncluded().size()) {
+					if (p == 0) {
+						merged.addIssue(bundleIssue(issue.copy(), partitionLines));
+					}
+					continue;
+				}
+				int original = partition.getIncluded().get(entry);
+				if (partition.owns(original)) {
+					Integer lineShift = original < wholeLines.length && entry < partitionLines.length ? wholeLines[original] - partitionLines[entry] : null;
+					merged.addIssue(entryIssue(issue.copy(), original, lineShift));
+				}
+			}
+		}
+		return merged;
+	}
+
+	private static int entryIndex(OperationOutcomeIssueComponent issue) {
+		for (StringType expression : issue.getExpression()) {
+			Matcher matcher = BundleEntryGraph.ENTRY_PATH.matcher(expression.getValue());
+			if (matcher.find()) {
+				return Integer.parseInt(matcher.group(1));
+			}
+		}
+		return -1;
+	}
+
+	//Moves an issue to the entry's index in the whole Bundle; a null lineShift drops the line and column
+	private static OperationOutcomeIssueComponent entryIssue(OperationOutcomeIssueComponent issue, int original, Integer lineShift) {
+		String path = "Bundle.entry[" + original + "]";
+		String replacement = Matcher.quoteReplacement(path);
+		for (StringType expression : issue.getExpression()) {
+			expression.setValue(BundleEntryGraph.ENTRY_PATH.matcher(expression.getValue()).replaceFirst(replacement));
+		}
+		for (StringType location : issue.getLocation()) {
+			location.setValue(BundleEntryGraph.ENTRY_PATH.matcher(location.getValue()).replaceFirst(replacement));
+		}
+		if (lineShift == null) {
+			return withoutPosition(issue);
+		}
+		Extension line = issue.getExtensionByUrl(ToolingExtensions.EXT_ISSUE_LINE);
+		if (line != null && line.getValue() instanceof IntegerType) {
+			line.setValue(new IntegerType(((IntegerType) line.getValue()).getValue() + lineShift));
+		}
+		for (StringType location : issue.getLocation()) {
+			Matcher matcher = BundleEntryGraph.LINE_LOCATION.matcher(location.getValue());
+			if (matcher.matches()) {
+				location.setValue("Line[" + (Integer.parseInt(matcher.group(1)) + lineShift) + "]" + (matcher.group(2) == null ? "" : matcher.group(2)));
+			}
+		}
+		return issue;
+	}
+
+	//Lines before the first entry are the same in both documents; anything after it is not mapped
+	private static OperationOutcomeIssueComponent bundleIssue(OperationOutcomeIssueComponent issue, int[] partitionLines) {
+		Extension line = issue.getExtensionByUrl(ToolingExtensions.EXT_ISSUE_LINE);
+		if (line != null && line.getValue() instanceof IntegerType && partitionLines.length > 0
+				&& ((IntegerType) line.getValue()).getValue() >= partitionLines[0]) {
+			return withoutPosition(issue);
+		}
+		return issue;
+	}
+
+	private static OperationOutcomeIssueComponent withoutPosition(OperationOutcomeIssueComponent issue) {
+		issue.removeExtension(ToolingExtensions.EXT_ISSUE_LINE);
+		issue.removeExtension(ToolingExtensions.EXT_ISSUE_COL);
+		issue.getLocation().removeIf(location -> BundleEntryGraph.LINE_LOCATION.matcher(location.getValue()).matches());
+		return issue;
+	}
+
+	//The line each entry of an encoded Bundle starts on, in entry order
+	protected static int[] entryLines(FileInfo source) throws Exception {
+		List<Integer> lines = new ArrayList<>();
+		if ("xml".equalsIgnoreCase(source.getFileType())) {
+			XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(source.getFileContent()));
+			try {
+				int depth = 0;
+				while (reader.hasNext()) {
+					int event = reader.next();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						depth++;
+						if (depth == 2 && "entry".equals(reader.getLocalName())) {
+							lines.add(reader.getLocation().getLineNumber());
+						}
+					}
+					else if (event == XMLStreamConstants.END_ELEMENT) {
+						depth--;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		else {
+			try (JsonParser parser = new JsonFactory().createParser(source.getFileContent())) {
+				parser.nextToken();
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					if (parser.nextToken() == JsonToken.START_ARRAY && "entry".equals(field)) {
+						while (parser.nextToken() == JsonToken.START_OBJECT) {
+							lines.add(parser.getTokenLocation().getLineNr());
+							parser.skipChildren();
+						}
+					}
+					else {
+						parser.skipChildren();
+					}
+				}
+			}
+		}
+		int[] result = new int[lines.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = lines.get(i);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,38 @@
+package edu.gatech.chai.service;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.utils.validation.IResourceValidator;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.validation.cli.services.StandAloneValidatorFetcher;
+
+/**
+ * StandAloneValidatorFetcher that resolves canonical resources through the
+ * shared CanonicalResourceCache, so a canonical fetched over the network for
+ * one engine is not fetched again for the next.
+ */
+public class CachingValidatorFetcher extends StandAloneValidatorFetcher {
+
+	private final CanonicalResourceCache cache;
+
+	public CachingValidatorFetcher(FilesystemPackageCacheManager pcm, IWorkerContext context, StandAloneValidatorFetcher.IPackageInstaller installer,
+			CanonicalResourceCache cache) throws IOException {
+		super(pcm, context, installer);
+		this.cache = cache;
+	}
+
+	@Override
+	public CanonicalResource fetchCanonicalResource(IResourceValidator validator, String url) throws URISyntaxException {
+		Resource cached = cache.get(url);
+		if (cached instanceof CanonicalResource) {
+			return (CanonicalResource) cached;
+		}
+		CanonicalResource fetched = super.fetchCanonicalResource(validator, url);
+		cache.put(url, fetched);
+		return fetched;
+	}
+}
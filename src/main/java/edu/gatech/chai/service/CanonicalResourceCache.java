@@ -0,0 +1,176 @@
+package edu.gatech.chai.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Profiles and other canonical resources fetched for validation, shared by
+ * every engine so each is fetched and parsed once per process rather than
+ * once per engine.
+ *
+ * Entries are keyed by canonical URL, with |version when the request named
+ * one, and expire after the TTL so a republished profile is picked up. The
+ * memory tier keeps the most recently used entries; the optional disk tier
+ * keeps every entry as R5 json across restarts. Callers always get their own
+ * copy, since an engine's context changes the resources it holds, e.g. by
+ * generating snapshots.
+ */
+public class CanonicalResourceCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(CanonicalResourceCache.class);
+
+	private static class CachedResource {
+		final Resource resource;
+		final long storedAt;
+
+		CachedResource(Resource resource, long storedAt) {
+			this.resource = resource;
+			this.storedAt = storedAt;
+		}
+	}
+
+	private final LinkedHashMap<String, CachedResource> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final File root;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public CanonicalResourceCache(int maxEntries, int ttlMinutes, String directory) {
+		this.maxEntries = Math.max(0, maxEntries);
+		this.ttlMillis = TimeUnit.MINUTES.toMillis(Math.max(1, ttlMinutes));
+		this.root = directory == null || directory.isEmpty() ? null : new File(directory);
+	}
+
+	public boolean isEnabled() {
+		return maxEntries > 0;
+	}
+
+	public static String key(String url, String version) {
+		return version == null || version.isEmpty() ? url : url + "|" + version;
+	}
+
+	/**
+	 * A copy of the cached resource, or null when it is not cached or has
+	 * expired. The disk tier is consulted when memory has no entry.
+	 */
+	public Resource get(String canonical) {
+		if (!isEnabled() || canonical == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			CachedResource cached = entries.get(canonical);
+			if (cached != null) {
+				if (now - cached.storedAt < ttlMillis) {
+					hits.incrementAndGet();
+					return cached.resource.copy();
+				}
+				entries.remove(canonical);
+			}
+		}
+		CachedResource stored = readFromDisk(canonical, now);
+		if (stored != null) {
+			diskHits.incrementAndGet();
+			remember(canonical, stored);
+			return stored.resource.copy();
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	//Caches a copy of the resource, so later changes by the caller's engine are not shared
+	public void put(String canonical, Resource resource) {
+		if (!isEnabled() || canonical == null || resource == null) {
+			return;
+		}
+		CachedResource cached = new CachedResource(resource.copy(), System.currentTimeMillis());
+		remember(canonical, cached);
+		writeToDisk(canonical, cached.resource);
+	}
+
+	private synchronized void remember(String canonical, CachedResource cached) {
+		entries.put(canonical, cached);
+		Iterator<Map.Entry<String, CachedResource>> eldest = entries.entrySet().iterator();
+		while (entries.size() > maxEntries && eldest.hasNext()) {
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	private CachedResource readFromDisk(String canonical, long now) {
+		if (root == null) {
+			return null;
+		}
+		File file = fileFor(canonical);
+		if (!file.exists()) {
+			return null;
+		}
+		if (now - file.lastModified() >= ttlMillis) {
+			file.delete();
+			return null;
+		}
+		try (InputStream in = new FileInputStream(file)) {
+			return new CachedResource(new JsonParser().parse(in), file.lastModified());
+		} catch (Exception e) {
+			logger.warn("Could not read cached canonical " + canonical + " from " + file, e);
+			file.delete();
+			return null;
+		}
+	}
+
+	private void writeToDisk(String canonical, Resource resource) {
+		if (root == null) {
+			return;
+		}
+		File file = fileFor(canonical);
+		File temp = new File(root, file.getName() + ".tmp" + Thread.currentThread().getId());
+		try {
+			Files.createDirectories(root.toPath());
+			try (OutputStream out = new FileOutputStream(temp)) {
+				new JsonParser().compose(out, resource);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.warn("Could not write cached canonical " + canonical + " to " + file, e);
+			temp.delete();
+		}
+	}
+
+	protected File fileFor(String canonical) {
+		return new File(root, Hashing.sha256Hex(canonical) + ".json");
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
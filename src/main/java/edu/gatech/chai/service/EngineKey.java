@@ -0,0 +1,100 @@
+package edu.gatech.chai.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.hl7.fhir.validation.cli.model.CliContext;
+
+/**
+ * Identifies a ValidationEngine by everything that changes how it is built:
+ * the IG list, the FHIR version, the SNOMED edition, the terminology server
+ * and the engine flags copied from the CliContext in buildValidationEngine.
+ * Two requests with equal keys can share the same engines.
+ */
+public final class EngineKey {
+
+	private final List<String> igs;
+	private final String version;
+	private final String snomedCT;
+	private final String txServer;
+	private final String flags;
+
+	public EngineKey(List<String> igs, String version, String snomedCT, String txServer, String flags) {
+		this.igs = Collections.unmodifiableList(new ArrayList<String>(igs));
+		this.version = version;
+		this.snomedCT = snomedCT;
+		this.txServer = txServer;
+		this.flags = flags;
+	}
+
+	public static EngineKey fromCliContext(CliContext cliContext) {
+		StringBuilder flags = new StringBuilder();
+		flags.append("level=").append(cliContext.getLevel())
+			.append(";native=").append(cliContext.isDoNative())
+			.append(";hintMS=").append(cliContext.isHintAboutNonMustSupport())
+			.append(";ext=").append(cliContext.getExtensions())
+			.append(";lang=").append(cliContext.getLang())
+			.append(";restRefs=").append(cliContext.isAssumeValidRestReferences())
+			.append(";refMsgs=").append(cliContext.isShowMessagesFromReferences())
+			.append(";noExtBind=").append(cliContext.isNoExtensibleBindingMessages())
+			.append(";noInv=").append(cliContext.isNoInvariants())
+			.append(";security=").append(cliContext.isSecurityChecks())
+			.append(";crumbs=").append(cliContext.isCrumbTrails())
+			.append(";exampleUrls=").append(cliContext.isAllowExampleUrls())
+			.append(";jurisdiction=").append(cliContext.getJurisdiction());
+		return new EngineKey(cliContext.getIgs(), cliContext.getSv(), cliContext.getSnomedCTCode(), cliContext.getTxServer(), flags.toString());
+	}
+
+	public List<String> getIgs() {
+		return igs;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public String getSnomedCT() {
+		return snomedCT;
+	}
+
+	public String getTxServer() {
+		return txServer;
+	}
+
+	public String getFlags() {
+		return flags;
+	}
+
+	//Short stable id of the whole key, e.g. for metric tags that must not collide like the ig tag does
+	public String getId() {
+		return Hashing.sha256Hex(toString() + "|" + flags).substring(0, 12);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof EngineKey)) {
+			return false;
+		}
+		EngineKey other = (EngineKey) o;
+		return igs.equals(other.igs)
+			&& Objects.equals(version, other.version)
+			&& Objects.equals(snomedCT, other.snomedCT)
+			&& Objects.equals(txServer, other.txServer)
+			&& Objects.equals(flags, other.flags);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(igs, version, snomedCT, txServer, flags);
+	}
+
+	@Override
+	public String toString() {
+		return "EngineKey[igs=" + igs + ", version=" + version + ", sct=" + snomedCT + ", tx=" + txServer + "]";
+	}
+}
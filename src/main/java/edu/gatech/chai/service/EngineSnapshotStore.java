@@ -0,0 +1,200 @@
+package edu.gatech.chai.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.hl7.fhir.r5.context.ContextUtilities;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.VersionUtil;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the snapshots that ValidationEngine.prepare() generates on disk, so
+ * an engine rebuilt after a restart skips snapshot generation.
+ *
+ * A ValidationEngine cannot be written out as a whole, so packages are still
+ * loaded on every build. What is kept is the expensive part: each profile
+ * that had no snapshot when it was loaded is stored with the snapshot prepare
+ * gave it. Each engine configuration gets a folder holding those profiles and
+ * a manifest of what they were built from: the format version, the validator
+ * version, the loaded package summary, the install stamp of the IG packages
+ * and the engine settings. A snapshot is only restored when all of these
+ * match the engine being built; anything else is a full build that replaces
+ * the stored snapshot.
+ */
+public class EngineSnapshotStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(EngineSnapshotStore.class);
+
+	//Bump when the layout of the snapshot folder changes
+	public static final int FORMAT_VERSION = 1;
+
+	private static final String MANIFEST = "manifest.properties";
+	private static final String STRUCTURES = "structures.ndjson.gz";
+
+	private final File root;
+
+	public EngineSnapshotStore(String directory) {
+		this.root = directory == null || directory.isEmpty() ? null : new File(directory);
+	}
+
+	public boolean isEnabled() {
+		return root != null;
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	//Profiles prepare() would generate a snapshot for
+	public static List<StructureDefinition> withoutSnapshots(ValidationEngine engine) {
+		List<StructureDefinition> structures = new ArrayList<>();
+		for (StructureDefinition sd : new ContextUtilities(engine.getContext()).allStructures()) {
+			if (!sd.hasSnapshot()) {
+				structures.add(sd);
+			}
+		}
+		return structures;
+	}
+
+	/**
+	 * Copies stored snapshots onto the given profiles, which must come from
+	 * withoutSnapshots before prepare() runs. Returns false, leaving the engine
+	 * untouched, when there is no snapshot for the configuration or it was
+	 * built from different packages or a different validator.
+	 */
+	public boolean restore(EngineKey key, String definitions, ValidationEngine engine, List<StructureDefinition> unprepared) {
+		File folder = folderFor(key, definitions);
+		File manifestFile = new File(folder, MANIFEST);
+		if (!manifestFile.exists()) {
+			return false;
+		}
+		try {
+			Properties stored = readManifest(manifestFile);
+			Properties expected = manifest(key, definitions, engine, 0);
+			for (String property : new String[] {"format", "validator", "engine", "definitions", "packages", "stamp"}) {
+				if (!Objects.equals(stored.getProperty(property), expected.getProperty(property))) {
+					logger.info("Engine snapshot for " + key + " is stale (" + property + " changed), rebuilding");
+					return false;
+				}
+			}
+			Map<String, StructureDefinition> byCanonical = new HashMap<>();
+			for (StructureDefinition sd : unprepared) {
+				byCanonical.put(canonical(sd), sd);
+			}
+			int applied = 0;
+			JsonParser parser = new JsonParser();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new FileInputStream(new File(folder, STRUCTURES))), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.isEmpty()) {
+						continue;
+					}
+					StructureDefinition storedSd = (StructureDefinition) parser.parse(new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)));
+					StructureDefinition target = byCanonical.get(canonical(storedSd));
+					if (target != null && !target.hasSnapshot()) {
+						target.setSnapshot(storedSd.getSnapshot());
+						applied++;
+					}
+				}
+			}
+			logger.info("Restored " + applied + " of " + unprepared.size() + " profile snapshots for " + key + " from " + folder);
+			return true;
+		} catch (Exception e) {
+			logger.warn("Could not restore engine snapshot from " + folder + ", rebuilding", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the snapshots prepare() generated for the given profiles. The
+	 * manifest is moved into place last, so a crash mid-write leaves no
+	 * snapshot rather than a partial one.
+	 */
+	public synchronized void save(EngineKey key, String definitions, ValidationEngine engine, List<StructureDefinition> prepared) {
+		File folder = folderFor(key, definitions);
+		try {
+			Files.createDirectories(folder.toPath());
+			File manifestFile = new File(folder, MANIFEST);
+			Files.deleteIfExists(manifestFile.toPath());
+
+			File structuresTemp = new File(folder, STRUCTURES + ".tmp");
+			int written = 0;
+			JsonParser parser = new JsonParser();
+			try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+				new GZIPOutputStream(new FileOutputStream(structuresTemp)), StandardCharsets.UTF_8))) {
+				for (StructureDefinition sd : prepared) {
+					if (sd.hasSnapshot()) {
+						writer.write(parser.composeString(sd));
+						writer.newLine();
+						written++;
+					}
+				}
+			}
+			Files.move(structuresTemp.toPath(), new File(folder, STRUCTURES).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			File manifestTemp = new File(folder, MANIFEST + ".tmp");
+			try (OutputStream out = new FileOutputStream(manifestTemp)) {
+				manifest(key, definitions, engine, written).store(out, "Engine snapshot for " + key);
+			}
+			Files.move(manifestTemp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			logger.info("Saved " + written + " profile snapshots for " + key + " to " + folder);
+		} catch (Exception e) {
+			logger.warn("Could not save engine snapshot to " + folder, e);
+		}
+	}
+
+	protected Properties manifest(EngineKey key, String definitions, ValidationEngine engine, int structures) throws IOException {
+		Properties manifest = new Properties();
+		manifest.setProperty("format", Integer.toString(FORMAT_VERSION));
+		manifest.setProperty("validator", String.valueOf(VersionUtil.getVersion()));
+		manifest.setProperty("engine", key.toString() + " " + key.getFlags());
+		manifest.setProperty("definitions", String.valueOf(definitions));
+		manifest.setProperty("packages", String.valueOf(engine.getContext().loadedPackageSummary()));
+		String packageFolder = engine.getPcm() == null ? null : engine.getPcm().getFolder();
+		manifest.setProperty("stamp", Long.toString(VersionResolutionCache.packageStamp(key.getIgs(), packageFolder)));
+		manifest.setProperty("structures", Integer.toString(structures));
+		manifest.setProperty("created", Long.toString(System.currentTimeMillis()));
+		return manifest;
+	}
+
+	protected Properties readManifest(File manifestFile) throws IOException {
+		Properties manifest = new Properties();
+		try (InputStream in = new FileInputStream(manifestFile)) {
+			manifest.load(in);
+		}
+		return manifest;
+	}
+
+	protected File folderFor(EngineKey key, String definitions) {
+		return new File(root, Hashing.sha256Hex(key.toString() + "|" + key.getFlags() + "|" + definitions));
+	}
+
+	private static String canonical(StructureDefinition sd) {
+		return sd.getUrl() + "|" + sd.getVersion();
+	}
+}
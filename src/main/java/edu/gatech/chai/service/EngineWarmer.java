@@ -0,0 +1,103 @@
+package edu.gatech.chai.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.utilities.TimeTracker;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.validation.cli.model.CliContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds engines for a list of IGs in the background so the first $validate
+ * for those IGs does not pay the full engine build. Tracks a warm state per IG
+ * for the readiness operation.
+ */
+public class EngineWarmer {
+
+	private static final Logger logger = LoggerFactory.getLogger(EngineWarmer.class);
+
+	public enum WarmState { PENDING, WARMING, READY, FAILED }
+
+	private final MyValidationService validationService;
+	private final Map<String, WarmState> states = Collections.synchronizedMap(new LinkedHashMap<String, WarmState>());
+	private final Map<String, String> errors = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+	private ExecutorService executor;
+
+	public EngineWarmer(MyValidationService validationService) {
+		this.validationService = validationService;
+	}
+
+	/**
+	 * Queue an engine build for every ig, running at most threads builds at once.
+	 * Returns immediately.
+	 */
+	public synchronized void warm(List<String> igs, String sct, int threads) {
+		if (executor == null) {
+			AtomicInteger threadCount = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+				Thread t = new Thread(r, "engine-warmer-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		for (String ig : igs) {
+			states.put(ig, WarmState.PENDING);
+			executor.submit(() -> warmIg(ig, sct));
+		}
+	}
+
+	protected void warmIg(String ig, String sct) {
+		states.put(ig, WarmState.WARMING);
+		long start = System.currentTimeMillis();
+		try {
+			TimeTracker tt = new TimeTracker();
+			CliContext cliContext = validationService.createCliContext(ig, sct);
+			cliContext.setSv(validationService.determineVersion(cliContext));
+			String definitions = VersionUtilities.packageForVersion(cliContext.getSv()) + "#" + VersionUtilities.getCurrentVersion(cliContext.getSv());
+			try (ValidationEnginePool.Lease lease = validationService.acquireValidator(cliContext, definitions, tt)) {
+				logger.info("Warmed engine for " + ig + " in " + (System.currentTimeMillis() - start) + "ms");
+			}
+			states.put(ig, WarmState.READY);
+			errors.remove(ig);
+		} catch (Exception e) {
+			logger.error("Could not warm engine for " + ig, e);
+			states.put(ig, WarmState.FAILED);
+			errors.put(ig, e.getMessage());
+		}
+	}
+
+	//Ready once every IG queued for warming has finished, failed builds included so a bad IG cannot hold a pod out of service forever
+	public boolean isReady() {
+		synchronized (states) {
+			for (WarmState state : states.values()) {
+				if (state == WarmState.PENDING || state == WarmState.WARMING) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	public Map<String, WarmState> getStates() {
+		synchronized (states) {
+			return new LinkedHashMap<String, WarmState>(states);
+		}
+	}
+
+	public String getError(String ig) {
+		return errors.get(ig);
+	}
+
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
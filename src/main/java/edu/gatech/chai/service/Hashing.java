@@ -0,0 +1,46 @@
+package edu.gatech.chai.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of a string, for the keys and file names of the caches and for
+ * placing IGs on the replica ring.
+ */
+public final class Hashing {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Hashing() {
+	}
+
+	public static byte[] sha256(String content) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	//Lower case hex of the SHA-256 of the content
+	public static String sha256Hex(String content) {
+		byte[] hash = sha256(content);
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	//First 8 bytes of the SHA-256 of the content
+	public static long sha256Long(String content) {
+		byte[] hash = sha256(content);
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (hash[i] & 0xff);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,109 @@
+package edu.gatech.chai.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Assigns every IG to one node of a cluster of validator replicas by
+ * consistent hashing, so each replica builds and holds engines for its share
+ * of the IGs instead of all of them.
+ *
+ * Every node is placed on a hash ring at a number of virtual points; an IG
+ * belongs to the first node point at or after the hash of its normalized ig
+ * parameter. Adding or removing a node only moves the IGs next to its points.
+ * Every node must be configured with the same node list, so they all agree on
+ * the owner of an IG and a redirected request is not redirected again.
+ */
+public class IgRing {
+
+	private final List<String> nodes = new ArrayList<>();
+	private final String self;
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+	private final AtomicLong redirects = new AtomicLong();
+
+	public IgRing(List<String> nodes, String self, int virtualNodes) {
+		for (String node : nodes) {
+			String normalized = normalizeNode(node);
+			if (!normalized.isEmpty() && !this.nodes.contains(normalized)) {
+				this.nodes.add(normalized);
+			}
+		}
+		this.self = self == null ? null : normalizeNode(self);
+		for (String node : this.nodes) {
+			for (int i = 0; i < Math.max(1, virtualNodes); i++) {
+				ring.put(Hashing.sha256Long(node + "#" + i), node);
+			}
+		}
+	}
+
+	//Routing needs another node to route to and this node's own place on the ring
+	public boolean isEnabled() {
+		return nodes.size() > 1 && nodes.contains(self);
+	}
+
+	//The same IGs in any order or spacing map to the same owner
+	public static String igKey(String ig) {
+		TreeSet<String> igs = new TreeSet<>();
+		if (ig != null) {
+			for (String part : ig.split(",")) {
+				if (!part.trim().isEmpty()) {
+					igs.add(part.trim());
+				}
+			}
+		}
+		return String.join(",", igs);
+	}
+
+	//Base URL of the node owning the ig, or this node when routing is off
+	public String ownerOf(String ig) {
+		if (!isEnabled()) {
+			return self;
+		}
+		Map.Entry<Long, String> point = ring.ceilingEntry(Hashing.sha256Long(igKey(ig)));
+		return point == null ? ring.firstEntry().getValue() : point.getValue();
+	}
+
+	public boolean isOwner(String ig) {
+		return !isEnabled() || self.equals(ownerOf(ig));
+	}
+
+	//The IGs of the list this node owns, e.g. the base-supported-igs it should pre-warm
+	public List<String> owned(List<String> igs) {
+		List<String> owned = new ArrayList<>();
+		for (String ig : igs) {
+			if (isOwner(ig)) {
+				owned.add(ig);
+			}
+		}
+		return owned;
+	}
+
+	public List<String> getNodes() {
+		return Collections.unmodifiableList(nodes);
+	}
+
+	public String getSelf() {
+		return self;
+	}
+
+	public void recordRedirect() {
+		redirects.incrementAndGet();
+	}
+
+	public long getRedirects() {
+		return redirects.get();
+	}
+
+	private static String normalizeNode(String node) {
+		String trimmed = node.trim();
+		while (trimmed.endsWith("/")) {
+			trimmed = trimmed.substring(0, trimmed.length() - 1);
+		}
+		return trimmed;
+	}
+}
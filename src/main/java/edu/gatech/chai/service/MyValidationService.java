@@ -1,14 +1,29 @@
 package edu.gatech.chai.service;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r5.context.ContextUtilities;
+import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.context.SystemOutLoggingService;
 import org.hl7.fhir.r5.context.TerminologyCache;
@@ -20,6 +35,7 @@ import org.hl7.fhir.r5.model.Bundle;
 import org.hl7.fhir.r5.model.CanonicalResource;
 import org.hl7.fhir.r5.model.CodeSystem;
 import org.hl7.fhir.r5.model.ConceptMap;
+import org.hl7.fhir.r5.model.ImplementationGuide;
 import org.hl7.fhir.r5.model.OperationOutcome;
 import org.hl7.fhir.r5.model.Resource;
 import org.hl7.fhir.r5.model.StructureDefinition;
@@ -39,6 +55,7 @@ import org.hl7.fhir.utilities.VersionUtilities;
 import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.hl7.fhir.validation.IgLoader;
+import org.hl7.fhir.validation.instance.InstanceValidator;
 import org.hl7.fhir.validation.ValidationEngine;
 import org.hl7.fhir.validation.ValidationRecord;
 import org.hl7.fhir.validation.cli.model.CliContext;
@@ -50,11 +67,14 @@ import org.hl7.fhir.validation.cli.services.HTMLOutputGenerator;
 import org.hl7.fhir.validation.cli.services.SessionCache;
 import org.hl7.fhir.validation.cli.services.StandAloneValidatorFetcher;
 import org.hl7.fhir.validation.cli.utils.EngineMode;
+import org.hl7.fhir.validation.cli.utils.Params;
 import org.hl7.fhir.validation.cli.utils.VersionSourceInformation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 
+import edu.gatech.chai.config.ValidationServiceSettings;
+
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -62,15 +82,95 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 public class MyValidationService{
 
   private static final Logger logger = LoggerFactory.getLogger(MyValidationService.class);
+  private static final long TERMINOLOGY_CACHE_PRUNE_MINUTES = 10;
+  private static final long SESSION_TTL_MINUTES = 60;
+  //Rough heap per loaded resource, prepared snapshots included, used to estimate an engine's footprint
+  public static final long ESTIMATED_BYTES_PER_RESOURCE = 48 * 1024;
 
 
   protected final SessionCache sessionCache;
+  protected final ValidationEnginePool enginePool;
+  protected final ValidationScheduler scheduler;
+  protected final ValidationResultCache resultCache;
+  protected final ConcurrentHashMap<String, CompletableFuture<ValidationEngine>> baseEngines = new ConcurrentHashMap<>();
+  //Background builds of base engines asked for by getDefinitionsContextIfReady, one at a time and at most one queued per key
+  private final ExecutorService baseEngineBuilder = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "base-engine-builder");
+    t.setDaemon(true);
+    return t;
+  });
+  private final Set<String> baseEngineBuilds = ConcurrentHashMap.newKeySet();
+  protected final boolean shareBaseEngines;
+  protected final ValidationServiceSettings settings;
+  protected final TerminologyCacheDirectory terminologyCache;
+  protected final EngineSnapshotStore engineSnapshots;
+  protected final CanonicalResourceCache canonicalCache;
+  protected final BundleEntryMemo bundleEntryMemo;
+  protected final BundlePartitioner bundlePartitioner;
+  protected final ValidationMetrics metrics;
+  protected final VersionResolutionCache versionCache = new VersionResolutionCache();
+  private FilesystemPackageCacheManager versionScanPcm;
   public MyValidationService() {
-    sessionCache = new SessionCache(30, TimeUnit.DAYS);
+    this(new ValidationServiceSettings());
+  }
+
+  public MyValidationService(ValidationServiceSettings settings) {
+    //Only engines built for an explicit session id live here; pooled engines are bounded by the engine pool
+    this(new SessionCache(SESSION_TTL_MINUTES, TimeUnit.MINUTES), settings);
   }
 
   public MyValidationService(SessionCache cache) {
+    this(cache, new ValidationServiceSettings());
+  }
+
+  public MyValidationService(SessionCache cache, ValidationServiceSettings settings) {
     this.sessionCache = cache;
+    metrics = new ValidationMetrics(settings.getBaseSupportedIgList());
+    List<String> baseSupportedIgs = settings.getBaseSupportedIgList();
+    enginePool = new ValidationEnginePool(settings.getEnginesPerKey(), this::forkValidationEngine,
+      settings.getEngineCacheMaxEntries(), settings.getEngineCacheMaxMb() * 1024L * 1024L,
+      key -> !key.getIgs().isEmpty() && baseSupportedIgs.containsAll(key.getIgs()),
+      this::estimateFootprint, metrics::removeEngine);
+    scheduler = new ValidationScheduler(settings.getValidationThreads(), settings.getInteractiveReservedThreads(),
+      settings.getEngineAdmissionLimit(), settings.isVirtualThreads());
+    resultCache = new ValidationResultCache(settings.getResultCacheMaxEntries(), settings.getResultCacheMaxMb() * 1024L * 1024L);
+    shareBaseEngines = settings.isShareBaseEngines();
+    this.settings = settings;
+    metrics.bindResultCache(resultCache);
+    metrics.bindScheduler(scheduler);
+    metrics.bindEnginePool(enginePool);
+    terminologyCache = new TerminologyCacheDirectory(settings.getTerminologyCacheDir(), settings.getTerminologyCacheMaxMb() * 1024L * 1024L);
+    if (terminologyCache.isEnabled()) {
+      if (settings.getTerminologyCacheSeed() != null) {
+        try {
+          terminologyCache.seedFrom(settings.getTerminologyCacheSeed());
+        } catch (IOException e) {
+          logger.warn("Could not seed terminology cache from " + settings.getTerminologyCacheSeed(), e);
+        }
+      }
+      terminologyCache.mergeWriters();
+      terminologyCache.enforceLimit();
+      terminologyCache.startPruning(TERMINOLOGY_CACHE_PRUNE_MINUTES);
+    }
+    //A JVM-wide static, so it is set once here rather than by every engine build; createCliContext never changes it
+    TerminologyCache.setNoCaching(new CliContext().isNoInternalCaching());
+    engineSnapshots = new EngineSnapshotStore(settings.getEngineSnapshotDir());
+    canonicalCache = new CanonicalResourceCache(settings.getCanonicalCacheMaxEntries(), settings.getCanonicalCacheTtlMinutes(),
+      settings.getCanonicalCacheDir());
+    metrics.bindCanonicalCache(canonicalCache);
+    bundleEntryMemo = new BundleEntryMemo(settings.getBundleEntryMemoMaxEntries());
+    metrics.bindBundleEntryMemo(bundleEntryMemo);
+    bundlePartitioner = new BundlePartitioner(settings.getBundlePartitionMinEntries());
+  }
+
+  public void shutdown() {
+    scheduler.shutdown();
+    baseEngineBuilder.shutdownNow();
+    terminologyCache.shutdown();
+  }
+
+  public ValidationScheduler getScheduler() {
+    return scheduler;
   }
 
   public ValidationEngine getValidationEngine(String sessionId){
@@ -85,33 +185,391 @@ public class MyValidationService{
 
     String definitions = VersionUtilities.packageForVersion(request.getCliContext().getSv()) + "#" + VersionUtilities.getCurrentVersion(request.getCliContext().getSv());
 
-    String sessionId = initializeValidator(request.getCliContext(), definitions, new TimeTracker(), request.sessionId);
-    ValidationEngine validator = sessionCache.fetchSessionValidatorEngine(sessionId);
-
     if (request.getCliContext().getProfiles().size() > 0) {
       System.out.println("  .. validate " + request.listSourceFiles() + " against " + request.getCliContext().getProfiles().toString());
     } else {
       System.out.println("  .. validate " + request.listSourceFiles());
     }
 
-    ValidationResponse response = new ValidationResponse().setSessionId(sessionId);
+    ValidationResponse response = new ValidationResponse().setSessionId(request.sessionId);
 
-    for (FileInfo fp : request.getFilesToValidate()) {
-      List<ValidationMessage> messages = new ArrayList<>();
-      validator.validate(fp.getFileContent().getBytes(), Manager.FhirFormat.getFhirFormat(fp.getFileType()),
-        request.getCliContext().getProfiles(), messages);
-      ValidationOutcome outcome = new ValidationOutcome().setFileInfo(fp);
-      messages.forEach(outcome::addMessage);
+    for (ValidatedSource result : validateSourcesConcurrently(request.getCliContext(), definitions, request.getFilesToValidate())) {
+      if (result.hasError()) {
+        throw result.getError();
+      }
+      ValidationOutcome outcome = new ValidationOutcome().setFileInfo(result.getSource());
+      result.getMessages().forEach(outcome::addMessage);
       response.addOutcome(outcome);
     }
     System.out.println("  Max Memory: "+Runtime.getRuntime().maxMemory());
     return response;
   }
 
+  public List<ValidatedSource> validateSourcesConcurrently(CliContext cliContext, String definitions, List<FileInfo> sources) throws Exception {
+    return validateSourcesConcurrently(cliContext, definitions, sources, ValidationScheduler.Lane.BULK);
+  }
+
+  /**
+   * Validates each source through the scheduler in the given lane. Every task leases its own engine
+   * for the cliContext's configuration, so the parallelism is bounded by the engine admission limit.
+   * Submission blocks while the lane is full. Results come back in the order of the sources; a
+   * failure on one source is recorded on its result and does not stop the others.
+   */
+  public List<ValidatedSource> validateSourcesConcurrently(CliContext cliContext, String definitions, List<FileInfo> sources,
+      ValidationScheduler.Lane lane) throws Exception {
+    EngineKey key = EngineKey.fromCliContext(cliContext);
+    List<Future<ValidatedSource>> futures = new ArrayList<>();
+    List<ValidatedSource> results = new ArrayList<>();
+    try {
+      for (FileInfo source : sources) {
+        futures.add(submitRecordingError(lane, key, cliContext, definitions, source));
+      }
+      for (Future<ValidatedSource> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      futures.forEach(f -> f.cancel(true));
+      Thread.currentThread().interrupt();
+      throw e;
+    }
+    return results;
+  }
+
+  @FunctionalInterface
+  public interface SourceSupplier {
+    //The next source to validate, or null when there are no more
+    FileInfo next() throws IOException;
+  }
+
+  @FunctionalInterface
+  public interface ResultConsumer {
+    void accept(ValidatedSource result) throws IOException;
+  }
+
+  /**
+   * Validates sources as they are supplied, keeping at most window validations in flight, and hands
+   * each result to the consumer in source order as soon as it and every earlier one are done. Memory
+   * is bounded by the window rather than by the number of sources. Returns the number validated.
+   */
+  public long validateSourcesStreaming(CliContext cliContext, String definitions, SourceSupplier sources,
+      ValidationScheduler.Lane lane, int window, ResultConsumer consumer) throws Exception {
+    EngineKey key = EngineKey.fromCliContext(cliContext);
+    ArrayDeque<Future<ValidatedSource>> inFlight = new ArrayDeque<>();
+    long count = 0;
+    try {
+      FileInfo source;
+      while ((source = sources.next()) != null) {
+        inFlight.add(submitRecordingError(lane, key, cliContext, definitions, source));
+        count++;
+        while (!inFlight.isEmpty() && (inFlight.size() >= Math.max(1, window) || inFlight.peek().isDone())) {
+          consumer.accept(inFlight.poll().get());
+        }
+      }
+      while (!inFlight.isEmpty()) {
+        consumer.accept(inFlight.poll().get());
+      }
+    } catch (InterruptedException e) {
+      inFlight.forEach(f -> f.cancel(true));
+      Thread.currentThread().interrupt();
+      throw e;
+    } catch (Exception e) {
+      inFlight.forEach(f -> f.cancel(true));
+      throw e;
+    }
+    return count;
+  }
+
+  /**
+   * Validates one in-memory source on the scheduler in the options' lane, waiting for the result, with
+   * the options' timing and limits. The Bundle shortcuts of the options are up to the caller.
+   */
+  public ValidatedSource validateInMemory(CliContext cliContext, String definitions, FileInfo source, TimeTracker tt,
+      ValidationOptions options) throws Exception {
+    RequestTiming timing = options.getTiming();
+    ValidationLimits limits = options.getLimits();
+    CompletableFuture<ValidatedSource> cached = cachedResult(cliContext, source, timing, limits);
+    if (cached != null) {
+      try {
+        return cached.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      }
+    }
+    return scheduler.run(options.getLane(), EngineKey.fromCliContext(cliContext), () -> validateLeased(cliContext, definitions, source, tt, timing, limits));
+  }
+
+  /**
+   * The source's result when the result cache holds it or another request is validating it, so the
+   * caller waits for it without taking a scheduler slot or leasing an engine; null when it has to be
+   * validated.
+   */
+  protected CompletableFuture<ValidatedSource> cachedResult(CliContext cliContext, FileInfo source, RequestTiming timing,
+      ValidationLimits limits) {
+    CompletableFuture<ValidatedSource> cached = resultCache.lookup(resultKey(cliContext, source, limits));
+    if (cached == null) {
+      return null;
+    }
+    String ig = String.join(",", cliContext.getIgs());
+    return cached.thenApply(result -> {
+      ValidatedSource copy = result.copyFor(source);
+      if (timing != null) {
+        timing.setResultCacheHit(true);
+      }
+      metrics.recordIssues(ig, copy.getOutcome());
+      return copy;
+    });
+  }
+
+  //The cached or in-flight result for the source, or its validation submitted to the scheduler
+  private Future<ValidatedSource> submitUnlessCached(ValidationScheduler.Lane lane, EngineKey key, CliContext cliContext,
+      String definitions, FileInfo source, RequestTiming timing, ValidationLimits limits) throws InterruptedException {
+    CompletableFuture<ValidatedSource> cached = cachedResult(cliContext, source, timing, limits);
+    if (cached != null) {
+      return cached;
+    }
+    return scheduler.submit(lane, key, () -> validateLeased(cliContext, definitions, source, new TimeTracker(), timing, limits));
+  }
+
+  //As submitUnlessCached, recording a failure on the source's result so one source does not stop the others
+  private Future<ValidatedSource> submitRecordingError(ValidationScheduler.Lane lane, EngineKey key, CliContext cliContext,
+      String definitions, FileInfo source) throws InterruptedException {
+    CompletableFuture<ValidatedSource> cached = cachedResult(cliContext, source, null, ValidationLimits.NONE);
+    if (cached != null) {
+      return cached.exceptionally(t -> {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        return new ValidatedSource(source).setError(cause instanceof Exception ? (Exception) cause : new ExecutionException(cause));
+      });
+    }
+    return scheduler.submit(lane, key, () -> {
+      try {
+        return validateInMemory(cliContext, definitions, source, new TimeTracker());
+      } catch (Exception e) {
+        return new ValidatedSource(source).setError(e);
+      }
+    });
+  }
+
+  /**
+   * Validates one in-memory source on the calling thread with an engine leased for the cliContext's
+   * configuration. Results are served from the result cache when the same content was already
+   * validated with the same configuration and profiles, in which case no engine is leased at all.
+   */
+  public ValidatedSource validateInMemory(CliContext cliContext, String definitions, FileInfo source, TimeTracker tt) throws Exception {
+    return validateLeased(cliContext, definitions, source, tt, null, ValidationLimits.NONE);
+  }
+
+  /**
+   * As above, adding the engine, profiles and validate phases to timing when it is not null, cutting the
+   * issues at the limits' maxErrors and keeping only issues of their minimum severity or worse.
+   */
+  private ValidatedSource validateLeased(CliContext cliContext, String definitions, FileInfo source, TimeTracker tt,
+      RequestTiming timing, ValidationLimits limits) throws Exception {
+    ValidationResultCache.ResultKey key = resultKey(cliContext, source, limits);
+    String ig = String.join(",", cliContext.getIgs());
+    boolean[] validatedHere = {false};
+    ValidatedSource result = resultCache.get(key, () -> {
+      validatedHere[0] = true;
+      ValidatedSource validated = new ValidatedSource(source);
+      try (ValidationEnginePool.Lease lease = metrics.time("validate", ValidationMetrics.PHASE_ENGINE, ig, timing, () -> acquireValidator(cliContext, definitions, tt))) {
+        if (timing != null) {
+          timing.setEngineLease(lease.getOutcome());
+        }
+        metrics.time("validate", ValidationMetrics.PHASE_PROFILES, ig, timing, () -> {
+          loadProfiles(lease.getEngine(), cliContext);
+          return null;
+        });
+        List<ValidationMessage> messages = limits.newMessageList();
+        validated.setOutcome(metrics.time("validate", ValidationMetrics.PHASE_VALIDATE, ig, timing,
+          () -> validateSource(lease.getEngine(), source, cliContext.getProfiles(), messages)));
+        validated.getMessages().addAll(messages);
+      }
+      return validated;
+    }).copyFor(source);
+    if (timing != null) {
+      timing.setResultCacheHit(!validatedHere[0]);
+    }
+    metrics.recordIssues(ig, result.getOutcome());
+    return result;
+  }
+
+  private ValidationResultCache.ResultKey resultKey(CliContext cliContext, FileInfo source, ValidationLimits limits) {
+    return resultCache.keyFor(EngineKey.fromCliContext(cliContext), cliContext.getProfiles(), source, limits.isNone() ? null : limits.toString());
+  }
+
+  public ValidationMetrics getMetrics() {
+    return metrics;
+  }
+
+  public TerminologyCacheDirectory getTerminologyCache() {
+    return terminologyCache;
+  }
+
+  public ValidationResultCache getResultCache() {
+    return resultCache;
+  }
+
+  //Our validator is R5 but we're validating R4 resources, so StructureDefinition and ImplementationGuide here are R5 classes.
+  /**
+   * Loads the requested profiles the engine does not have yet. A profile already fetched for any engine
+   * is copied from the canonical cache instead of being fetched and parsed again.
+   */
+  public void loadProfiles(ValidationEngine validator, CliContext cliContext) throws Exception {
+    for (String s : cliContext.getProfiles()) {
+      if (!validator.getContext().hasResource(StructureDefinition.class, s) && !validator.getContext().hasResource(ImplementationGuide.class, s)) {
+        Resource cached = canonicalCache.get(s);
+        if (cached != null) {
+          validator.getContext().cacheResource(cached);
+          continue;
+        }
+        logger.info("Fetch Profile from " + s);
+        validator.loadProfile(cliContext.getLocations().getOrDefault(s, s));
+        Resource loaded = validator.getContext().fetchResource(StructureDefinition.class, s);
+        canonicalCache.put(s, loaded != null ? loaded : validator.getContext().fetchResource(ImplementationGuide.class, s));
+      }
+    }
+  }
+
+  public CanonicalResourceCache getCanonicalCache() {
+    return canonicalCache;
+  }
+
+  public BundleEntryMemo getBundleEntryMemo() {
+    return bundleEntryMemo;
+  }
+
+  /**
+   * Validates a large Bundle as partitions of its entries, each on its own leased engine through the
+   * scheduler, and merges their issues into the outcome of the whole Bundle. There are at most as many
+   * partitions as validations the engine configuration admits at once, so a configuration needs
+   * engines-per-key above 1 to gain anything. Bundles too small to split are validated whole. source is
+   * the whole Bundle as encoded by encoder. The options' limits apply to every partition and again to
+   * the merged outcome. With maxErrors, partitions run one after another instead, and those after the
+   * partition that reaches maxErrors are not validated at all.
+   */
+  public ValidatedSource validateBundlePartitioned(CliContext cliContext, String definitions, FileInfo source,
+      org.hl7.fhir.r4.model.Bundle bundle, BundlePartitioner.BundleEncoder encoder, ValidationOptions options) throws Exception {
+    List<BundlePartitioner.Partition> partitions = bundlePartitioner.partition(bundle, settings.getEngineAdmissionLimit(), source, encoder);
+    if (partitions.isEmpty()) {
+      return validateInMemory(cliContext, definitions, source, new TimeTracker(), options);
+    }
+    ValidationScheduler.Lane lane = options.getLane();
+    RequestTiming timing = options.getTiming();
+    ValidationLimits limits = options.getLimits();
+    EngineKey key = EngineKey.fromCliContext(cliContext);
+    List<Future<ValidatedSource>> futures = new ArrayList<>();
+    List<OperationOutcome> outcomes = new ArrayList<>();
+    //With maxErrors, a partition is only validated while those before it have fewer errors
+    boolean sequential = limits.getMaxErrors() > 0;
+    //Each partition gets its own timing; parallel ones charge the request their longest phases
+    List<RequestTiming> partitionTimings = new ArrayList<>();
+    boolean stopped = false;
+    try {
+      for (BundlePartitioner.Partition partition : partitions) {
+        if (sequential && !outcomes.isEmpty()
+            && limits.isReached(bundlePartitioner.merge(source, partitions.subList(0, outcomes.size()), outcomes))) {
+          stopped = true;
+          break;
+        }
+        RequestTiming partitionTiming = timing == null ? null : new RequestTiming();
+        if (partitionTiming != null) {
+          partitionTimings.add(partitionTiming);
+        }
+        Future<ValidatedSource> future = submitUnlessCached(lane, key, cliContext, definitions, partition.getSource(), partitionTiming, limits);
+        futures.add(future);
+        if (sequential) {
+          outcomes.add(future.get().getOutcome());
+        }
+      }
+      if (!sequential) {
+        for (Future<ValidatedSource> future : futures) {
+          outcomes.add(future.get().getOutcome());
+        }
+      }
+      if (timing != null && sequential) {
+        timing.recordSequential(partitionTimings);
+      } else if (timing != null) {
+        timing.recordParallel(partitionTimings);
+      }
+    } catch (InterruptedException e) {
+      futures.forEach(f -> f.cancel(true));
+      Thread.currentThread().interrupt();
+      throw e;
+    } catch (ExecutionException e) {
+      futures.forEach(f -> f.cancel(true));
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+    OperationOutcome merged = bundlePartitioner.merge(source, partitions.subList(0, outcomes.size()), outcomes);
+    if (stopped) {
+      ValidationLimits.markStopped(merged);
+    }
+    return new ValidatedSource(source).setOutcome(limits.trim(merged));
+  }
+
+  public BundlePartitioner getBundlePartitioner() {
+    return bundlePartitioner;
+  }
+
+  /**
+   * Validates a source held in memory. Unlike validateSources(CliContext, ValidationEngine) nothing is
+   * read from or written to the filesystem.
+   */
+  public OperationOutcome validateSource(ValidationEngine validator, FileInfo source, List<String> profiles) throws Exception {
+    return validateSource(validator, source, profiles, new ArrayList<>());
+  }
+
+  /**
+   * Does what ValidationEngine.validate does, marking the outcome as cut short when messages is a
+   * ValidationLimits list that reached its maxErrors.
+   */
+  public OperationOutcome validateSource(ValidationEngine validator, FileInfo source, List<String> profiles, List<ValidationMessage> messages) throws Exception {
+    Manager.FhirFormat format = Manager.FhirFormat.getFhirFormat(source.getFileType());
+    List<StructureDefinition> sdList = new ArrayList<>();
+    for (String profile : profiles) {
+      StructureDefinition sd = validator.getContext().fetchResource(StructureDefinition.class, profile);
+      if (sd == null) {
+        throw new FHIRException("Unable to resolve profile " + profile);
+      }
+      sdList.add(sd);
+    }
+    InstanceValidator instanceValidator = validator.getValidator(format);
+    instanceValidator.validate(null, messages, new ByteArrayInputStream(source.getFileContent().getBytes(StandardCharsets.UTF_8)), format, sdList);
+    OperationOutcome outcome = validator.messagesToOutcome(messages);
+    if (ValidationLimits.isStopped(messages)) {
+      ValidationLimits.markStopped(outcome);
+    }
+    return outcome;
+  }
+
+  /**
+   * Builds the CliContext for an ig and SNOMED edition the same way the validator CLI parses its arguments.
+   * The SNOMED edition defaults to "us".
+   */
+  public CliContext createCliContext(String ig, String sct) throws Exception {
+    List<String> cliArgsList = new ArrayList<String>();
+    if (ig != null && !ig.isEmpty()) {
+      cliArgsList.add("-ig");
+      cliArgsList.add(ig);
+    }
+    cliArgsList.add("-sct");
+    cliArgsList.add(sct == null || sct.isEmpty() ? "us" : sct);
+    CliContext cliContext = Params.loadCliContext(cliArgsList.toArray(new String[0]));
+    //Offline only ever talks to the configured local stand-in server, or to no server at all
+    if (settings.isTerminologyOffline() || settings.getTerminologyServer() != null) {
+      cliContext.setTxServer(settings.getTerminologyServer());
+    }
+    return cliContext;
+  }
+
   public VersionSourceInformation scanForVersions(CliContext cliContext) throws Exception {
     VersionSourceInformation versions = new VersionSourceInformation();
     IgLoader igLoader = new IgLoader(
-      new FilesystemPackageCacheManager(true),
+      getVersionScanPcm(),
       new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing(),
       null);
     for (String src : cliContext.getIgs()) {
@@ -252,20 +710,30 @@ public class MyValidationService{
     }
   }
 
+  //The caller owns the engine; it is not kept in the session cache, where nothing could look it up again
   public ValidationEngine initializeValidator(CliContext cliContext, String definitions, TimeTracker tt) throws Exception {
-    return sessionCache.fetchSessionValidatorEngine(initializeValidator(cliContext, definitions, tt, null));
+    tt.milestone();
+    return buildValidationEngine(cliContext, definitions, tt, null);
   }
 
   protected ValidationEngine.ValidationEngineBuilder getValidationEngineBuilder() {
     return new ValidationEngine.ValidationEngineBuilder();
   }
 
-  protected ValidationEngine buildValidationEngine( CliContext cliContext, String definitions, TimeTracker timeTracker, String sessionId) throws IOException, URISyntaxException {
-    System.out.print("  Load FHIR v" + cliContext.getSv() + " from " + definitions);
-    ValidationEngine validationEngine = getValidationEngineBuilder().withTHO(false).withVersion(cliContext.getSv()).withTimeTracker(timeTracker).withUserAgent("fhir/validator").fromSource(definitions);
-    System.out.println(" - " + validationEngine.getContext().countAllCaches() + " resources (" + timeTracker.milestone() + ")");
-    loadIgsAndExtensions(validationEngine, cliContext, timeTracker);
-    System.out.print("  Get set... ");
+  protected ValidationEngine buildValidationEngine( CliContext cliContext, String definitions, TimeTracker timeTracker, String sessionId) throws Exception {
+    ValidationEngine validationEngine;
+    if (shareBaseEngines) {
+      //Core, terminology and extensions come from the shared base engine; only the IGs are loaded into this copy
+      validationEngine = new ValidationEngine(getBaseEngine(cliContext, definitions, timeTracker));
+      logger.info("Forked base engine for FHIR v" + cliContext.getSv() + " - " + validationEngine.getContext().countAllCaches() + " resources (" + timeTracker.milestone() + ")");
+      validationEngine.setDebug(cliContext.isDoDebug());
+      validationEngine.getContext().setLogger(new SystemOutLoggingService(cliContext.isDoDebug()));
+      loadIgs(validationEngine, cliContext);
+    } else {
+      validationEngine = buildBaseEngine(cliContext, definitions, timeTracker);
+      loadIgs(validationEngine, cliContext);
+    }
+    logger.info("Package Summary: " + validationEngine.getContext().loadedPackageSummary());
     validationEngine.setQuestionnaireMode(cliContext.getQuestionnaireMode());
     validationEngine.setLevel(cliContext.getLevel());
     validationEngine.setDoNative(cliContext.isDoNative());
@@ -293,33 +761,202 @@ public class MyValidationService{
     validationEngine.setForPublication(cliContext.isForPublication());
     validationEngine.setShowTimes(cliContext.isShowTimes());
     validationEngine.setAllowExampleUrls(cliContext.isAllowExampleUrls());
-    StandAloneValidatorFetcher fetcher = new StandAloneValidatorFetcher(validationEngine.getPcm(), validationEngine.getContext(), validationEngine);
+    StandAloneValidatorFetcher fetcher = new CachingValidatorFetcher(validationEngine.getPcm(), validationEngine.getContext(), validationEngine, canonicalCache);
     validationEngine.setFetcher(fetcher);
     validationEngine.getContext().setLocator(fetcher);
     validationEngine.getBundleValidationRules().addAll(cliContext.getBundleValidationRules());
     validationEngine.setJurisdiction(CodeSystemUtilities.readCoding(cliContext.getJurisdiction()));
-    TerminologyCache.setNoCaching(cliContext.isNoInternalCaching());
+    //Profiles whose snapshots were generated by an earlier build of this configuration are restored instead of regenerated
+    EngineKey key = EngineKey.fromCliContext(cliContext);
+    List<StructureDefinition> unprepared = engineSnapshots.isEnabled() ? EngineSnapshotStore.withoutSnapshots(validationEngine) : new ArrayList<StructureDefinition>();
+    boolean restored = !unprepared.isEmpty() && engineSnapshots.restore(key, definitions, validationEngine, unprepared);
     validationEngine.prepare(); // generate any missing snapshots
-    System.out.println(" go (" + timeTracker.milestone() + ")");
+    if (!unprepared.isEmpty() && !restored) {
+      engineSnapshots.save(key, definitions, validationEngine, unprepared);
+    }
+    logger.info("Engine ready for " + key + " (" + timeTracker.milestone() + ")");
     return validationEngine;
   }
 
   protected void loadIgsAndExtensions(ValidationEngine validationEngine, CliContext cliContext, TimeTracker timeTracker) throws IOException, URISyntaxException {
+    loadBaseExtensions(validationEngine, cliContext, timeTracker);
+    loadIgs(validationEngine, cliContext);
+    logger.info("Package Summary: " + validationEngine.getContext().loadedPackageSummary());
+  }
+
+  //Everything an engine needs that does not depend on the requested IGs
+  protected void loadBaseExtensions(ValidationEngine validationEngine, CliContext cliContext, TimeTracker timeTracker) throws IOException, URISyntaxException {
     FhirPublication ver = FhirPublication.fromCode(cliContext.getSv());
     IgLoader igLoader = new IgLoader(validationEngine.getPcm(), validationEngine.getContext(), validationEngine.getVersion(), validationEngine.isDebug());
     igLoader.loadIg(validationEngine.getIgs(), validationEngine.getBinaries(), "hl7.terminology", false);
     if (!VersionUtilities.isR5Ver(validationEngine.getContext().getVersion())) {
       igLoader.loadIg(validationEngine.getIgs(), validationEngine.getBinaries(), "hl7.fhir.uv.extensions", false);
     }
-    System.out.print("  Terminology server " + cliContext.getTxServer());
+    if (terminologyCache.isEnabled()) {
+      //Answers persist across engines and restarts; with no terminology server they are the only answers
+      terminologyCache.withFolder(cliContext.getSv(), terminologyCacheWriter(cliContext), folder -> validationEngine.getContext().initTS(folder));
+    }
     String txver = validationEngine.setTerminologyServer(cliContext.getTxServer(), cliContext.getTxLog(), ver);
-    System.out.println(" - Version " + txver + " (" + timeTracker.milestone() + ")");
+    logger.info("Terminology server " + cliContext.getTxServer() + " - Version " + txver + " (" + timeTracker.milestone() + ")");
     validationEngine.setDebug(cliContext.isDoDebug());
     validationEngine.getContext().setLogger(new SystemOutLoggingService(cliContext.isDoDebug()));
+  }
+
+  /**
+   * Subfolder of the version's terminology cache for this engine's TerminologyCache. Forked engines share
+   * their base engine's cache, so with shared base engines there is one per base engine; otherwise every
+   * engine configuration has its own.
+   */
+  protected String terminologyCacheWriter(CliContext cliContext) {
+    if (shareBaseEngines) {
+      return Hashing.sha256Hex(cliContext.getTxServer() + "|" + cliContext.getTxLog()).substring(0, 12);
+    }
+    return EngineKey.fromCliContext(cliContext).getId();
+  }
+
+  protected void loadIgs(ValidationEngine validationEngine, CliContext cliContext) throws IOException, URISyntaxException {
+    IgLoader igLoader = new IgLoader(validationEngine.getPcm(), validationEngine.getContext(), validationEngine.getVersion(), validationEngine.isDebug());
     for (String src : cliContext.getIgs()) {
       igLoader.loadIg(validationEngine.getIgs(), validationEngine.getBinaries(), src, cliContext.isRecursive());
     }
-    System.out.println("  Package Summary: "+ validationEngine.getContext().loadedPackageSummary());
+  }
+
+  /**
+   * Core definitions, hl7.terminology, hl7.fhir.uv.extensions and the terminology server for a FHIR version,
+   * without any IG. Built once per version and tx server, then only ever copied, never validated with.
+   */
+  protected ValidationEngine getBaseEngine(CliContext cliContext, String definitions, TimeTracker timeTracker) throws Exception {
+    String baseKey = baseEngineKey(cliContext, definitions);
+    CompletableFuture<ValidationEngine> future = new CompletableFuture<>();
+    CompletableFuture<ValidationEngine> existing = baseEngines.putIfAbsent(baseKey, future);
+    if (existing == null) {
+      try {
+        future.complete(buildBaseEngine(cliContext, definitions, timeTracker));
+      } catch (Throwable t) {
+        baseEngines.remove(baseKey, future);
+        future.completeExceptionally(t);
+      }
+    } else {
+      future = existing;
+    }
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  protected static String baseEngineKey(CliContext cliContext, String definitions) {
+    return definitions + "|" + cliContext.getTxServer() + "|" + cliContext.getTxLog();
+  }
+
+  /**
+   * Worker context holding the core definitions of a FHIR version, for element model parsing and
+   * composing outside validation. It is the shared base engine's context and must only be read. Returns
+   * null while that base engine does not exist yet, and starts building it in the background so a
+   * later call can use it.
+   */
+  public IWorkerContext getDefinitionsContextIfReady(String version) {
+    try {
+      CliContext cliContext = createCliContext(null, null);
+      cliContext.setSv(version);
+      String definitions = VersionUtilities.packageForVersion(version) + "#" + VersionUtilities.getCurrentVersion(version);
+      String baseKey = baseEngineKey(cliContext, definitions);
+      CompletableFuture<ValidationEngine> base = baseEngines.get(baseKey);
+      if (base == null) {
+        if (baseEngineBuilds.add(baseKey)) {
+          baseEngineBuilder.execute(() -> {
+            try {
+              getBaseEngine(cliContext, definitions, new TimeTracker());
+            } catch (Exception e) {
+              logger.warn("Could not build base engine for " + definitions, e);
+            } finally {
+              baseEngineBuilds.remove(baseKey);
+            }
+          });
+        }
+        return null;
+      }
+      return base.isDone() && !base.isCompletedExceptionally() ? base.join().getContext() : null;
+    } catch (Exception e) {
+      logger.warn("Could not look up base engine for FHIR " + version, e);
+      return null;
+    }
+  }
+
+  protected ValidationEngine buildBaseEngine(CliContext cliContext, String definitions, TimeTracker timeTracker) throws IOException, URISyntaxException {
+    ValidationEngine validationEngine = getValidationEngineBuilder().withTHO(false).withVersion(cliContext.getSv()).withTimeTracker(timeTracker).withUserAgent("fhir/validator").fromSource(definitions);
+    logger.info("Load FHIR v" + cliContext.getSv() + " from " + definitions + " - " + validationEngine.getContext().countAllCaches() + " resources (" + timeTracker.milestone() + ")");
+    loadBaseExtensions(validationEngine, cliContext, timeTracker);
+    return validationEngine;
+  }
+
+  /**
+   * Lease an engine matching the full configuration of the cliContext, building it once if
+   * no engine for that configuration exists yet. Close the lease when validation is done.
+   */
+  public ValidationEnginePool.Lease acquireValidator(CliContext cliContext, String definitions, TimeTracker tt) throws Exception {
+    EngineKey key = EngineKey.fromCliContext(cliContext);
+    ValidationEnginePool.Lease lease = enginePool.acquire(key, () -> {
+      tt.milestone();
+      long start = System.nanoTime();
+      ValidationEngine engine = buildValidationEngine(cliContext, definitions, tt, null);
+      metrics.recordEngineBuild(key, System.nanoTime() - start);
+      return engine;
+    });
+    if (lease.getOutcome() == ValidationEnginePool.LeaseOutcome.MISS) {
+      metrics.registerEngine(lease.getPool());
+    }
+    metrics.recordEngineLease(key, lease.getOutcome());
+    return lease;
+  }
+
+  public ValidationEnginePool getEnginePool() {
+    return enginePool;
+  }
+
+  /**
+   * Estimated heap held by an engine, from the resources it has loaded. With shared base engines the
+   * core definitions belong to the base engine, so only the resources the engine adds are counted.
+   */
+  protected long estimateFootprint(EngineKey key, ValidationEngine engine) {
+    long resources = engine.getContext().countAllCaches();
+    if (shareBaseEngines) {
+      resources -= baseResourceCount(engine.getVersion());
+    }
+    return Math.max(0, resources) * ESTIMATED_BYTES_PER_RESOURCE;
+  }
+
+  protected int baseResourceCount(String version) {
+    for (CompletableFuture<ValidationEngine> base : baseEngines.values()) {
+      if (base.isDone() && !base.isCompletedExceptionally() && VersionUtilities.versionsCompatible(version, base.join().getVersion())) {
+        return base.join().getContext().countAllCaches();
+      }
+    }
+    return 0;
+  }
+
+  //Estimated heap of each built base engine, keyed by its definitions and terminology settings
+  public Map<String, Long> getBaseEngineFootprints() {
+    Map<String, Long> footprints = new LinkedHashMap<>();
+    baseEngines.forEach((key, base) -> {
+      if (base.isDone() && !base.isCompletedExceptionally()) {
+        footprints.put(key, base.join().getContext().countAllCaches() * ESTIMATED_BYTES_PER_RESOURCE);
+      }
+    });
+    return footprints;
+  }
+
+  //Copies share the loaded definitions of the template but get their own fetcher bound to the copied context
+  protected ValidationEngine forkValidationEngine(ValidationEngine template) throws IOException {
+    ValidationEngine fork = new ValidationEngine(template);
+    StandAloneValidatorFetcher fetcher = new CachingValidatorFetcher(fork.getPcm(), fork.getContext(), fork, canonicalCache);
+    fork.setFetcher(fetcher);
+    fork.getContext().setLocator(fetcher);
+    return fork;
   }
 
   public String initializeValidator(CliContext cliContext, String definitions, TimeTracker tt, String sessionId) throws Exception {
@@ -414,10 +1051,38 @@ public class MyValidationService{
     return determineVersion(cliContext, null);
   }
 
+  /**
+   * Detected versions are cached by IG coordinates when there are no file sources to scan.
+   * The cache entry is dropped when the IG package folder is reinstalled.
+   */
   public String determineVersion(CliContext cliContext, String sessionId) throws Exception {
     if (cliContext.getMode() != EngineMode.VALIDATION && cliContext.getMode() != EngineMode.INSTALL) {
       return "5.0";
     }
+    if (!cliContext.getSources().isEmpty() || cliContext.getIgs().isEmpty()) {
+      return scanVersion(cliContext);
+    }
+    String packageFolder = getVersionScanPcm().getFolder();
+    String version = versionCache.get(cliContext.getIgs(), packageFolder);
+    if (version == null) {
+      version = scanVersion(cliContext);
+      versionCache.put(cliContext.getIgs(), packageFolder, version);
+    }
+    return version;
+  }
+
+  public VersionResolutionCache getVersionCache() {
+    return versionCache;
+  }
+
+  protected synchronized FilesystemPackageCacheManager getVersionScanPcm() throws IOException {
+    if (versionScanPcm == null) {
+      versionScanPcm = new FilesystemPackageCacheManager(true);
+    }
+    return versionScanPcm;
+  }
+
+  protected String scanVersion(CliContext cliContext) throws Exception {
     System.out.println("Scanning for versions (no -version parameter):");
     VersionSourceInformation versions = scanForVersions(cliContext);
     for (String s : versions.getReport()) {
@@ -0,0 +1,86 @@
+package edu.gatech.chai.service;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts the R5 OperationOutcome produced by the ValidationEngine into the
+ * R4 OperationOutcome returned by the service. Each issue carries its
+ * severity, the FHIRPath expression, the diagnostics text unchanged and,
+ * when the validator knows it, the line and col. Locations follow the
+ * earlier Jackson-based conversion: an issue with an expression gets
+ * "(line x, colY)" and the line and col as integer extensions, an issue with
+ * neither expression nor location gets "line x, colY" (or "??") and no
+ * extensions.
+ */
+public class OperationOutcomeConverter {
+
+	private static final Logger logger = LoggerFactory.getLogger(OperationOutcomeConverter.class);
+
+	public static final String EXT_LINE_AND_COL = "urn:local:line-and-col";
+	public static final String EXT_LINE = "urn:local:line";
+	public static final String EXT_COL = "urn:local:col";
+
+	public static org.hl7.fhir.r4.model.OperationOutcome toR4(OperationOutcome source) {
+		org.hl7.fhir.r4.model.OperationOutcome target = new org.hl7.fhir.r4.model.OperationOutcome();
+		addIssues(target, source);
+		if (source.hasExtension(ValidationLimits.EXT_MAX_ERRORS_REACHED)) {
+			target.addExtension(new Extension(ValidationLimits.EXT_MAX_ERRORS_REACHED, new BooleanType(true)));
+		}
+		return target;
+	}
+
+	public static void addIssues(org.hl7.fhir.r4.model.OperationOutcome target, OperationOutcome source) {
+		int error = 0;
+		int warn = 0;
+		int info = 0;
+		for (OperationOutcome.OperationOutcomeIssueComponent issue : source.getIssue()) {
+			if (issue.getSeverity() == OperationOutcome.IssueSeverity.FATAL || issue.getSeverity() == OperationOutcome.IssueSeverity.ERROR) {
+				error++;
+			} else if (issue.getSeverity() == OperationOutcome.IssueSeverity.WARNING) {
+				warn++;
+			} else {
+				info++;
+			}
+			target.addIssue(convertIssue(issue));
+		}
+		logger.debug((error == 0 ? "Success" : "*FAILURE*") + ": " + error + " errors, " + warn + " warnings, " + info + " notes");
+	}
+
+	public static OperationOutcomeIssueComponent convertIssue(OperationOutcome.OperationOutcomeIssueComponent issue) {
+		OperationOutcomeIssueComponent target = new OperationOutcomeIssueComponent();
+		if (issue.getSeverity() != null) {
+			target.setSeverity(IssueSeverity.fromCode(issue.getSeverity().toCode()));
+		}
+		if (issue.hasExpression()) {
+			target.addExpression(issue.getExpression().get(0).asStringValue());
+		} else if (issue.hasLocation()) {
+			target.addExpression(issue.getLocation().get(0).asStringValue());
+		}
+		if (issue.hasDetails() && issue.getDetails().hasText()) {
+			target.setDiagnostics(issue.getDetails().getText());
+		}
+		int line = ToolingExtensions.readIntegerExtension(issue, ToolingExtensions.EXT_ISSUE_LINE, -1);
+		int col = ToolingExtensions.readIntegerExtension(issue, ToolingExtensions.EXT_ISSUE_COL, -1);
+		boolean hasLineAndCol = line >= 0 && col >= 0;
+		if (issue.hasExpression()) {
+			if (hasLineAndCol) {
+				target.addLocation("(line " + line + ", col" + col + ")");
+				Extension lineAndColExtension = new Extension(EXT_LINE_AND_COL);
+				lineAndColExtension.addExtension(new Extension(EXT_LINE, new IntegerType(line)));
+				lineAndColExtension.addExtension(new Extension(EXT_COL, new IntegerType(col)));
+				target.addExtension(lineAndColExtension);
+			}
+		} else if (!issue.hasLocation()) {
+			target.addLocation(hasLineAndCol ? "line " + line + ", col" + col : "??");
+		}
+		return target;
+	}
+}
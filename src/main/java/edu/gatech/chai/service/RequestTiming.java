@@ -0,0 +1,112 @@
+package edu.gatech.chai.service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+
+/**
+ * Time spent in each phase of one request, in the order the phases first ran,
+ * for the Server-Timing header and the timing extension of $validate. A phase
+ * that runs more than once one after the other is summed; phases that ran
+ * in parallel are added with recordParallel. Phases can be recorded from the
+ * validation worker as well as the request thread.
+ */
+public class RequestTiming {
+
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+	private ValidationEnginePool.LeaseOutcome engineLease;
+	private boolean resultCacheHit;
+
+	public synchronized void record(String phase, long nanos) {
+		phases.merge(phase, nanos, Long::sum);
+	}
+
+	/**
+	 * Adds the phases of branches that ran in parallel, e.g. the partitions of
+	 * a Bundle. Each phase counts with its combined branch rather than the sum,
+	 * so the phases still add up to about the wall time of the request. The
+	 * engine lease is the slowest of the branches', and the result came from
+	 * the result cache only if every branch's did.
+	 */
+	public void recordParallel(List<RequestTiming> branches) {
+		recordBranches(branches, Math::max);
+	}
+
+	//As recordParallel, for branches that ran one after another: each phase counts with the sum of its branches
+	public void recordSequential(List<RequestTiming> branches) {
+		recordBranches(branches, Long::sum);
+	}
+
+	private void recordBranches(List<RequestTiming> branches, BinaryOperator<Long> combine) {
+		Map<String, Long> combined = new LinkedHashMap<>();
+		ValidationEnginePool.LeaseOutcome slowestLease = null;
+		boolean allCached = !branches.isEmpty();
+		for (RequestTiming branch : branches) {
+			branch.getPhases().forEach((phase, nanos) -> combined.merge(phase, nanos, combine));
+			ValidationEnginePool.LeaseOutcome lease = branch.getEngineLease();
+			if (lease != null && (slowestLease == null || lease.isSlowerThan(slowestLease))) {
+				slowestLease = lease;
+			}
+			allCached &= branch.isResultCacheHit();
+		}
+		synchronized (this) {
+			combined.forEach(this::record);
+			if (slowestLease != null) {
+				engineLease = slowestLease;
+			}
+			resultCacheHit = allCached;
+		}
+	}
+
+	public synchronized Map<String, Long> getPhases() {
+		return new LinkedHashMap<>(phases);
+	}
+
+	//Null when no engine was leased, e.g. for a result cache hit
+	public synchronized Boolean getEngineCacheHit() {
+		return engineLease == null ? null : engineLease == ValidationEnginePool.LeaseOutcome.HIT;
+	}
+
+	public synchronized ValidationEnginePool.LeaseOutcome getEngineLease() {
+		return engineLease;
+	}
+
+	public synchronized void setEngineLease(ValidationEnginePool.LeaseOutcome engineLease) {
+		this.engineLease = engineLease;
+	}
+
+	public synchronized boolean isResultCacheHit() {
+		return resultCacheHit;
+	}
+
+	public synchronized void setResultCacheHit(boolean resultCacheHit) {
+		this.resultCacheHit = resultCacheHit;
+	}
+
+	public static double toMillis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	//e.g. parse;dur=1.2, engine;dur=0.1;desc="hit", validate;dur=230.4
+	public synchronized String toServerTiming() {
+		StringBuilder header = new StringBuilder();
+		for (Map.Entry<String, Long> phase : phases.entrySet()) {
+			if (header.length() > 0) {
+				header.append(", ");
+			}
+			header.append(phase.getKey()).append(";dur=").append(String.format(Locale.ROOT, "%.1f", toMillis(phase.getValue())));
+			if (ValidationMetrics.PHASE_ENGINE.equals(phase.getKey()) && engineLease != null) {
+				header.append(";desc=\"").append(engineLease.tag()).append('"');
+			}
+		}
+		if (resultCacheHit) {
+			if (header.length() > 0) {
+				header.append(", ");
+			}
+			header.append("result-cache;desc=\"hit\"");
+		}
+		return header.toString();
+	}
+}
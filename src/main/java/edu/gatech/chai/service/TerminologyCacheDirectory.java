@@ -0,0 +1,309 @@
+package edu.gatech.chai.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk home of the validator's TerminologyCache files, kept across
+ * restarts. Each FHIR version gets its own folder, and within it every
+ * TerminologyCache (one per base engine) writes its own subfolder: a
+ * TerminologyCache rewrites whole files from its own memory, so two of them
+ * sharing a folder would overwrite each other's answers.
+ *
+ * At startup the subfolders of each version are merged entry by entry into
+ * the version folder and back into every subfolder, so every engine starts
+ * with all the answers any engine has found. A subfolder created later starts
+ * from the version folder. Answers found while running reach the other
+ * engines at the next restart.
+ *
+ * The folder can be seeded from a zip or a directory of cache files exported
+ * from another instance, and is pruned oldest-file-first when it grows past
+ * its size budget, at startup and then periodically, never while an engine
+ * is loading its cache files (see withFolder).
+ */
+public class TerminologyCacheDirectory {
+
+	private static final Logger logger = LoggerFactory.getLogger(TerminologyCacheDirectory.class);
+
+	//Separates the entries of a TerminologyCache file; each entry is the request, ####, then the response
+	private static final String ENTRY_MARKER = "-------------------------------------------------------------------------------------";
+	private static final String REQUEST_END = "####";
+	private static final String CACHE_FILE_EXTENSION = ".cache";
+
+	private final File root;
+	private final long maxBytes;
+	private ScheduledExecutorService pruner;
+
+	public TerminologyCacheDirectory(String directory, long maxBytes) {
+		this.root = directory == null || directory.isEmpty() ? null : new File(directory);
+		this.maxBytes = maxBytes;
+	}
+
+	public boolean isEnabled() {
+		return root != null;
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	//Uses a TerminologyCache folder while the directory is locked
+	@FunctionalInterface
+	public interface FolderUser {
+		void use(String folder) throws IOException;
+	}
+
+	/**
+	 * Hands the folder of one TerminologyCache for the version to the user,
+	 * e.g. to load the cache from it, holding the directory lock throughout
+	 * so pruning cannot delete files while they are read. writer tells apart
+	 * caches of the same version, e.g. base engines for different terminology
+	 * servers; a new folder starts with the version's merged cache files.
+	 */
+	public synchronized void withFolder(String version, String writer, FolderUser user) throws IOException {
+		user.use(folderFor(version, writer));
+	}
+
+	private String folderFor(String version, String writer) throws IOException {
+		File versionFolder = new File(root, version == null ? "default" : version);
+		File folder = new File(versionFolder, writer);
+		if (!folder.exists()) {
+			Files.createDirectories(folder.toPath());
+			File[] merged = versionFolder.listFiles(File::isFile);
+			if (merged != null) {
+				for (File file : merged) {
+					Files.copy(file.toPath(), new File(folder, file.getName()).toPath());
+				}
+			}
+		}
+		return folder.getAbsolutePath();
+	}
+
+	/**
+	 * Merges the cache files of every version: entries of files with the same
+	 * name are combined, the most recently written file winning for a request
+	 * found in several. The result is written to the version folder and to each
+	 * writer folder. Files that are not TerminologyCache entry files are copied
+	 * newest first instead. Call before any engine is built.
+	 */
+	public synchronized void mergeWriters() {
+		if (!isEnabled() || !root.exists()) {
+			return;
+		}
+		File[] versionFolders = root.listFiles(File::isDirectory);
+		if (versionFolders == null) {
+			return;
+		}
+		for (File versionFolder : versionFolders) {
+			try {
+				mergeVersion(versionFolder);
+			} catch (IOException e) {
+				logger.warn("Could not merge terminology cache " + versionFolder, e);
+			}
+		}
+	}
+
+	private void mergeVersion(File versionFolder) throws IOException {
+		List<File> folders = new ArrayList<>();
+		folders.add(versionFolder);
+		File[] writers = versionFolder.listFiles(File::isDirectory);
+		if (writers != null) {
+			for (File writer : writers) {
+				folders.add(writer);
+			}
+		}
+		Map<String, List<File>> byName = new TreeMap<>();
+		for (File folder : folders) {
+			File[] files = folder.listFiles(File::isFile);
+			if (files != null) {
+				for (File file : files) {
+					byName.computeIfAbsent(file.getName(), name -> new ArrayList<>()).add(file);
+				}
+			}
+		}
+		int merged = 0;
+		for (Map.Entry<String, List<File>> name : byName.entrySet()) {
+			List<File> files = name.getValue();
+			files.sort(Comparator.comparingLong(File::lastModified).reversed());
+			byte[] content = name.getKey().endsWith(CACHE_FILE_EXTENSION) ? mergeEntries(files) : null;
+			if (content == null) {
+				content = Files.readAllBytes(files.get(0).toPath());
+			}
+			for (File folder : folders) {
+				File target = new File(folder, name.getKey());
+				if (!target.exists() || !Arrays.equals(content, Files.readAllBytes(target.toPath()))) {
+					File temp = new File(folder, name.getKey() + ".tmp");
+					Files.write(temp.toPath(), content);
+					Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			if (files.size() > 1) {
+				merged++;
+			}
+		}
+		if (merged > 0) {
+			logger.info("Merged " + merged + " terminology cache files across " + (folders.size() - 1) + " engines in " + versionFolder);
+		}
+	}
+
+	//Union of the entries of the files, newest first; null when a file does not have the entry layout
+	protected static byte[] mergeEntries(List<File> newestFirst) throws IOException {
+		Map<String, String> entries = new LinkedHashMap<>();
+		for (File file : newestFirst) {
+			String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			if (!content.contains(ENTRY_MARKER)) {
+				return null;
+			}
+			StringBuilder entry = new StringBuilder();
+			for (String line : content.split("\\r?\\n", -1)) {
+				if (line.trim().equals(ENTRY_MARKER)) {
+					addEntry(entries, entry.toString());
+					entry.setLength(0);
+				} else {
+					entry.append(line).append("\r\n");
+				}
+			}
+			addEntry(entries, entry.toString());
+		}
+		StringBuilder merged = new StringBuilder(ENTRY_MARKER).append("\r\n");
+		for (String entry : entries.values()) {
+			merged.append(entry).append(ENTRY_MARKER).append("\r\n");
+		}
+		return merged.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	//Text without a request, e.g. blank lines before the first marker, is not an entry and is dropped
+	private static void addEntry(Map<String, String> entries, String entry) {
+		int end = entry.indexOf(REQUEST_END);
+		if (end < 0) {
+			return;
+		}
+		entries.putIfAbsent(entry.substring(0, end).trim(), entry);
+	}
+
+	/**
+	 * Copies cache files from a zip or directory into the cache. Files already
+	 * present are kept, since they are at least as fresh as the seed.
+	 */
+	public synchronized void seedFrom(String seedPath) throws IOException {
+		File seed = new File(seedPath);
+		if (!seed.exists()) {
+			logger.warn("Terminology cache seed " + seedPath + " does not exist");
+			return;
+		}
+		Files.createDirectories(root.toPath());
+		int copied = 0;
+		if (seed.isDirectory()) {
+			Path source = seed.toPath();
+			try (Stream<Path> files = Files.walk(source)) {
+				for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+					Path target = root.toPath().resolve(source.relativize(file).toString());
+					if (!Files.exists(target)) {
+						Files.createDirectories(target.getParent());
+						Files.copy(file, target);
+						copied++;
+					}
+				}
+			}
+		} else {
+			try (ZipFile zip = new ZipFile(seed)) {
+				for (ZipEntry entry : zip.stream().filter(e -> !e.isDirectory()).collect(Collectors.toList())) {
+					Path target = root.toPath().resolve(entry.getName()).normalize();
+					if (!target.startsWith(root.toPath().normalize())) {
+						//Skip entries that would land outside the cache folder
+						continue;
+					}
+					if (!Files.exists(target)) {
+						Files.createDirectories(target.getParent());
+						try (InputStream in = zip.getInputStream(entry)) {
+							Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+						}
+						copied++;
+					}
+				}
+			}
+		}
+		logger.info("Seeded terminology cache " + root + " with " + copied + " files from " + seedPath);
+	}
+
+	//Prunes the folder every interval until shutdown
+	public synchronized void startPruning(long intervalMinutes) {
+		if (!isEnabled() || maxBytes <= 0 || pruner != null) {
+			return;
+		}
+		pruner = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "terminology-cache-pruner");
+			t.setDaemon(true);
+			return t;
+		});
+		pruner.scheduleWithFixedDelay(this::enforceLimit, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+	public synchronized void shutdown() {
+		if (pruner != null) {
+			pruner.shutdownNow();
+		}
+	}
+
+	//Deletes the least recently written cache files until the folder fits its budget
+	public synchronized void enforceLimit() {
+		if (!isEnabled() || maxBytes <= 0 || !root.exists()) {
+			return;
+		}
+		try (Stream<Path> walk = Files.walk(root.toPath())) {
+			List<File> files = walk.filter(Files::isRegularFile).map(Path::toFile)
+				.sorted(Comparator.comparingLong(File::lastModified))
+				.collect(Collectors.toList());
+			long total = files.stream().mapToLong(File::length).sum();
+			int deleted = 0;
+			for (File file : files) {
+				if (total <= maxBytes) {
+					break;
+				}
+				long length = file.length();
+				if (file.delete()) {
+					total -= length;
+					deleted++;
+				}
+			}
+			if (deleted > 0) {
+				logger.info("Pruned " + deleted + " terminology cache files from " + root);
+			}
+		} catch (IOException e) {
+			logger.warn("Could not prune terminology cache " + root, e);
+		}
+	}
+
+	public synchronized long sizeInBytes() {
+		if (!isEnabled() || !root.exists()) {
+			return 0;
+		}
+		try (Stream<Path> walk = Files.walk(root.toPath())) {
+			return walk.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package edu.gatech.chai.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.cli.model.FileInfo;
+
+/**
+ * The result of validating one in-memory source: the raw validation messages,
+ * the R5 OperationOutcome built from them, or the error that stopped validation.
+ */
+public class ValidatedSource {
+
+	private final FileInfo source;
+	private final List<ValidationMessage> messages = new ArrayList<>();
+	private OperationOutcome outcome;
+	private Exception error;
+
+	public ValidatedSource(FileInfo source) {
+		this.source = source;
+	}
+
+	//The same result reported against another source with identical content
+	public ValidatedSource copyFor(FileInfo otherSource) {
+		ValidatedSource copy = new ValidatedSource(otherSource);
+		copy.messages.addAll(messages);
+		copy.outcome = outcome;
+		copy.error = error;
+		return copy;
+	}
+
+	public FileInfo getSource() {
+		return source;
+	}
+
+	public List<ValidationMessage> getMessages() {
+		return messages;
+	}
+
+	public OperationOutcome getOutcome() {
+		return outcome;
+	}
+
+	public ValidatedSource setOutcome(OperationOutcome outcome) {
+		this.outcome = outcome;
+		return this;
+	}
+
+	public Exception getError() {
+		return error;
+	}
+
+	public ValidatedSource setError(Exception error) {
+		this.error = error;
+		return this;
+	}
+
+	public boolean hasError() {
+		return error != null;
+	}
+}
@@ -0,0 +1,347 @@
+package edu.gatech.chai.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.hl7.fhir.validation.ValidationEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of ValidationEngines keyed by {@link EngineKey}.
+ *
+ * The first engine for a key is built exactly once, even when several
+ * identical requests arrive together; the other callers wait for that build.
+ * A ValidationEngine is not safe to share between concurrent validations, so
+ * each key holds up to instancesPerKey engines which are leased out one caller
+ * at a time. When more than one instance is allowed the built engine is kept
+ * as an untouched template and the leased instances are forked from it.
+ *
+ * The pool holds at most maxEngines keys and an estimated maxBytes of engine
+ * heap. When a new build takes it past either limit, the least recently used
+ * keys are evicted, except pinned keys and the key just built. Leases already
+ * out on an evicted key keep their engine until closed; the next request for
+ * the key builds it again.
+ */
+public class ValidationEnginePool {
+
+	private static final Logger logger = LoggerFactory.getLogger(ValidationEnginePool.class);
+
+	@FunctionalInterface
+	public interface EngineForker {
+		ValidationEngine fork(ValidationEngine template) throws Exception;
+	}
+
+	/**
+	 * How a lease got its engine: from an engine that was already built (hit),
+	 * by building it (miss), or by waiting for another caller's build of the
+	 * same key (coalesced).
+	 */
+	public enum LeaseOutcome {
+		HIT, MISS, COALESCED;
+
+		public String tag() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+
+		//A build is slower than waiting on part of one, which is slower than a hit
+		public boolean isSlowerThan(LeaseOutcome other) {
+			return rank() > other.rank();
+		}
+
+		private int rank() {
+			return this == MISS ? 2 : this == COALESCED ? 1 : 0;
+		}
+	}
+
+	@FunctionalInterface
+	public interface EngineSizer {
+		//Estimated heap held by the engine, in bytes
+		long estimate(EngineKey key, ValidationEngine engine);
+	}
+
+	private final ConcurrentHashMap<EngineKey, KeyedPool> pools = new ConcurrentHashMap<>();
+	private final int instancesPerKey;
+	private final EngineForker forker;
+	private final int maxEngines;
+	private final long maxBytes;
+	private final Predicate<EngineKey> pinned;
+	private final EngineSizer sizer;
+	private final Consumer<KeyedPool> evictionListener;
+	private final AtomicLong useClock = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ValidationEnginePool(int instancesPerKey, EngineForker forker) {
+		this(instancesPerKey, forker, 0, 0, key -> false, (key, engine) -> 0, pool -> {});
+	}
+
+	//maxEngines and maxBytes of 0 leave that limit off
+	public ValidationEnginePool(int instancesPerKey, EngineForker forker, int maxEngines, long maxBytes,
+			Predicate<EngineKey> pinned, EngineSizer sizer, Consumer<KeyedPool> evictionListener) {
+		this.instancesPerKey = Math.max(1, instancesPerKey);
+		this.forker = forker;
+		this.maxEngines = Math.max(0, maxEngines);
+		this.maxBytes = Math.max(0, maxBytes);
+		this.pinned = pinned;
+		this.sizer = sizer;
+		this.evictionListener = evictionListener;
+	}
+
+	/**
+	 * Lease an engine for the key, building it with the builder if no engine
+	 * exists yet. The lease must be closed to hand the engine back.
+	 */
+	public Lease acquire(EngineKey key, Callable<ValidationEngine> builder) throws Exception {
+		KeyedPool pool = pools.computeIfAbsent(key, KeyedPool::new);
+		try {
+			Lease lease = pool.acquire(builder);
+			if (lease.getOutcome() == LeaseOutcome.MISS) {
+				enforceLimits(pool);
+			}
+			return lease;
+		} catch (Exception e) {
+			if (pool.templateFailed()) {
+				//Let the next request try the build again
+				pools.remove(key, pool);
+			}
+			throw e;
+		}
+	}
+
+	public boolean contains(EngineKey key) {
+		KeyedPool pool = pools.get(key);
+		return pool != null && pool.template.isDone() && !pool.templateFailed();
+	}
+
+	public Map<EngineKey, KeyedPool> getPools() {
+		return pools;
+	}
+
+	public int getInstancesPerKey() {
+		return instancesPerKey;
+	}
+
+	public boolean isPinned(EngineKey key) {
+		return pinned.test(key);
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	//Estimated heap of every built engine in the pool
+	public long getTotalBytes() {
+		long total = 0;
+		for (KeyedPool pool : builtPools()) {
+			total += pool.getEstimatedBytes();
+		}
+		return total;
+	}
+
+	private List<KeyedPool> builtPools() {
+		List<KeyedPool> built = new ArrayList<>();
+		for (KeyedPool pool : pools.values()) {
+			if (pool.template.isDone() && !pool.templateFailed()) {
+				built.add(pool);
+			}
+		}
+		return built;
+	}
+
+	//Evicts least recently used keys until the pool is within both limits
+	private synchronized void enforceLimits(KeyedPool justBuilt) {
+		while (true) {
+			List<KeyedPool> built = builtPools();
+			long total = 0;
+			for (KeyedPool pool : built) {
+				total += pool.getEstimatedBytes();
+			}
+			boolean overCount = maxEngines > 0 && built.size() > maxEngines;
+			boolean overBytes = maxBytes > 0 && total > maxBytes;
+			if (!overCount && !overBytes) {
+				return;
+			}
+			KeyedPool victim = built.stream()
+				.filter(pool -> pool != justBuilt && !pinned.test(pool.key))
+				.min(Comparator.comparingLong(pool -> pool.lastUsed))
+				.orElse(null);
+			if (victim == null) {
+				logger.warn("Engine pool holds " + built.size() + " engines and an estimated " + (total / (1024 * 1024))
+					+ " MB, over its limits, but every other engine is pinned");
+				return;
+			}
+			if (pools.remove(victim.key, victim)) {
+				evictions.incrementAndGet();
+				logger.info("Evicted validation engine for " + victim.key + " (estimated " + (victim.getEstimatedBytes() / (1024 * 1024))
+					+ " MB, " + (overCount ? "over " + maxEngines + " engines" : "over " + (maxBytes / (1024 * 1024)) + " MB") + ")");
+				evictionListener.accept(victim);
+			}
+		}
+	}
+
+	public class KeyedPool {
+		private final EngineKey key;
+		private final CompletableFuture<ValidationEngine> template = new CompletableFuture<>();
+		private final AtomicBoolean building = new AtomicBoolean();
+		private final LinkedBlockingDeque<ValidationEngine> idle = new LinkedBlockingDeque<>();
+		private final AtomicInteger created = new AtomicInteger();
+		private volatile long lastUsed;
+		private volatile long lastUsedAt;
+		private volatile long estimatedBytes;
+		private volatile int resourceCount;
+
+		KeyedPool(EngineKey key) {
+			this.key = key;
+		}
+
+		public EngineKey getKey() {
+			return key;
+		}
+
+		public int getCreatedCount() {
+			return created.get();
+		}
+
+		public int getIdleCount() {
+			return idle.size();
+		}
+
+		//Estimated heap of the built engine; forked instances share its definitions and are not counted again
+		public long getEstimatedBytes() {
+			return estimatedBytes;
+		}
+
+		public int getResourceCount() {
+			return resourceCount;
+		}
+
+		//Wall clock time of the last lease
+		public long getLastUsedAt() {
+			return lastUsedAt;
+		}
+
+		boolean templateFailed() {
+			return template.isCompletedExceptionally();
+		}
+
+		Lease acquire(Callable<ValidationEngine> builder) throws Exception {
+			boolean built = false;
+			if (building.compareAndSet(false, true)) {
+				built = true;
+				logger.info("Building validation engine for " + key);
+				try {
+					ValidationEngine engine = builder.call();
+					estimatedBytes = sizer.estimate(key, engine);
+					resourceCount = engine.getContext().countAllCaches();
+					template.complete(engine);
+				} catch (Throwable t) {
+					template.completeExceptionally(t);
+				}
+			}
+			boolean waited = !built && !template.isDone();
+			ValidationEngine templateEngine = awaitTemplate();
+			lastUsed = useClock.incrementAndGet();
+			lastUsedAt = System.currentTimeMillis();
+			ValidationEngine engine = idle.pollFirst();
+			if (engine == null) {
+				if (reserveInstance()) {
+					try {
+						engine = instancesPerKey == 1 ? templateEngine : forker.fork(templateEngine);
+					} catch (Exception e) {
+						created.decrementAndGet();
+						throw e;
+					}
+				} else {
+					engine = idle.takeFirst();
+				}
+			}
+			return new Lease(this, engine, built ? LeaseOutcome.MISS : waited ? LeaseOutcome.COALESCED : LeaseOutcome.HIT);
+		}
+
+		private ValidationEngine awaitTemplate() throws Exception {
+			try {
+				return template.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+		}
+
+		private boolean reserveInstance() {
+			while (true) {
+				int current = created.get();
+				if (current >= instancesPerKey) {
+					return false;
+				}
+				if (created.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+
+		void release(ValidationEngine engine) {
+			//Most recently used engine goes first so the hottest instance is reused
+			idle.offerFirst(engine);
+		}
+	}
+
+	/**
+	 * Exclusive use of one engine until closed.
+	 */
+	public static class Lease implements AutoCloseable {
+		private final KeyedPool pool;
+		private final ValidationEngine engine;
+		private final LeaseOutcome outcome;
+		private boolean closed;
+
+		Lease(KeyedPool pool, ValidationEngine engine, LeaseOutcome outcome) {
+			this.pool = pool;
+			this.engine = engine;
+			this.outcome = outcome;
+		}
+
+		public ValidationEngine getEngine() {
+			return engine;
+		}
+
+		public EngineKey getKey() {
+			return pool.getKey();
+		}
+
+		public KeyedPool getPool() {
+			return pool;
+		}
+
+		public LeaseOutcome getOutcome() {
+			return outcome;
+		}
+
+		//True only when the engine was already built; a lease that waited for a build, its own or another caller's, is not a hit
+		public boolean isCacheHit() {
+			return outcome == LeaseOutcome.HIT;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				pool.release(engine);
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package edu.gatech.chai.service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs asynchronous $validate requests on a fixed number of workers behind a
+ * bounded queue, and keeps each finished job's outcome until it has been
+ * complete for the result TTL.
+ *
+ * Submissions are rejected once the queue is full rather than queued without
+ * limit; the caller turns that into a 429 with a Retry-After estimated from
+ * the recent job durations.
+ */
+public class ValidationJobManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(ValidationJobManager.class);
+
+	public enum JobState { QUEUED, IN_PROGRESS, COMPLETE, FAILED }
+
+	public static class ValidationJob {
+		private final String id = UUID.randomUUID().toString();
+		private final long submittedAt = System.currentTimeMillis();
+		private volatile JobState state = JobState.QUEUED;
+		private volatile long startedAt;
+		private volatile long completedAt;
+		private volatile OperationOutcome outcome;
+		private volatile Throwable error;
+
+		public String getId() {
+			return id;
+		}
+
+		public JobState getState() {
+			return state;
+		}
+
+		public long getSubmittedAt() {
+			return submittedAt;
+		}
+
+		public long getStartedAt() {
+			return startedAt;
+		}
+
+		public long getCompletedAt() {
+			return completedAt;
+		}
+
+		public OperationOutcome getOutcome() {
+			return outcome;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+
+		public boolean isDone() {
+			return state == JobState.COMPLETE || state == JobState.FAILED;
+		}
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledExecutorService reaper;
+	private final Map<String, ValidationJob> jobs = new ConcurrentHashMap<>();
+	private final long resultTtlMillis;
+	//Exponentially weighted average job run time, used for Retry-After
+	private final AtomicLong averageRunMillis = new AtomicLong(10000);
+
+	public ValidationJobManager(int threads, int queueSize, int resultTtlMinutes) {
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), r -> {
+				Thread t = new Thread(r, "validation-job-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}, new ThreadPoolExecutor.AbortPolicy());
+		resultTtlMillis = TimeUnit.MINUTES.toMillis(Math.max(1, resultTtlMinutes));
+		reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "validation-job-reaper");
+			t.setDaemon(true);
+			return t;
+		});
+		reaper.scheduleWithFixedDelay(this::expireJobs, 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Queue a validation. Throws RejectedExecutionException when the queue is full.
+	 */
+	public ValidationJob submit(Callable<OperationOutcome> validation) throws RejectedExecutionException {
+		ValidationJob job = new ValidationJob();
+		jobs.put(job.id, job);
+		try {
+			executor.execute(() -> run(job, validation));
+		} catch (RejectedExecutionException e) {
+			jobs.remove(job.id);
+			throw e;
+		}
+		logger.info("Queued validation job " + job.id + "; " + executor.getQueue().size() + " jobs waiting");
+		return job;
+	}
+
+	protected void run(ValidationJob job, Callable<OperationOutcome> validation) {
+		job.startedAt = System.currentTimeMillis();
+		job.state = JobState.IN_PROGRESS;
+		try {
+			job.outcome = validation.call();
+		} catch (Throwable t) {
+			//Errors too, e.g. a StackOverflowError on a deeply nested Bundle, so no job stays in progress
+			job.error = t;
+		} finally {
+			//completedAt before the state: expireJobs reads it as soon as the job is done
+			job.completedAt = System.currentTimeMillis();
+			job.state = job.error == null ? JobState.COMPLETE : JobState.FAILED;
+		}
+		if (job.error != null) {
+			logger.error("Validation job " + job.id + " failed", job.error);
+		}
+		long runMillis = job.completedAt - job.startedAt;
+		averageRunMillis.updateAndGet(average -> (average * 7 + runMillis) / 8);
+	}
+
+	public ValidationJob getJob(String id) {
+		return id == null ? null : jobs.get(id);
+	}
+
+	//Seconds until a worker is likely to be free for a new job
+	public long getRetryAfterSeconds() {
+		long waiting = executor.getQueue().size() + executor.getActiveCount();
+		long millis = averageRunMillis.get() * waiting / executor.getMaximumPoolSize();
+		return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(millis));
+	}
+
+	protected void expireJobs() {
+		long cutoff = System.currentTimeMillis() - resultTtlMillis;
+		Iterator<ValidationJob> iterator = jobs.values().iterator();
+		while (iterator.hasNext()) {
+			ValidationJob job = iterator.next();
+			if (job.isDone() && job.completedAt < cutoff) {
+				iterator.remove();
+			}
+		}
+	}
+
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	public int getRunning() {
+		return executor.getActiveCount();
+	}
+
+	public int getRetained() {
+		return jobs.size();
+	}
+
+	public void shutdown() {
+		reaper.shutdownNow();
+		executor.shutdownNow();
+	}
+}
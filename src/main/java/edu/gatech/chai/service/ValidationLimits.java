@@ -0,0 +1,231 @@
+package edu.gatech.chai.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import org.hl7.fhir.r5.model.BooleanType;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.cli.utils.ValidationLevel;
+
+/**
+ * How much of a validation a caller wants: at most maxErrors errors, and only
+ * issues of minSeverity or worse.
+ *
+ * A minSeverity of warning or worse also sets the engine's validation level
+ * (see engineLevel), so the validator does not check for the hints, or the
+ * hints and warnings, that would be dropped. Beyond that, both limits are
+ * applied to the list from newMessageList: messages below the minimum
+ * severity are not kept, and neither is anything reported after the error
+ * that reaches maxErrors. The validator itself still runs to the end of the
+ * resource, since it has no way to be stopped that leaves it in a known
+ * state, so within one validation maxErrors only shrinks the outcome. A
+ * partitioned Bundle stops between partitions instead (see isReached).
+ * Whether the list filled up is checked afterwards, and the outcome of such
+ * a validation carries the urn:local:maxErrorsReached extension, since it is
+ * a prefix of the full outcome rather than the whole of it.
+ */
+public class ValidationLimits {
+
+	public static final String EXT_MAX_ERRORS_REACHED = "urn:local:maxErrorsReached";
+
+	public static final ValidationLimits NONE = new ValidationLimits(0, null);
+
+	private final int maxErrors;
+	private final IssueSeverity minSeverity;
+
+	//maxErrors 0 is no limit; a null minSeverity reports every issue
+	public ValidationLimits(int maxErrors, IssueSeverity minSeverity) {
+		this.maxErrors = Math.max(0, maxErrors);
+		this.minSeverity = minSeverity;
+	}
+
+	/**
+	 * The severity for one of fatal, error, warning or information, or null
+	 * for null or empty. Anything else is an IllegalArgumentException.
+	 */
+	public static IssueSeverity parseSeverity(String code) {
+		if (code == null || code.trim().isEmpty()) {
+			return null;
+		}
+		switch (code.trim().toLowerCase(Locale.ROOT)) {
+		case "fatal":
+			return IssueSeverity.FATAL;
+		case "error":
+			return IssueSeverity.ERROR;
+		case "warning":
+			return IssueSeverity.WARNING;
+		case "information":
+			return IssueSeverity.INFORMATION;
+		default:
+			throw new IllegalArgumentException("Unknown severity " + code + ". Expecting fatal, error, warning or information");
+		}
+	}
+
+	public boolean isNone() {
+		return maxErrors == 0 && minSeverity == null;
+	}
+
+	public int getMaxErrors() {
+		return maxErrors;
+	}
+
+	public IssueSeverity getMinSeverity() {
+		return minSeverity;
+	}
+
+	//Part of the result cache key: results under different limits are different results
+	@Override
+	public String toString() {
+		return "maxErrors=" + maxErrors + ";minSeverity=" + (minSeverity == null ? "" : minSeverity.toCode());
+	}
+
+	/**
+	 * The validation level of an engine for these limits, from the level the
+	 * request would otherwise use: warnings for a minSeverity of warning,
+	 * errors for error and fatal. The level is part of the EngineKey, so such
+	 * requests get engines of their own.
+	 */
+	public ValidationLevel engineLevel(ValidationLevel level) {
+		if (minSeverity == IssueSeverity.FATAL || minSeverity == IssueSeverity.ERROR) {
+			return ValidationLevel.ERRORS;
+		}
+		if (minSeverity == IssueSeverity.WARNING && (level == null || level == ValidationLevel.HINTS)) {
+			return ValidationLevel.WARNINGS;
+		}
+		return level;
+	}
+
+	public boolean reports(IssueSeverity severity) {
+		return minSeverity == null || severity == null || severity.ordinal() <= minSeverity.ordinal();
+	}
+
+	private boolean reports(ValidationMessage.IssueSeverity level) {
+		if (minSeverity == null || level == null) {
+			return true;
+		}
+		switch (level) {
+		case FATAL:
+			return reports(IssueSeverity.FATAL);
+		case ERROR:
+			return reports(IssueSeverity.ERROR);
+		case WARNING:
+			return reports(IssueSeverity.WARNING);
+		case INFORMATION:
+			return reports(IssueSeverity.INFORMATION);
+		default:
+			return true;
+		}
+	}
+
+	private static boolean isError(ValidationMessage.IssueSeverity level) {
+		return level == ValidationMessage.IssueSeverity.FATAL || level == ValidationMessage.IssueSeverity.ERROR;
+	}
+
+	private static boolean isError(IssueSeverity severity) {
+		return severity == IssueSeverity.FATAL || severity == IssueSeverity.ERROR;
+	}
+
+	//The list the validator reports into
+	public List<ValidationMessage> newMessageList() {
+		return isNone() ? new ArrayList<>() : new LimitedMessageList(this);
+	}
+
+	//Whether messages is a list from newMessageList that reached maxErrors and dropped what came after
+	public static boolean isStopped(List<ValidationMessage> messages) {
+		return messages instanceof LimitedMessageList && ((LimitedMessageList) messages).stopped;
+	}
+
+	/**
+	 * Applies the limits to an outcome merged from several validations, e.g.
+	 * the partitions of a Bundle, each of which stopped at its own maxErrors.
+	 */
+	public OperationOutcome trim(OperationOutcome outcome) {
+		if (isNone()) {
+			return outcome;
+		}
+		int errors = 0;
+		boolean stopped = outcome.hasExtension(EXT_MAX_ERRORS_REACHED);
+		Iterator<OperationOutcomeIssueComponent> issues = outcome.getIssue().iterator();
+		while (issues.hasNext()) {
+			OperationOutcomeIssueComponent issue = issues.next();
+			if (!reports(issue.getSeverity())) {
+				issues.remove();
+			}
+			else if (isError(issue.getSeverity()) && maxErrors > 0 && ++errors > maxErrors) {
+				issues.remove();
+				stopped = true;
+			}
+		}
+		if (stopped) {
+			markStopped(outcome);
+		}
+		return outcome;
+	}
+
+	//Whether the outcome was cut short or already holds maxErrors errors, so nothing more needs validating
+	public boolean isReached(OperationOutcome outcome) {
+		if (outcome.hasExtension(EXT_MAX_ERRORS_REACHED)) {
+			return true;
+		}
+		if (maxErrors == 0) {
+			return false;
+		}
+		int errors = 0;
+		for (OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+			if (isError(issue.getSeverity()) && ++errors >= maxErrors) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static void markStopped(OperationOutcome outcome) {
+		if (!outcome.hasExtension(EXT_MAX_ERRORS_REACHED)) {
+			outcome.addExtension(EXT_MAX_ERRORS_REACHED, new BooleanType(true));
+		}
+	}
+
+	/**
+	 * Drops messages below the minimum severity, and every message once
+	 * maxErrors errors are kept. The validator also adds lists it built for a
+	 * part of the resource, so addAll goes through add.
+	 */
+	private static class LimitedMessageList extends ArrayList<ValidationMessage> {
+		private static final long serialVersionUID = 1L;
+
+		private final transient ValidationLimits limits;
+		private int errors;
+		private boolean stopped;
+
+		LimitedMessageList(ValidationLimits limits) {
+			this.limits = limits;
+		}
+
+		@Override
+		public boolean add(ValidationMessage message) {
+			if (stopped || !limits.reports(message.getLevel())) {
+				return false;
+			}
+			super.add(message);
+			if (isError(message.getLevel()) && limits.maxErrors > 0 && ++errors >= limits.maxErrors) {
+				stopped = true;
+			}
+			return true;
+		}
+
+		@Override
+		public boolean addAll(Collection<? extends ValidationMessage> messages) {
+			boolean changed = false;
+			for (ValidationMessage message : messages) {
+				changed |= add(message);
+			}
+			return changed;
+		}
+	}
+}
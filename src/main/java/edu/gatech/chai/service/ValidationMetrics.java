@@ -0,0 +1,221 @@
+package edu.gatech.chai.service;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r5.model.OperationOutcome;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+/**
+ * Prometheus metrics for the validator service.
+ *
+ * Every phase of $validate and $translate is timed under validator.phase with
+ * operation, phase and ig tags. The ig tag only carries the base-supported-igs
+ * values; any other ig is reported as "other" so user input cannot grow the
+ * number of series without bound.
+ */
+public class ValidationMetrics {
+
+	public static final String PHASE_PARSE = "parse";
+	public static final String PHASE_VERSION = "version";
+	public static final String PHASE_ENGINE = "engine";
+	public static final String PHASE_PROFILES = "profiles";
+	public static final String PHASE_VALIDATE = "validate";
+	public static final String PHASE_ENCODE = "encode";
+
+	private final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+	private final Set<String> knownIgs = new HashSet<>();
+
+	public ValidationMetrics(List<String> baseSupportedIgs) {
+		knownIgs.addAll(baseSupportedIgs);
+		new JvmMemoryMetrics().bindTo(registry);
+		new JvmGcMetrics().bindTo(registry);
+		new JvmThreadMetrics().bindTo(registry);
+		new ProcessorMetrics().bindTo(registry);
+	}
+
+	public PrometheusMeterRegistry getRegistry() {
+		return registry;
+	}
+
+	//Prometheus text exposition of every registered meter
+	public String scrape() {
+		return registry.scrape();
+	}
+
+	public String igTag(String ig) {
+		if (ig == null || ig.isEmpty()) {
+			return "none";
+		}
+		return knownIgs.contains(ig) ? ig : "other";
+	}
+
+	public String igTag(List<String> igs) {
+		return igs.isEmpty() ? igTag((String) null) : igTag(String.join(",", igs));
+	}
+
+	public Timer phaseTimer(String operation, String phase, String ig) {
+		return Timer.builder("validator.phase")
+			.description("Time spent in each phase of a validator operation")
+			.tag("operation", operation)
+			.tag("phase", phase)
+			.tag("ig", igTag(ig))
+			.publishPercentileHistogram()
+			.register(registry);
+	}
+
+	public <T> T time(String operation, String phase, String ig, Callable<T> work) throws Exception {
+		return time(operation, phase, ig, null, work);
+	}
+
+	//Also adds the phase to the request's own timing when there is one
+	public <T> T time(String operation, String phase, String ig, RequestTiming timing, Callable<T> work) throws Exception {
+		long start = System.nanoTime();
+		try {
+			return work.call();
+		} finally {
+			long nanos = System.nanoTime() - start;
+			phaseTimer(operation, phase, ig).record(nanos, TimeUnit.NANOSECONDS);
+			if (timing != null) {
+				timing.record(phase, nanos);
+			}
+		}
+	}
+
+	public void recordEngineLease(EngineKey key, ValidationEnginePool.LeaseOutcome outcome) {
+		Counter.builder("validator.engine.cache")
+			.description("Engine leases served by an existing engine (hit), by a new build (miss) or by waiting for another request's build (coalesced)")
+			.tag("result", outcome.tag())
+			.tag("ig", igTag(key.getIgs()))
+			.register(registry)
+			.increment();
+	}
+
+	public void recordEngineBuild(EngineKey key, long nanos) {
+		Timer.builder("validator.engine.build")
+			.description("Time to build a validation engine")
+			.tag("ig", igTag(key.getIgs()))
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	//Resident resource count and estimated heap of a built engine; the gauges only hold a weak reference to its pool
+	public void registerEngine(ValidationEnginePool.KeyedPool pool) {
+		Gauge.builder("validator.engine.resources", pool, ValidationEnginePool.KeyedPool::getResourceCount)
+			.description("Resources loaded in a validation engine, from countAllCaches()")
+			.tags(engineTags(pool.getKey()))
+			.register(registry);
+		Gauge.builder("validator.engine.footprint", pool, ValidationEnginePool.KeyedPool::getEstimatedBytes)
+			.description("Estimated heap held by a validation engine beyond the shared base engine")
+			.baseUnit("bytes")
+			.tags(engineTags(pool.getKey()))
+			.register(registry);
+	}
+
+	//Drops an evicted engine's gauges so a rebuild registers against the new pool
+	public void removeEngine(ValidationEnginePool.KeyedPool pool) {
+		for (String name : new String[] {"validator.engine.resources", "validator.engine.footprint"}) {
+			registry.find(name).tag("engine", pool.getKey().getId()).meters().forEach(registry::remove);
+		}
+	}
+
+	//The engine tag tells apart keys that share the other tags, e.g. two IGs both reported as "other"
+	private Tags engineTags(EngineKey key) {
+		return Tags.of("engine", key.getId(), "ig", igTag(key.getIgs()), "version", String.valueOf(key.getVersion()), "sct", String.valueOf(key.getSnomedCT()));
+	}
+
+	public void recordIssues(String ig, OperationOutcome outcome) {
+		int fatal = 0;
+		int error = 0;
+		int warning = 0;
+		int information = 0;
+		for (OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+			if (issue.getSeverity() == OperationOutcome.IssueSeverity.FATAL) {
+				fatal++;
+			} else if (issue.getSeverity() == OperationOutcome.IssueSeverity.ERROR) {
+				error++;
+			} else if (issue.getSeverity() == OperationOutcome.IssueSeverity.WARNING) {
+				warning++;
+			} else {
+				information++;
+			}
+		}
+		issueSummary(ig, "fatal").record(fatal);
+		issueSummary(ig, "error").record(error);
+		issueSummary(ig, "warning").record(warning);
+		issueSummary(ig, "information").record(information);
+	}
+
+	private DistributionSummary issueSummary(String ig, String severity) {
+		return DistributionSummary.builder("validator.issues")
+			.description("Issues reported per validated resource")
+			.tag("ig", igTag(ig))
+			.tag("severity", severity)
+			.register(registry);
+	}
+
+	public void bindScheduler(ValidationScheduler scheduler) {
+		for (ValidationScheduler.Lane lane : ValidationScheduler.Lane.values()) {
+			String laneTag = lane.name().toLowerCase();
+			Gauge.builder("validator.scheduler.running", scheduler, s -> s.getRunning(lane))
+				.description("Validations running in each priority lane")
+				.tag("lane", laneTag)
+				.register(registry);
+			Gauge.builder("validator.scheduler.waiting", scheduler, s -> s.getWaiting(lane))
+				.description("Validations waiting for admission in each priority lane")
+				.tag("lane", laneTag)
+				.register(registry);
+		}
+	}
+
+	public void bindEnginePool(ValidationEnginePool pool) {
+		FunctionCounter.builder("validator.engine.evictions", pool, ValidationEnginePool::getEvictions)
+			.description("Engines evicted to stay within engine-cache-max-entries and engine-cache-max-mb")
+			.register(registry);
+		Gauge.builder("validator.engine.pool.engines", pool, p -> p.getPools().size())
+			.description("Engine configurations held by the pool, including any still being built")
+			.register(registry);
+		Gauge.builder("validator.engine.pool.bytes", pool, ValidationEnginePool::getTotalBytes)
+			.description("Estimated heap of every pooled validation engine")
+			.baseUnit("bytes")
+			.register(registry);
+	}
+
+	public void bindCanonicalCache(CanonicalResourceCache cache) {
+		FunctionCounter.builder("validator.canonical.cache", cache, CanonicalResourceCache::getHits).tag("result", "hit").register(registry);
+		FunctionCounter.builder("validator.canonical.cache", cache, CanonicalResourceCache::getDiskHits).tag("result", "disk").register(registry);
+		FunctionCounter.builder("validator.canonical.cache", cache, CanonicalResourceCache::getMisses).tag("result", "miss").register(registry);
+		Gauge.builder("validator.canonical.cache.entries", cache, CanonicalResourceCache::size).register(registry);
+	}
+
+	public void bindBundleEntryMemo(BundleEntryMemo memo) {
+		FunctionCounter.builder("validator.bundle.entries", memo, BundleEntryMemo::getReused)
+			.description("Bundle entries validated with memoizeEntries, by whether their issues were reused or validated again")
+			.tag("result", "reused").register(registry);
+		FunctionCounter.builder("validator.bundle.entries", memo, BundleEntryMemo::getValidated).tag("result", "validated").register(registry);
+	}
+
+	public void bindResultCache(ValidationResultCache cache) {
+		FunctionCounter.builder("validator.result.cache", cache, ValidationResultCache::getHits).tag("result", "hit").register(registry);
+		FunctionCounter.builder("validator.result.cache", cache, ValidationResultCache::getMisses).tag("result", "miss").register(registry);
+		FunctionCounter.builder("validator.result.cache", cache, ValidationResultCache::getCoalesced).tag("result", "coalesced").register(registry);
+		FunctionCounter.builder("validator.result.cache.evictions", cache, ValidationResultCache::getEvictions).register(registry);
+		Gauge.builder("validator.result.cache.entries", cache, ValidationResultCache::size).register(registry);
+		Gauge.builder("validator.result.cache.bytes", cache, ValidationResultCache::getTotalBytes).register(registry);
+	}
+}
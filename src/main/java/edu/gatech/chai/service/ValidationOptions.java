@@ -0,0 +1,65 @@
+package edu.gatech.chai.service;
+
+/**
+ * How one validation is run, beyond what it validates against: the
+ * scheduler lane, where its timing goes, the Bundle shortcuts the caller
+ * opted into and the limits on its issues. The defaults are an interactive
+ * validation of the whole resource with no timing, shortcuts or limits.
+ */
+public class ValidationOptions {
+
+	private ValidationScheduler.Lane lane = ValidationScheduler.Lane.INTERACTIVE;
+	private RequestTiming timing;
+	private boolean memoizeEntries;
+	private boolean parallelEntries;
+	private ValidationLimits limits = ValidationLimits.NONE;
+
+	public ValidationScheduler.Lane getLane() {
+		return lane;
+	}
+
+	public ValidationOptions setLane(ValidationScheduler.Lane lane) {
+		this.lane = lane;
+		return this;
+	}
+
+	//Collects the time spent in every phase of the validation when not null
+	public RequestTiming getTiming() {
+		return timing;
+	}
+
+	public ValidationOptions setTiming(RequestTiming timing) {
+		this.timing = timing;
+		return this;
+	}
+
+	//Reuse the issues of Bundle entries unchanged since an earlier submission
+	public boolean isMemoizeEntries() {
+		return memoizeEntries;
+	}
+
+	public ValidationOptions setMemoizeEntries(boolean memoizeEntries) {
+		this.memoizeEntries = memoizeEntries;
+		return this;
+	}
+
+	//Validate partitions of a large Bundle's entries at the same time
+	public boolean isParallelEntries() {
+		return parallelEntries;
+	}
+
+	public ValidationOptions setParallelEntries(boolean parallelEntries) {
+		this.parallelEntries = parallelEntries;
+		return this;
+	}
+
+	//Cut the issues at maxErrors errors and drop those below minSeverity; memoizeEntries is ignored under limits
+	public ValidationLimits getLimits() {
+		return limits;
+	}
+
+	public ValidationOptions setLimits(ValidationLimits limits) {
+		this.limits = limits == null ? ValidationLimits.NONE : limits;
+		return this;
+	}
+}
@@ -0,0 +1,237 @@
+package edu.gatech.chai.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.cli.model.FileInfo;
+
+/**
+ * Bounded LRU cache of validation results keyed by a SHA-256 of the encoded
+ * resource together with the engine configuration and profiles.
+ *
+ * Entries are evicted least recently used first once either the entry count
+ * or the estimated total size is exceeded. Identical requests that arrive
+ * while the first one is still validating wait for that result instead of
+ * validating again. Failed validations are never cached. Scheduled callers
+ * check lookup() first, so they wait for such a result before they take a
+ * scheduler slot rather than while holding one.
+ */
+public class ValidationResultCache {
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final LinkedHashMap<ResultKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final ConcurrentHashMap<ResultKey, CompletableFuture<ValidatedSource>> inFlight = new ConcurrentHashMap<>();
+	private long totalBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static class Entry {
+		final ValidatedSource result;
+		final long bytes;
+
+		Entry(ValidatedSource result, long bytes) {
+			this.result = result;
+			this.bytes = bytes;
+		}
+	}
+
+	public static final class ResultKey {
+		private final String digest;
+		private final EngineKey engineKey;
+		private final List<String> profiles;
+
+		ResultKey(String digest, EngineKey engineKey, List<String> profiles) {
+			this.digest = digest;
+			this.engineKey = engineKey;
+			this.profiles = new ArrayList<>(profiles);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof ResultKey)) {
+				return false;
+			}
+			ResultKey other = (ResultKey) o;
+			return digest.equals(other.digest) && engineKey.equals(other.engineKey) && profiles.equals(other.profiles);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(digest, engineKey, profiles);
+		}
+	}
+
+	public ValidationResultCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	public boolean isEnabled() {
+		return maxEntries > 0 && maxBytes > 0;
+	}
+
+	public ResultKey keyFor(EngineKey engineKey, List<String> profiles, FileInfo source) {
+		return keyFor(engineKey, profiles, source, null);
+	}
+
+	//variant tells apart results of the same content validated differently, e.g. under ValidationLimits
+	public ResultKey keyFor(EngineKey engineKey, List<String> profiles, FileInfo source, String variant) {
+		String prefix = variant == null ? "" : variant + "\n";
+		return new ResultKey(Hashing.sha256Hex(prefix + source.getFileType() + "\n" + source.getFileContent()), engineKey, profiles);
+	}
+
+	/**
+	 * Returns the cached result for the key, or runs the loader. Concurrent
+	 * callers with the same key share one loader run.
+	 */
+	public ValidatedSource get(ResultKey key, Callable<ValidatedSource> loader) throws Exception {
+		if (!isEnabled()) {
+			misses.incrementAndGet();
+			return loader.call();
+		}
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hits.incrementAndGet();
+				return entry.result;
+			}
+		}
+		CompletableFuture<ValidatedSource> future = new CompletableFuture<>();
+		CompletableFuture<ValidatedSource> existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return await(existing);
+		}
+		try {
+			synchronized (this) {
+				//Another caller may have stored the result between the lookup and the in-flight registration
+				Entry entry = entries.get(key);
+				if (entry != null) {
+					hits.incrementAndGet();
+					future.complete(entry.result);
+					return entry.result;
+				}
+			}
+			misses.incrementAndGet();
+			ValidatedSource result = loader.call();
+			put(key, result);
+			future.complete(result);
+			return result;
+		} catch (Throwable t) {
+			future.completeExceptionally(t);
+			throw t;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	/**
+	 * The result for the key when it is cached or another caller is already
+	 * validating it, without running anything; null when it still has to be
+	 * validated. Callers wait on it before taking a scheduler slot, so a
+	 * waiter does not hold a slot and an engine while the first caller works.
+	 */
+	public CompletableFuture<ValidatedSource> lookup(ResultKey key) {
+		if (!isEnabled()) {
+			return null;
+		}
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hits.incrementAndGet();
+				return CompletableFuture.completedFuture(entry.result);
+			}
+		}
+		CompletableFuture<ValidatedSource> existing = inFlight.get(key);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+		}
+		return existing;
+	}
+
+	private ValidatedSource await(CompletableFuture<ValidatedSource> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private synchronized void put(ResultKey key, ValidatedSource result) {
+		long bytes = estimateBytes(result);
+		if (bytes > maxBytes) {
+			return;
+		}
+		Entry previous = entries.put(key, new Entry(result, bytes));
+		if (previous != null) {
+			totalBytes -= previous.bytes;
+		}
+		totalBytes += bytes;
+		Iterator<Map.Entry<ResultKey, Entry>> eldest = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || totalBytes > maxBytes) && eldest.hasNext()) {
+			totalBytes -= eldest.next().getValue().bytes;
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	//Rough heap estimate: the messages and the OperationOutcome built from them hold the same text twice
+	protected long estimateBytes(ValidatedSource result) {
+		long bytes = 256;
+		for (ValidationMessage message : result.getMessages()) {
+			int chars = (message.getMessage() == null ? 0 : message.getMessage().length())
+				+ (message.getLocation() == null ? 0 : message.getLocation().length());
+			bytes += 2 * (400 + 2L * chars);
+		}
+		return bytes;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+}
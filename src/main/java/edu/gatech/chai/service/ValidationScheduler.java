@@ -0,0 +1,244 @@
+package edu.gatech.chai.service;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs validations off the request threads with bounded concurrency.
+ *
+ * Work is admitted in two lanes. Interactive work may use every slot and is
+ * always admitted ahead of waiting bulk work; bulk work is capped below the
+ * total so a saturating batch still leaves slots for interactive requests.
+ * Each engine configuration also has its own admission limit, matched to its
+ * engine instances, so callers wait for an engine without holding a slot.
+ * The lane and the engine limit are checked together: a task takes its slot
+ * and its engine's share in one step, and bulk work waits while an
+ * interactive task could take a slot, so interactive requests never queue
+ * behind bulk work for the same engine. Per-engine counts are dropped once
+ * nothing runs or waits for that engine, so evicted configurations leave
+ * nothing behind.
+ *
+ * Admission happens on the submitting thread, before the task reaches the
+ * executor. The executor therefore never queues, and is either a virtual
+ * thread per task on JVMs that have them or a pool sized to the slot count.
+ */
+public class ValidationScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(ValidationScheduler.class);
+
+	public static final String PRIORITY_HEADER = "X-Validation-Priority";
+
+	public enum Lane {
+		INTERACTIVE, BULK;
+
+		//Lane named by the priority header, or the operation's default when the header is absent or unknown
+		public static Lane fromHeader(String value, Lane defaultLane) {
+			if (value != null) {
+				for (Lane lane : values()) {
+					if (lane.name().equalsIgnoreCase(value.trim())) {
+						return lane;
+					}
+				}
+			}
+			return defaultLane;
+		}
+	}
+
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final int maxRunning;
+	private final int maxBulk;
+	private final int engineAdmissionLimit;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition slotFreed = lock.newCondition();
+	private int running;
+	private int runningBulk;
+	private int waitingInteractive;
+	private int waitingBulk;
+	//Running tasks per engine configuration, and interactive tasks waiting for each; guarded by lock
+	private final Map<EngineKey, Integer> engineRunning = new HashMap<>();
+	private final Map<EngineKey, Integer> engineWaitingInteractive = new HashMap<>();
+
+	public ValidationScheduler(int maxRunning, int interactiveReserved, int engineAdmissionLimit, boolean preferVirtualThreads) {
+		this.maxRunning = Math.max(1, maxRunning);
+		this.maxBulk = Math.max(1, this.maxRunning - Math.max(0, interactiveReserved));
+		this.engineAdmissionLimit = Math.max(1, engineAdmissionLimit);
+		ExecutorService virtual = preferVirtualThreads ? createVirtualThreadExecutor() : null;
+		this.virtualThreads = virtual != null;
+		this.executor = virtual != null ? virtual : createPlatformExecutor(this.maxRunning);
+		logger.info("Validation scheduler: " + this.maxRunning + " slots, " + this.maxBulk + " for bulk, "
+			+ this.engineAdmissionLimit + " per engine, " + (virtualThreads ? "virtual threads" : "platform threads"));
+	}
+
+	//Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively because the service still compiles for Java 11
+	protected static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	protected static ExecutorService createPlatformExecutor(int threads) {
+		AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "validation-worker-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Blocks until the lane and the engine configuration admit the task, then
+	 * starts it on the executor.
+	 */
+	public <T> Future<T> submit(Lane lane, EngineKey key, Callable<T> task) throws InterruptedException {
+		admit(lane, key);
+		try {
+			return executor.submit(() -> {
+				try {
+					return task.call();
+				} finally {
+					release(lane, key);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			release(lane, key);
+			throw e;
+		}
+	}
+
+	//Submits the task and waits for its result on the calling thread
+	public <T> T run(Lane lane, EngineKey key, Callable<T> task) throws Exception {
+		Future<T> future = submit(lane, key, task);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private void admit(Lane lane, EngineKey key) throws InterruptedException {
+		lock.lock();
+		try {
+			if (lane == Lane.INTERACTIVE) {
+				waitingInteractive++;
+				engineWaitingInteractive.merge(key, 1, Integer::sum);
+				try {
+					while (running >= maxRunning || !engineHasRoom(key)) {
+						slotFreed.await();
+					}
+				} finally {
+					waitingInteractive--;
+					decrement(engineWaitingInteractive, key);
+				}
+			} else {
+				waitingBulk++;
+				try {
+					while (running >= maxRunning || runningBulk >= maxBulk || !engineHasRoom(key) || interactiveAdmissible()) {
+						slotFreed.await();
+					}
+				} finally {
+					waitingBulk--;
+				}
+				runningBulk++;
+			}
+			running++;
+			engineRunning.merge(key, 1, Integer::sum);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean engineHasRoom(EngineKey key) {
+		return engineRunning.getOrDefault(key, 0) < engineAdmissionLimit;
+	}
+
+	//Whether a waiting interactive task could run once a slot is free; bulk work does not take that slot
+	private boolean interactiveAdmissible() {
+		for (EngineKey key : engineWaitingInteractive.keySet()) {
+			if (engineHasRoom(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void decrement(Map<EngineKey, Integer> counts, EngineKey key) {
+		counts.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+	}
+
+	private void release(Lane lane, EngineKey key) {
+		lock.lock();
+		try {
+			running--;
+			if (lane == Lane.BULK) {
+				runningBulk--;
+			}
+			decrement(engineRunning, key);
+			slotFreed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public int getRunning(Lane lane) {
+		lock.lock();
+		try {
+			return lane == Lane.BULK ? runningBulk : running - runningBulk;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Engine configurations with running or waiting interactive tasks
+	public int getTrackedEngines() {
+		lock.lock();
+		try {
+			Map<EngineKey, Integer> tracked = new HashMap<>(engineRunning);
+			tracked.putAll(engineWaitingInteractive);
+			return tracked.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getWaiting(Lane lane) {
+		lock.lock();
+		try {
+			return lane == Lane.BULK ? waitingBulk : waitingInteractive;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
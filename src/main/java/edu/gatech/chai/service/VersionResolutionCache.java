@@ -0,0 +1,71 @@
+package edu.gatech.chai.service;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the FHIR version detected for a set of IG coordinates (name#version)
+ * so determineVersion does not rescan the IG on every request.
+ *
+ * Each entry records the modification time of the IG folders in the package
+ * cache. Reinstalling a package (for example a refreshed #current build)
+ * recreates its folder, which changes the stamp and forces a rescan.
+ */
+public class VersionResolutionCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(VersionResolutionCache.class);
+
+	private final ConcurrentHashMap<String, CachedVersion> versions = new ConcurrentHashMap<>();
+
+	private static class CachedVersion {
+		final String version;
+		final long stamp;
+
+		CachedVersion(String version, long stamp) {
+			this.version = version;
+			this.stamp = stamp;
+		}
+	}
+
+	public String get(List<String> igs, String packageFolder) {
+		CachedVersion cached = versions.get(cacheKey(igs));
+		if (cached == null) {
+			return null;
+		}
+		if (cached.stamp != packageStamp(igs, packageFolder)) {
+			logger.info("Package install changed for " + igs + ", rescanning FHIR version");
+			versions.remove(cacheKey(igs), cached);
+			return null;
+		}
+		return cached.version;
+	}
+
+	public void put(List<String> igs, String packageFolder, String version) {
+		versions.put(cacheKey(igs), new CachedVersion(version, packageStamp(igs, packageFolder)));
+	}
+
+	public int size() {
+		return versions.size();
+	}
+
+	protected String cacheKey(List<String> igs) {
+		return String.join(",", igs);
+	}
+
+	protected static long packageStamp(List<String> igs, String packageFolder) {
+		long stamp = 17;
+		for (String ig : igs) {
+			File igFolder = packageFolder == null ? new File(ig) : new File(packageFolder, ig);
+			if (!igFolder.exists()) {
+				//IGs given as a path or url rather than package coordinates
+				igFolder = new File(ig);
+			}
+			stamp = 31 * stamp + (igFolder.exists() ? igFolder.lastModified() : 0);
+		}
+		return stamp;
+	}
+}
@@ -0,0 +1,380 @@
+package edu.gatech.chai.servlet;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.gatech.chai.service.ValidationScheduler;
+
+/**
+ * Records validation traffic to an NDJSON capture file that CaptureReplay
+ * (src/jmh/java) can send again, so capacity is measured with real requests.
+ *
+ * Off unless capture-file is set. Each line holds one request to one of
+ * capture-operations: when it arrived, the method, path below the FHIR base,
+ * query string, the Content-Type, Accept, Prefer and priority headers, the
+ * body as the servlet read it, the response status and the time the servlet
+ * took. No other header is recorded, so neither credentials nor client
+ * addresses end up in the file, and with capture-redact the identifying text
+ * of the body is masked (see CaptureRedactor). Mapped after the compression
+ * filter, the body is recorded decoded.
+ *
+ * Redacting and writing happen on one background thread, so a request only
+ * pays for keeping a copy of its body. Records the writer cannot keep up
+ * with are dropped, and capture stops once the file reaches capture-max-mb.
+ */
+public class CaptureFilter implements Filter {
+
+	private static final Logger logger = LoggerFactory.getLogger(CaptureFilter.class);
+
+	public static final String CAPTURE_FILE = "capture-file";
+	public static final String CAPTURE_OPERATIONS = "capture-operations";
+	public static final String CAPTURE_SAMPLE_PERCENT = "capture-sample-percent";
+	public static final String CAPTURE_MAX_MB = "capture-max-mb";
+	public static final String CAPTURE_BODY_MAX_MB = "capture-body-max-mb";
+	public static final String CAPTURE_REDACT = "capture-redact";
+
+	private static final List<String> RECORDED_HEADERS = Arrays.asList("Content-Type", "Accept", "Prefer", ValidationScheduler.PRIORITY_HEADER);
+	private static final int PENDING_RECORDS = 100;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final CaptureRedactor redactor = new CaptureRedactor();
+	private final AtomicLong dropped = new AtomicLong();
+	private Set<String> operations = new HashSet<>(Arrays.asList("$validate", "$validate-batch", "$validate-ndjson", "$translate"));
+	private int samplePercent = 100;
+	private long maxBytes = 1024L * 1024L * 1024L;
+	private long bodyMaxBytes = 64L * 1024L * 1024L;
+	private boolean redact = true;
+	private Path file;
+	private Writer out;
+	private long written;
+	private ThreadPoolExecutor writer;
+	private volatile boolean full;
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		String fileName = readParameter(filterConfig, CAPTURE_FILE);
+		if(fileName == null) {
+			return;
+		}
+		String operationList = readParameter(filterConfig, CAPTURE_OPERATIONS);
+		if(operationList != null) {
+			operations = new HashSet<>();
+			for(String operation: operationList.split(",")) {
+				if(!operation.trim().isEmpty()) {
+					operations.add(operation.trim());
+				}
+			}
+		}
+		samplePercent = Math.max(0, Math.min(100, readInt(filterConfig, CAPTURE_SAMPLE_PERCENT, samplePercent)));
+		maxBytes = Math.max(0, readInt(filterConfig, CAPTURE_MAX_MB, (int) (maxBytes / (1024L * 1024L)))) * 1024L * 1024L;
+		bodyMaxBytes = Math.max(0, readInt(filterConfig, CAPTURE_BODY_MAX_MB, (int) (bodyMaxBytes / (1024L * 1024L)))) * 1024L * 1024L;
+		String redactValue = readParameter(filterConfig, CAPTURE_REDACT);
+		if(redactValue != null) {
+			redact = Boolean.parseBoolean(redactValue);
+		}
+		try {
+			file = Paths.get(fileName);
+			if(file.getParent() != null) {
+				Files.createDirectories(file.getParent());
+			}
+			out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			written = Files.size(file);
+		} catch (IOException e) {
+			logger.warn("Traffic capture is off; cannot write " + fileName, e);
+			return;
+		}
+		writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(PENDING_RECORDS), runnable -> {
+			Thread thread = new Thread(runnable, "traffic-capture");
+			thread.setDaemon(true);
+			return thread;
+		}, (runnable, executor) -> dropped.incrementAndGet());
+		logger.info("Capturing " + operations + " requests to " + file.toAbsolutePath() + (redact ? " with identifying text masked" : ""));
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		if(writer == null || full || !(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		String operation = operationOf(httpRequest.getPathInfo());
+		if(operation == null || !operations.contains(operation)
+				|| (samplePercent < 100 && ThreadLocalRandom.current().nextInt(100) >= samplePercent)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		CapturingRequest capturingRequest = new CapturingRequest(httpRequest, bodyMaxBytes);
+		Instant arrived = Instant.now();
+		long start = System.nanoTime();
+		boolean completed = false;
+		try {
+			chain.doFilter(capturingRequest, response);
+			completed = true;
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			int status = completed ? ((HttpServletResponse) response).getStatus() : HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+			Map<String, String> headers = new LinkedHashMap<>();
+			for(String header: RECORDED_HEADERS) {
+				if(httpRequest.getHeader(header) != null) {
+					headers.put(header, httpRequest.getHeader(header));
+				}
+			}
+			String method = httpRequest.getMethod();
+			String path = httpRequest.getPathInfo();
+			String query = httpRequest.getQueryString();
+			byte[] body = capturingRequest.getCapturedBody();
+			writer.execute(() -> write(arrived, method, path, query, headers, body, status, elapsed));
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if(writer == null) {
+			return;
+		}
+		writer.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger.warn("Could not close traffic capture " + file, e);
+		}
+		if(dropped.get() > 0) {
+			logger.warn("Traffic capture dropped " + dropped.get() + " requests the writer could not keep up with");
+		}
+	}
+
+	//The last path segment when it names an operation, e.g. $validate for /Bundle/$validate
+	protected static String operationOf(String pathInfo) {
+		if(pathInfo == null) {
+			return null;
+		}
+		String segment = pathInfo.substring(pathInfo.lastIndexOf('/') + 1);
+		return segment.startsWith("$") ? segment : null;
+	}
+
+	//Runs on the writer thread only
+	private void write(Instant arrived, String method, String path, String query, Map<String, String> headers, byte[] body,
+			int status, long elapsedNanos) {
+		try {
+			ObjectNode record = mapper.createObjectNode();
+			record.put("time", arrived.toString());
+			record.put("method", method);
+			record.put("path", path);
+			if(query != null) {
+				record.put("query", query);
+			}
+			ObjectNode headerNode = record.putObject("headers");
+			headers.forEach(headerNode::put);
+			String text = body == null ? null : new String(body, StandardCharsets.UTF_8);
+			if(text != null && redact && !text.isEmpty()) {
+				text = redactor.redact(text, headers.get("Content-Type"));
+			}
+			//Null when the body was larger than capture-body-max-mb, not read to the end or could not be redacted
+			record.put("body", text);
+			record.put("status", status);
+			record.put("ms", elapsedNanos / 1_000_000.0);
+			String line = mapper.writeValueAsString(record) + "\n";
+			long length = line.getBytes(StandardCharsets.UTF_8).length;
+			if(maxBytes > 0 && written + length > maxBytes) {
+				full = true;
+				logger.warn("Traffic capture " + file + " reached " + (maxBytes / (1024L * 1024L)) + " MB; no further requests are captured");
+				return;
+			}
+			out.write(line);
+			out.flush();
+			written += length;
+		} catch (IOException e) {
+			logger.warn("Could not write traffic capture " + file, e);
+		}
+	}
+
+	//Init param, then the validator.<name> system property, then the VALIDATOR_<NAME> environment variable
+	private static String readParameter(FilterConfig filterConfig, String name) {
+		String value = filterConfig.getInitParameter(name);
+		if(value == null || value.trim().isEmpty()) {
+			value = System.getProperty("validator." + name);
+		}
+		if(value == null || value.trim().isEmpty()) {
+			value = System.getenv("VALIDATOR_" + name.toUpperCase(Locale.ROOT).replace('-', '_'));
+		}
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+
+	private static int readInt(FilterConfig filterConfig, String name, int defaultValue) {
+		String value = readParameter(filterConfig, name);
+		if(value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			logger.warn("Ignoring " + name + "=" + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Keeps a copy of the body as the servlet reads it. The copy is given up
+	 * once it passes maxBytes; a body the servlet did not read to the end is
+	 * not returned either, since replaying part of it would not be the same
+	 * request.
+	 */
+	private static class CapturingRequest extends HttpServletRequestWrapper {
+
+		private final long maxBytes;
+		private CapturingInputStream stream;
+		private BufferedReader reader;
+
+		CapturingRequest(HttpServletRequest request, long maxBytes) {
+			super(request);
+			this.maxBytes = maxBytes;
+		}
+
+		@Override
+		public ServletInputStream getInputStream() throws IOException {
+			if(reader != null) {
+				throw new IllegalStateException("getReader() has already been called for this request");
+			}
+			return stream();
+		}
+
+		@Override
+		public BufferedReader getReader() throws IOException {
+			if(reader == null) {
+				if(stream != null) {
+					throw new IllegalStateException("getInputStream() has already been called for this request");
+				}
+				String charset = getCharacterEncoding();
+				reader = new BufferedReader(new InputStreamReader(stream(), charset == null ? StandardCharsets.UTF_8.name() : charset));
+			}
+			return reader;
+		}
+
+		private CapturingInputStream stream() throws IOException {
+			if(stream == null) {
+				stream = new CapturingInputStream(super.getInputStream(), maxBytes);
+			}
+			return stream;
+		}
+
+		//Requests without a body, such as a GET, are recorded with an empty one
+		byte[] getCapturedBody() {
+			if(stream == null) {
+				return new byte[0];
+			}
+			boolean complete = stream.isFinished() || (getContentLengthLong() >= 0 && stream.copy.size() == getContentLengthLong());
+			return complete && !stream.overflowed ? stream.copy.toByteArray() : null;
+		}
+	}
+
+	private static class CapturingInputStream extends ServletInputStream {
+
+		private final ServletInputStream source;
+		private final long maxBytes;
+		private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		private boolean overflowed;
+		private boolean finished;
+
+		CapturingInputStream(ServletInputStream source, long maxBytes) {
+			this.source = source;
+			this.maxBytes = maxBytes;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = source.read();
+			if(b < 0) {
+				finished = true;
+			}
+			else if(keep(1)) {
+				copy.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = source.read(buffer, offset, length);
+			if(n < 0) {
+				finished = true;
+			}
+			else if(keep(n)) {
+				copy.write(buffer, offset, n);
+			}
+			return n;
+		}
+
+		private boolean keep(int n) {
+			if(!overflowed && maxBytes > 0 && copy.size() + (long) n > maxBytes) {
+				overflowed = true;
+				copy.reset();
+			}
+			return !overflowed;
+		}
+
+		@Override
+		public void close() throws IOException {
+			source.close();
+		}
+
+		@Override
+		public boolean isFinished() {
+			return finished || source.isFinished();
+		}
+
+		@Override
+		public boolean isReady() {
+			return source.isReady();
+		}
+
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			source.setReadListener(readListener);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package edu.gatech.chai.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * Masks the identifying text of captured FHIR request bodies: names,
+ * addresses, telecoms, identifier values and narrative. Each letter becomes
+ * x and each digit 0, so a masked value keeps its length and shape and the
+ * request costs about as much to validate as the original. Everything else,
+ * codes, dates and references included, is left as it is.
+ */
+public class CaptureRedactor {
+
+	private static final String XHTML_NS = "http://www.w3.org/1999/xhtml";
+	private static final String REDACTED_DIV = "<div xmlns=\"" + XHTML_NS + "\">redacted</div>";
+
+	//Fields masked inside an element of each name, e.g. name.family or valueIdentifier.value
+	private static final Map<String, Set<String>> MASKED = new HashMap<>();
+	static {
+		Set<String> humanName = new HashSet<>(Arrays.asList("family", "given", "text", "prefix", "suffix"));
+		Set<String> address = new HashSet<>(Arrays.asList("line", "text", "city", "district", "postalCode"));
+		Set<String> value = new HashSet<>(Arrays.asList("value"));
+		MASKED.put("name", humanName);
+		MASKED.put("valueHumanName", humanName);
+		MASKED.put("address", address);
+		MASKED.put("valueAddress", address);
+		MASKED.put("telecom", value);
+		MASKED.put("valueContactPoint", value);
+		MASKED.put("identifier", value);
+		MASKED.put("valueIdentifier", value);
+	}
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * The body with identifying text masked, or null when the content type is
+	 * neither json, ndjson nor xml or the body does not parse.
+	 */
+	public String redact(String body, String contentType) {
+		String type = contentType == null ? "" : contentType.toLowerCase(Locale.ROOT);
+		try {
+			if(type.contains("ndjson")) {
+				StringBuilder redacted = new StringBuilder();
+				for(String line: body.split("\n")) {
+					if(!line.trim().isEmpty()) {
+						redacted.append(redactJson(line));
+					}
+					redacted.append('\n');
+				}
+				return redacted.toString();
+			}
+			if(type.contains("json")) {
+				return redactJson(body);
+			}
+			if(type.contains("xml")) {
+				return redactXml(body);
+			}
+		} catch (Exception e) {
+			return null;
+		}
+		return null;
+	}
+
+	private String redactJson(String json) throws Exception {
+		JsonNode root = mapper.readTree(json);
+		walkJson(root, null);
+		return mapper.writeValueAsString(root);
+	}
+
+	private static void walkJson(JsonNode node, String field) {
+		if(node.isArray()) {
+			for(JsonNode element: node) {
+				walkJson(element, field);
+			}
+		}
+		else if(node.isObject()) {
+			ObjectNode object = (ObjectNode) node;
+			Set<String> masked = MASKED.get(field);
+			List<String> names = new ArrayList<>();
+			object.fieldNames().forEachRemaining(names::add);
+			for(String name: names) {
+				JsonNode child = object.get(name);
+				if("div".equals(name) && child.isTextual()) {
+					object.put(name, REDACTED_DIV);
+				}
+				else if(masked != null && masked.contains(name)) {
+					object.set(name, maskJson(child));
+				}
+				else {
+					walkJson(child, name);
+				}
+			}
+		}
+	}
+
+	private static JsonNode maskJson(JsonNode node) {
+		if(node.isTextual()) {
+			return new TextNode(mask(node.asText()));
+		}
+		if(node.isArray()) {
+			ArrayNode array = (ArrayNode) node;
+			for(int i = 0; i < array.size(); i++) {
+				if(array.get(i).isTextual()) {
+					array.set(i, new TextNode(mask(array.get(i).asText())));
+				}
+			}
+		}
+		return node;
+	}
+
+	private static String redactXml(String xml) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+		factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+		walkXml(document.getDocumentElement());
+		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+		transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, xml.trim().startsWith("<?xml") ? "no" : "yes");
+		StringWriter redacted = new StringWriter();
+		transformer.transform(new DOMSource(document), new StreamResult(redacted));
+		return redacted.toString();
+	}
+
+	//FHIR XML keeps primitive values in the value attribute of the element named after the field
+	private static void walkXml(Element element) {
+		Set<String> masked = MASKED.get(element.getLocalName());
+		for(Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if(child.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			Element childElement = (Element) child;
+			if("div".equals(childElement.getLocalName()) && XHTML_NS.equals(childElement.getNamespaceURI())) {
+				childElement.setTextContent("redacted");
+			}
+			else if(masked != null && masked.contains(childElement.getLocalName()) && childElement.hasAttribute("value")) {
+				childElement.setAttribute("value", mask(childElement.getAttribute("value")));
+			}
+			else {
+				walkXml(childElement);
+			}
+		}
+	}
+
+	protected static String mask(String value) {
+		StringBuilder masked = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(Character.isDigit(c)) {
+				masked.append('0');
+			}
+			else if(Character.isUpperCase(c)) {
+				masked.append('X');
+			}
+			else if(Character.isLetter(c)) {
+				masked.append('x');
+			}
+			else {
+				masked.append(c);
+			}
+		}
+		return masked.toString();
+	}
+}
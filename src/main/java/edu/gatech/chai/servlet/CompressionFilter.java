@@ -0,0 +1,479 @@
+package edu.gatech.chai.servlet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes compressed request bodies and compresses responses for the FHIR
+ * servlet, so large Bundles are not sent uncompressed in either direction.
+ *
+ * A request with Content-Encoding gzip or deflate is decoded as the servlet
+ * reads it, never held compressed and decoded as a whole. Any other encoding
+ * is answered with 415 and the supported encodings in Accept-Encoding. A
+ * response is gzipped when the client accepts gzip; the stream is flushed
+ * through, so streamed responses such as $validate-ndjson still reach the
+ * client line by line. The servlet does not see the headers this filter
+ * handled, so HAPI does not decode or compress a second time.
+ * Whether a response is gzipped depends on Accept-Encoding, so with
+ * compress-responses on every response carries Vary: Accept-Encoding,
+ * compressed or not, and caches keep the two variants apart.
+ *
+ * A decoded body can only be read with blocking reads: inflating needs the
+ * compressed bytes up front, so setReadListener on it throws. HAPI reads
+ * request bodies blocking; bodies without Content-Encoding are passed
+ * through untouched and keep non-blocking reads.
+ */
+public class CompressionFilter implements Filter {
+
+	private static final Logger logger = LoggerFactory.getLogger(CompressionFilter.class);
+
+	public static final String COMPRESS_RESPONSES = "compress-responses";
+	public static final String DECODED_BODY_MAX_MB = "decoded-body-max-mb";
+
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String CONTENT_LENGTH = "Content-Length";
+	private static final String SUPPORTED_ENCODINGS = "gzip, deflate";
+
+	private boolean compressResponses = true;
+	private long decodedBodyMaxBytes = 1024L * 1024L * 1024L;
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		String compress = filterConfig.getInitParameter(COMPRESS_RESPONSES);
+		if(compress != null && !compress.trim().isEmpty()) {
+			compressResponses = Boolean.parseBoolean(compress.trim());
+		}
+		String maxMb = filterConfig.getInitParameter(DECODED_BODY_MAX_MB);
+		if(maxMb != null && !maxMb.trim().isEmpty()) {
+			try {
+				decodedBodyMaxBytes = Math.max(0, Long.parseLong(maxMb.trim())) * 1024L * 1024L;
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring " + DECODED_BODY_MAX_MB + "=" + maxMb);
+			}
+		}
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		if(!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		HttpServletResponse httpResponse = (HttpServletResponse) response;
+		if(compressResponses) {
+			httpResponse.addHeader("Vary", ACCEPT_ENCODING);
+		}
+		List<String> encodings = contentEncodings(httpRequest.getHeader(CONTENT_ENCODING));
+		for(String encoding: encodings) {
+			if(!isSupported(encoding)) {
+				httpResponse.setHeader(ACCEPT_ENCODING, SUPPORTED_ENCODINGS);
+				httpResponse.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Unsupported Content-Encoding " + encoding);
+				return;
+			}
+		}
+		boolean compress = compressResponses && acceptsGzip(httpRequest.getHeader(ACCEPT_ENCODING));
+		DecodingRequest decodingRequest = new DecodingRequest(httpRequest, encodings, decodedBodyMaxBytes, compress);
+		if(!compress) {
+			chain.doFilter(decodingRequest, httpResponse);
+			return;
+		}
+		CompressingResponse compressingResponse = new CompressingResponse(httpResponse);
+		try {
+			chain.doFilter(decodingRequest, compressingResponse);
+		} finally {
+			compressingResponse.finish();
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	//Encodings in the order they were applied; identity is no encoding at all
+	protected static List<String> contentEncodings(String header) {
+		List<String> encodings = new ArrayList<>();
+		if(header != null) {
+			for(String encoding: header.split(",")) {
+				String trimmed = encoding.trim().toLowerCase(Locale.ROOT);
+				if(!trimmed.isEmpty() && !"identity".equals(trimmed)) {
+					encodings.add(trimmed);
+				}
+			}
+		}
+		return encodings;
+	}
+
+	private static boolean isSupported(String encoding) {
+		return "gzip".equals(encoding) || "x-gzip".equals(encoding) || "deflate".equals(encoding);
+	}
+
+	//gzip or * without q=0
+	protected static boolean acceptsGzip(String header) {
+		if(header == null) {
+			return false;
+		}
+		for(String accepted: header.split(",")) {
+			String[] parts = accepted.trim().toLowerCase(Locale.ROOT).split(";");
+			String coding = parts[0].trim();
+			if(!"gzip".equals(coding) && !"x-gzip".equals(coding) && !"*".equals(coding)) {
+				continue;
+			}
+			boolean refused = false;
+			for(int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if(parameter.startsWith("q=")) {
+					try {
+						refused = Double.parseDouble(parameter.substring(2)) <= 0;
+					} catch (NumberFormatException e) {
+						refused = true;
+					}
+				}
+			}
+			if(!refused) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Request whose body is decoded on read. Content-Encoding and
+	 * Content-Length no longer describe the body, and Accept-Encoding is
+	 * hidden when this filter compresses the response.
+	 */
+	private static class DecodingRequest extends HttpServletRequestWrapper {
+
+		private final List<String> encodings;
+		private final long maxBytes;
+		private final boolean compressing;
+		private ServletInputStream stream;
+		private BufferedReader reader;
+
+		DecodingRequest(HttpServletRequest request, List<String> encodings, long maxBytes, boolean compressing) {
+			super(request);
+			this.encodings = encodings;
+			this.maxBytes = maxBytes;
+			this.compressing = compressing;
+		}
+
+		private boolean isHidden(String name) {
+			return (compressing && ACCEPT_ENCODING.equalsIgnoreCase(name))
+					|| (!encodings.isEmpty() && (CONTENT_ENCODING.equalsIgnoreCase(name) || CONTENT_LENGTH.equalsIgnoreCase(name)));
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return isHidden(name) ? null : super.getHeader(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaders(String name) {
+			return isHidden(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaderNames() {
+			List<String> names = new ArrayList<>();
+			for(String name: Collections.list(super.getHeaderNames())) {
+				if(!isHidden(name)) {
+					names.add(name);
+				}
+			}
+			return Collections.enumeration(names);
+		}
+
+		@Override
+		public int getIntHeader(String name) {
+			return isHidden(name) ? -1 : super.getIntHeader(name);
+		}
+
+		@Override
+		public int getContentLength() {
+			return encodings.isEmpty() ? super.getContentLength() : -1;
+		}
+
+		@Override
+		public long getContentLengthLong() {
+			return encodings.isEmpty() ? super.getContentLengthLong() : -1;
+		}
+
+		@Override
+		public ServletInputStream getInputStream() throws IOException {
+			if(encodings.isEmpty()) {
+				return super.getInputStream();
+			}
+			if(reader != null) {
+				throw new IllegalStateException("getReader() has already been called for this request");
+			}
+			if(stream == null) {
+				InputStream decoded = super.getInputStream();
+				//Undo the encodings in the reverse of the order they were applied
+				for(int i = encodings.size() - 1; i >= 0; i--) {
+					decoded = "deflate".equals(encodings.get(i)) ? new InflaterInputStream(decoded) : new GZIPInputStream(decoded, 8192);
+				}
+				stream = new DecodedInputStream(decoded, maxBytes);
+			}
+			return stream;
+		}
+
+		@Override
+		public BufferedReader getReader() throws IOException {
+			if(encodings.isEmpty()) {
+				return super.getReader();
+			}
+			if(reader == null) {
+				String charset = getCharacterEncoding();
+				reader = new BufferedReader(new InputStreamReader(getInputStream(), charset == null ? StandardCharsets.UTF_8.name() : charset));
+			}
+			return reader;
+		}
+	}
+
+	//Decoded request body; stops with an IOException past maxBytes, so a small compressed body cannot fill the heap
+	private static class DecodedInputStream extends ServletInputStream {
+
+		private final InputStream decoded;
+		private final long maxBytes;
+		private long read;
+		private boolean finished;
+
+		DecodedInputStream(InputStream decoded, long maxBytes) {
+			this.decoded = decoded;
+			this.maxBytes = maxBytes;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = decoded.read();
+			count(b < 0 ? -1 : 1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = decoded.read(buffer, offset, length);
+			count(n);
+			return n;
+		}
+
+		private void count(int n) throws IOException {
+			if(n < 0) {
+				finished = true;
+				return;
+			}
+			read += n;
+			if(maxBytes > 0 && read > maxBytes) {
+				throw new IOException("Decoded request body is larger than " + (maxBytes / (1024L * 1024L)) + " MB");
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			decoded.close();
+		}
+
+		@Override
+		public boolean isFinished() {
+			return finished;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		//Async reads are rejected, see the class comment
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			throw new UnsupportedOperationException("Non-blocking reads of compressed request bodies are not supported");
+		}
+	}
+
+	/**
+	 * Response gzipped once the servlet starts writing a body. The length of
+	 * the compressed body is not known up front, so Content-Length set by the
+	 * servlet is dropped and the response is chunked.
+	 */
+	private static class CompressingResponse extends HttpServletResponseWrapper {
+
+		private GzipOutputStream stream;
+		private PrintWriter writer;
+
+		CompressingResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if(writer != null) {
+				throw new IllegalStateException("getWriter() has already been called for this response");
+			}
+			return stream();
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if(writer == null) {
+				if(stream != null) {
+					throw new IllegalStateException("getOutputStream() has already been called for this response");
+				}
+				String charset = getCharacterEncoding();
+				writer = new PrintWriter(new OutputStreamWriter(stream(), charset == null ? StandardCharsets.ISO_8859_1.name() : charset));
+			}
+			return writer;
+		}
+
+		private GzipOutputStream stream() throws IOException {
+			if(stream == null) {
+				HttpServletResponse response = (HttpServletResponse) getResponse();
+				response.setHeader(CONTENT_ENCODING, "gzip");
+				stream = new GzipOutputStream(response.getOutputStream());
+			}
+			return stream;
+		}
+
+		@Override
+		public void setContentLength(int len) {
+		}
+
+		@Override
+		public void setContentLengthLong(long len) {
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			if(!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+				super.setHeader(name, value);
+			}
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			if(!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+				super.addHeader(name, value);
+			}
+		}
+
+		@Override
+		public void setIntHeader(String name, int value) {
+			if(!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+				super.setIntHeader(name, value);
+			}
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+			if(!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+				super.addIntHeader(name, value);
+			}
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			if(writer != null) {
+				writer.flush();
+			}
+			if(stream != null) {
+				stream.flush();
+			}
+			super.flushBuffer();
+		}
+
+		//Writes the gzip trailer; called once the servlet is done
+		void finish() throws IOException {
+			if(writer != null) {
+				writer.flush();
+			}
+			if(stream != null) {
+				stream.finish();
+			}
+		}
+	}
+
+	private static class GzipOutputStream extends ServletOutputStream {
+
+		private final ServletOutputStream target;
+		private final GZIPOutputStream gzip;
+		private boolean finished;
+
+		GzipOutputStream(ServletOutputStream target) throws IOException {
+			this.target = target;
+			//Sync flush, so flush() sends what was written so far, e.g. each $validate-ndjson line
+			this.gzip = new GZIPOutputStream(target, 8192, true);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			gzip.write(b);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			gzip.write(buffer, offset, length);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(!finished) {
+				gzip.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+			target.close();
+		}
+
+		void finish() throws IOException {
+			if(!finished) {
+				finished = true;
+				gzip.finish();
+				target.flush();
+			}
+		}
+
+		@Override
+		public boolean isReady() {
+			return target.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			target.setWriteListener(writeListener);
+		}
+	}
+}
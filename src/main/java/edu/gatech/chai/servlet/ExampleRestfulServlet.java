@@ -10,6 +10,7 @@ import ca.uhn.fhir.narrative.INarrativeGenerator;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.CorsInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
+import edu.gatech.chai.config.ValidationServiceSettings;
 import edu.gatech.chai.provider.ValidateProvider;
 
 /**
@@ -20,6 +21,7 @@ public class ExampleRestfulServlet extends RestfulServer {
 	private static final long serialVersionUID = 1L;
 
 	FhirContext ctx;
+	ValidateProvider validateProvider;
 	/**
 	 * Constructor
 	 */
@@ -34,12 +36,13 @@ public class ExampleRestfulServlet extends RestfulServer {
 	 */
 	@Override
 	public void initialize() {
-		String base_supported_igs = getServletConfig().getInitParameter("base-supported-igs");
+		ValidationServiceSettings settings = ValidationServiceSettings.fromServletConfig(getServletConfig());
 		/*
 		 * Two resource providers are defined. Each one handles a specific
 		 * type of resource.
 		 */
-		registerProvider(new ValidateProvider(ctx, base_supported_igs));
+		validateProvider = new ValidateProvider(ctx, settings);
+		registerProvider(validateProvider);
 		
 		/*
 		 * Use a narrative generator. This is a completely optional step, 
@@ -77,4 +80,15 @@ public class ExampleRestfulServlet extends RestfulServer {
 		
 	}
 
+	/**
+	 * Stops the background engine work started by the provider
+	 */
+	@Override
+	public void destroy() {
+		if(validateProvider != null) {
+			validateProvider.shutdown();
+		}
+		super.destroy();
+	}
+
 }
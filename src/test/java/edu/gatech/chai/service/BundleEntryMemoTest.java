@@ -0,0 +1,230 @@
+package edu.gatech.chai.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.junit.jupiter.api.Test;
+
+public class BundleEntryMemoTest {
+
+	private static final EngineKey ENGINE = new EngineKey(Arrays.asList("hl7.fhir.us.core#5.0.1"), "4.0.1", "us", null, "flags");
+
+	//Bundles handed to the validator
+	private final List<Bundle> validatedBundles = new ArrayList<>();
+
+	/**
+	 * Reports one issue per entry, naming its fullUrl and an Observation's
+	 * status, at the entry's path and with a line number, plus one issue on
+	 * the Bundle itself, as the validator would.
+	 */
+	private final BundleEntryMemo.BundleValidator validator = bundle -> {
+		validatedBundles.add(bundle);
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(IssueSeverity.WARNING).setDiagnostics("bundle").addExpression("Bundle");
+		for (int i = 0; i < bundle.getEntry().size(); i++) {
+			BundleEntryComponent entry = bundle.getEntry().get(i);
+			Resource resource = entry.getResource();
+			String status = resource instanceof Observation && ((Observation) resource).hasStatus()
+				? " " + ((Observation) resource).getStatus().toCode() : "";
+			OperationOutcomeIssueComponent issue = outcome.addIssue().setSeverity(IssueSeverity.ERROR)
+				.setDiagnostics(entry.getFullUrl() + status);
+			issue.addExpression("Bundle.entry[" + i + "].resource");
+			issue.addLocation("Bundle.entry[" + i + "].resource");
+			issue.addLocation("Line[" + (i * 10 + 1) + "] Col[5]");
+			issue.addExtension(ToolingExtensions.EXT_ISSUE_LINE, new IntegerType(i * 10 + 1));
+			issue.addExtension(ToolingExtensions.EXT_ISSUE_COL, new IntegerType(5));
+		}
+		return outcome;
+	};
+
+	//A document: Composition, Patient and two Observations of the Patient listed in the Composition's section
+	private static Bundle document(String secondStatus, boolean secondInSection) {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.DOCUMENT);
+		Composition composition = new Composition();
+		composition.setId("composition");
+		composition.setSubject(new Reference("urn:uuid:patient"));
+		Composition.SectionComponent section = composition.addSection().setTitle("Results");
+		section.addEntry(new Reference("urn:uuid:first"));
+		if (secondInSection) {
+			section.addEntry(new Reference("urn:uuid:second"));
+		}
+		bundle.addEntry().setFullUrl("urn:uuid:composition").setResource(composition);
+		Patient patient = new Patient();
+		patient.setId("patient");
+		patient.addName().setFamily("Doe");
+		bundle.addEntry().setFullUrl("urn:uuid:patient").setResource(patient);
+		bundle.addEntry().setFullUrl("urn:uuid:first").setResource(observation("first", "final"));
+		bundle.addEntry().setFullUrl("urn:uuid:second").setResource(observation("second", secondStatus));
+		return bundle;
+	}
+
+	private static Observation observation(String id, String status) {
+		Observation observation = new Observation();
+		observation.setId(id);
+		observation.setStatus(ObservationStatus.fromCode(status));
+		observation.setSubject(new Reference("urn:uuid:patient"));
+		return observation;
+	}
+
+	@Test
+	public void firstSubmissionIsValidatedWholeWithoutPositions() throws Exception {
+		BundleEntryMemo memo = new BundleEntryMemo(100);
+		OperationOutcome outcome = memo.validate(ENGINE, Collections.emptyList(), document("final", true), validator);
+
+		assertEquals(1, validatedBundles.size());
+		assertEquals(4, validatedBundles.get(0).getEntry().size());
+		assertEquals(5, outcome.getIssue().size());
+		for (OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+			assertFalse(issue.hasExtension(ToolingExtensions.EXT_ISSUE_LINE));
+			assertFalse(issue.hasExtension(ToolingExtensions.EXT_ISSUE_COL));
+			assertFalse(locations(issue).stream().anyMatch(location -> location.startsWith("Line[")));
+		}
+		assertEquals(Arrays.asList("Bundle.entry[3].resource"), expressions(outcome, "urn:uuid:second final"));
+		assertEquals(4, memo.getValidated());
+		assertEquals(0, memo.getReused());
+	}
+
+	@Test
+	public void validatorOutcomeIsLeftUnchanged() throws Exception {
+		BundleEntryMemo memo = new BundleEntryMemo(100);
+		//The service hands out the outcome it keeps in the result cache
+		OperationOutcome[] shared = new OperationOutcome[1];
+		OperationOutcome outcome = memo.validate(ENGINE, Collections.emptyList(), document("final", true), bundle -> {
+			shared[0] = validator.validate(bundle);
+			return shared[0];
+		});
+		List<String> before = summary(shared[0]);
+
+		memo.validate(ENGINE, Collections.emptyList(), document("amended", true), validator);
+
+		assertNotSame(shared[0], outcome);
+		assertEquals(before, summary(shared[0]));
+		for (OperationOutcomeIssueComponent issue : shared[0].getIssue().subList(1, 5)) {
+			assertTrue(issue.hasExtension(ToolingExtensions.EXT_ISSUE_LINE));
+			assertTrue(issue.hasExtension(ToolingExtensions.EXT_ISSUE_COL));
+			assertTrue(locations(issue).stream().anyMatch(location -> location.startsWith("Line[")));
+		}
+		assertFalse(outcome.getIssue().get(1).hasExtension(ToolingExtensions.EXT_ISSUE_LINE));
+	}
+
+	@Test
+	public void identicalResubmissionIsServedFromTheMemo() throws Exception {
+		BundleEntryMemo memo = new BundleEntryMemo(100);
+		OperationOutcome first = memo.validate(ENGINE, Collections.emptyList(), document("final", true), validator);
+		OperationOutcome second = memo.validate(ENGINE, Collections.emptyList(), document("final", true), validator);
+
+		assertEquals(1, validatedBundles.size());
+		assertEquals(summary(first), summary(second));
+		assertEquals(4, memo.getReused());
+	}
+
+	@Test
+	public void eachProfileListHasItsOwnEntries() throws Exception {
+		BundleEntryMemo memo = new BundleEntryMemo(100);
+		memo.validate(ENGINE, Collections.emptyList(), document("final", true), validator);
+		memo.validate(ENGINE, Arrays.asList("http://example.org/StructureDefinition/doc"), document("final", true), validator);
+
+		assertEquals(2, validatedBundles.size());
+		assertEquals(0, memo.getReused());
+	}
+
+	@Test
+	public void changedEntryIsRevalidatedWithItsContextAndKeepsItsPath() throws Exception {
+		BundleEntryMemo memo = new BundleEntryMemo(100);
+		memo.validate(ENGINE, Collections.emptyList(), document("final", true), validator);
+		OperationOutcome outcome = memo.validate(ENGINE, Collections.emptyList(), document("amended", true), validator);
+
+		//The Composition references the changed Observation and is validated again too, with everything it references
+		assertEquals(2, validatedBundles.size());
+		assertEquals(Arrays.asList("urn:uuid:composition", "urn:uuid:patient", "urn:uuid:first", "urn:uuid:second"), fullUrls(validatedBundles.get(1)));
+		assertEquals(Arrays.asList("Bundle.entry[3].resource"), expressions(outcome, "urn:uuid:second amended"));
+		assertTrue(expressions(outcome, "urn:uuid:second final").isEmpty());
+		//The first Observation did not change; its issues come from the memo rather than the reduced Bundle
+		assertEquals(Arrays.asList("Bundle.entry[2].resource"), expressions(outcome, "urn:uuid:first final"));
+		assertEquals(Arrays.asList("Bundle"), expressions(outcome, "bundle"));
+		assertEquals(5, outcome.getIssue().size());
+		assertEquals(6, memo.getValidated());
+		assertEquals(2, memo.getReused());
+	}
+
+	@Test
+	public void orphanedEntryIsRevalidated() throws Exception {
+		BundleEntryMemo memo = new BundleEntryMemo(100);
+		memo.validate(ENGINE, Collections.emptyList(), document("final", true), validator);
+		Bundle orphaned = document("final", false);
+		OperationOutcome outcome = memo.validate(ENGINE, Collections.emptyList(), orphaned, validator);
+
+		//The Composition changed and the second Observation is no longer reachable from it
+		assertEquals(2, validatedBundles.size());
+		Bundle reduced = validatedBundles.get(1);
+		assertEquals(Arrays.asList("urn:uuid:composition", "urn:uuid:patient", "urn:uuid:first", "urn:uuid:second"), fullUrls(reduced));
+		//The Composition sees the first Observation as it is in the submitted Bundle
+		Observation first = (Observation) reduced.getEntry().get(2).getResource();
+		assertTrue(first.hasStatus());
+		assertTrue(first.hasSubject());
+		assertTrue(((Observation) reduced.getEntry().get(3).getResource()).hasStatus());
+		//The caller's Bundle is left as it was
+		assertEquals(1, ((Composition) orphaned.getEntry().get(0).getResource()).getSectionFirstRep().getEntry().size());
+
+		assertEquals(Arrays.asList("Bundle.entry[2].resource"), expressions(outcome, "urn:uuid:first final"));
+		assertEquals(Arrays.asList("Bundle.entry[3].resource"), expressions(outcome, "urn:uuid:second final"));
+		assertEquals(6, memo.getValidated());
+		assertEquals(2, memo.getReused());
+	}
+
+	@Test
+	public void memoIsBoundedByMaxEntries() throws Exception {
+		BundleEntryMemo memo = new BundleEntryMemo(3);
+		memo.validate(ENGINE, Collections.emptyList(), document("final", true), validator);
+		assertEquals(3, memo.size());
+		assertTrue(memo.isEnabled());
+		assertFalse(new BundleEntryMemo(0).isEnabled());
+	}
+
+	private static List<String> fullUrls(Bundle bundle) {
+		return bundle.getEntry().stream().map(BundleEntryComponent::getFullUrl).collect(Collectors.toList());
+	}
+
+	private static List<String> locations(OperationOutcomeIssueComponent issue) {
+		return issue.getLocation().stream().map(StringType::getValue).collect(Collectors.toList());
+	}
+
+	//Expressions of the issues with the given diagnostics
+	private static List<String> expressions(OperationOutcome outcome, String diagnostics) {
+		List<String> expressions = new ArrayList<>();
+		for (OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+			if (diagnostics.equals(issue.getDiagnostics())) {
+				issue.getExpression().forEach(expression -> expressions.add(expression.getValue()));
+			}
+		}
+		return expressions;
+	}
+
+	private static List<String> summary(OperationOutcome outcome) {
+		return outcome.getIssue().stream()
+			.map(issue -> issue.getSeverity().toCode() + " " + issue.getDiagnostics() + " " + issue.getExpression() + " " + locations(issue))
+			.collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,252 @@
+package edu.gatech.chai.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.hl7.fhir.validation.cli.model.FileInfo;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+public class BundlePartitionerTest {
+
+	private final FhirContext fhirContext = FhirContext.forR4Cached();
+	private final IParser jsonParser = fhirContext.newJsonParser().setPrettyPrint(true);
+	private final BundlePartitioner.BundleEncoder encoder = jsonParser::encodeResourceToString;
+
+	//A document: Composition, Patient and four Observations, the first and third listed in the Composition's section
+	private static Bundle document() {
+		return document(false);
+	}
+
+	//As document, with every Observation listed in the section when allInSection is set
+	private static Bundle document(boolean allInSection) {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.DOCUMENT);
+		Composition composition = new Composition();
+		composition.setId("composition");
+		composition.setSubject(new Reference("urn:uuid:patient"));
+		Composition.SectionComponent section = composition.addSection().setTitle("Results");
+		bundle.addEntry().setFullUrl("urn:uuid:composition").setResource(composition);
+		Patient patient = new Patient();
+		patient.setId("patient");
+		patient.addName().setFamily("Doe");
+		bundle.addEntry().setFullUrl("urn:uuid:patient").setResource(patient);
+		for (int i = 1; i <= 4; i++) {
+			Observation observation = new Observation();
+			observation.setId("obs" + i);
+			observation.setStatus(ObservationStatus.FINAL);
+			bundle.addEntry().setFullUrl("urn:uuid:obs" + i).setResource(observation);
+			if (allInSection || i % 2 == 1) {
+				section.addEntry(new Reference("urn:uuid:obs" + i));
+			}
+		}
+		return bundle;
+	}
+
+	private FileInfo source(Bundle bundle) {
+		return new FileInfo().setFileName("bundle.json").setFileContent(jsonParser.encodeResourceToString(bundle)).setFileType("json");
+	}
+
+	private Bundle parse(FileInfo source) {
+		return fhirContext.newJsonParser().parseResource(Bundle.class, source.getFileContent());
+	}
+
+	@Test
+	public void smallBundlesAreNotPartitioned() throws Exception {
+		Bundle bundle = document();
+		assertTrue(new BundlePartitioner(4).partition(bundle, 4, source(bundle), encoder).isEmpty());
+		assertTrue(new BundlePartitioner(2).partition(bundle, 1, source(bundle), encoder).isEmpty());
+		assertFalse(new BundlePartitioner(0).isEnabled());
+		assertTrue(new BundlePartitioner(0).partition(bundle, 4, source(bundle), encoder).isEmpty());
+	}
+
+	@Test
+	public void bundleIsNotPartitionedWhenTheFirstEntryLeadsToEveryEntry() throws Exception {
+		Bundle bundle = document(true);
+		assertTrue(new BundlePartitioner(2).partition(bundle, 2, source(bundle), encoder).isEmpty());
+	}
+
+	@Test
+	public void partitionsHoldTheirEntriesAndWhatLeadsToThem() throws Exception {
+		Bundle bundle = document();
+		List<BundlePartitioner.Partition> partitions = new BundlePartitioner(2).partition(bundle, 2, source(bundle), encoder);
+
+		assertEquals(2, partitions.size());
+		BundlePartitioner.Partition first = partitions.get(0);
+		BundlePartitioner.Partition second = partitions.get(1);
+		assertEquals(Arrays.asList(0, 1, 2, 4), first.getIncluded());
+		assertEquals(Arrays.asList(0, 3, 4, 5), second.getIncluded());
+		assertTrue(first.owns(2));
+		assertFalse(first.owns(3));
+		assertTrue(second.owns(3));
+		assertFalse(second.owns(0));
+
+		//The first entry's target in the second partition is in the first partition as it is
+		Bundle firstBundle = parse(first.getSource());
+		assertEquals("urn:uuid:obs3", firstBundle.getEntry().get(3).getFullUrl());
+		assertTrue(((Observation) firstBundle.getEntry().get(3).getResource()).hasStatus());
+
+		Bundle secondBundle = parse(second.getSource());
+		assertEquals(Arrays.asList("urn:uuid:composition", "urn:uuid:obs2", "urn:uuid:obs3", "urn:uuid:obs4"),
+			secondBundle.getEntry().stream().map(BundleEntryComponent::getFullUrl).collect(Collectors.toList()));
+		assertEquals(Bundle.BundleType.DOCUMENT, secondBundle.getType());
+		assertEquals("json", second.getSource().getFileType());
+
+		//The Bundle being validated is not touched
+		for (int i = 2; i < 6; i++) {
+			assertTrue(((Observation) bundle.getEntry().get(i).getResource()).hasStatus());
+		}
+	}
+
+	@Test
+	public void mergeMapsIssuesBackToTheWholeBundle() throws Exception {
+		Bundle bundle = document();
+		FileInfo whole = source(bundle);
+		BundlePartitioner partitioner = new BundlePartitioner(2);
+		List<BundlePartitioner.Partition> partitions = partitioner.partition(bundle, 2, whole, encoder);
+		int[] wholeLines = BundlePartitioner.entryLines(whole);
+		int[] firstLines = BundlePartitioner.entryLines(partitions.get(0).getSource());
+		int[] secondLines = BundlePartitioner.entryLines(partitions.get(1).getSource());
+		assertEquals(6, wholeLines.length);
+		assertEquals(4, firstLines.length);
+		assertEquals(4, secondLines.length);
+
+		OperationOutcome firstOutcome = new OperationOutcome();
+		issue(firstOutcome, "bundle", "Bundle", 2);
+		issue(firstOutcome, "patient", "Bundle.entry[1].resource.name[0]", firstLines[1] + 2);
+		//The third Observation, owned by the second partition
+		issue(firstOutcome, "obs3 again", "Bundle.entry[3].resource", firstLines[3] + 1);
+		OperationOutcome secondOutcome = new OperationOutcome();
+		issue(secondOutcome, "bundle again", "Bundle", 2);
+		issue(secondOutcome, "composition", "Bundle.entry[0].resource", secondLines[0] + 1);
+		issue(secondOutcome, "obs3", "Bundle.entry[2].resource.status", secondLines[2] + 3);
+
+		OperationOutcome merged = partitioner.merge(whole, partitions, Arrays.asList(firstOutcome, secondOutcome));
+
+		assertEquals(Arrays.asList("bundle", "patient", "obs3"),
+			merged.getIssue().stream().map(OperationOutcomeIssueComponent::getDiagnostics).collect(Collectors.toList()));
+		OperationOutcomeIssueComponent bundleIssue = merged.getIssue().get(0);
+		assertEquals(2, line(bundleIssue));
+		OperationOutcomeIssueComponent patient = merged.getIssue().get(1);
+		assertEquals("Bundle.entry[1].resource.name[0]", patient.getExpression().get(0).getValue());
+		assertEquals(wholeLines[1] + 2, line(patient));
+		OperationOutcomeIssueComponent obs3 = merged.getIssue().get(2);
+		assertEquals("Bundle.entry[4].resource.status", obs3.getExpression().get(0).getValue());
+		assertEquals(Arrays.asList("Bundle.entry[4].resource.status", "Line[" + (wholeLines[4] + 3) + "] Col[7]"),
+			obs3.getLocation().stream().map(StringType::getValue).collect(Collectors.toList()));
+		assertEquals(wholeLines[4] + 3, line(obs3));
+		assertFalse(merged.hasExtension(ValidationLimits.EXT_MAX_ERRORS_REACHED));
+
+		//The partition outcomes may be cached and are left as they were
+		assertEquals("Bundle.entry[2].resource.status", secondOutcome.getIssue().get(2).getExpression().get(0).getValue());
+		assertEquals(secondLines[2] + 3, line(secondOutcome.getIssue().get(2)));
+	}
+
+	@Test
+	public void anyPartitionCutAtMaxErrorsMarksTheMergedOutcome() throws Exception {
+		Bundle bundle = document();
+		FileInfo whole = source(bundle);
+		BundlePartitioner partitioner = new BundlePartitioner(2);
+		List<BundlePartitioner.Partition> partitions = partitioner.partition(bundle, 2, whole, encoder);
+		OperationOutcome stopped = new OperationOutcome();
+		ValidationLimits.markStopped(stopped);
+
+		OperationOutcome merged = partitioner.merge(whole, partitions, Arrays.asList(new OperationOutcome(), stopped));
+
+		assertTrue(merged.hasExtension(ValidationLimits.EXT_MAX_ERRORS_REACHED));
+	}
+
+	@Test
+	public void firstEntryIssuesMatchTheWholeBundle() throws Exception {
+		Bundle bundle = document();
+		FileInfo whole = source(bundle);
+		BundlePartitioner partitioner = new BundlePartitioner(2);
+		List<BundlePartitioner.Partition> partitions = partitioner.partition(bundle, 2, whole, encoder);
+		List<OperationOutcome> outcomes = new ArrayList<>();
+		for (BundlePartitioner.Partition partition : partitions) {
+			outcomes.add(checkSectionTargets(parse(partition.getSource())));
+		}
+
+		OperationOutcome merged = partitioner.merge(whole, partitions, outcomes);
+
+		List<String> expected = firstEntryIssues(checkSectionTargets(bundle));
+		assertEquals(Arrays.asList("Bundle.entry[0].resource.section[0].entry[0] urn:uuid:obs1 final",
+			"Bundle.entry[0].resource.section[0].entry[1] urn:uuid:obs3 final"), expected);
+		assertEquals(expected, firstEntryIssues(merged));
+	}
+
+	@Test
+	public void entryLinesOfXml() throws Exception {
+		FileInfo xml = new FileInfo().setFileName("bundle.xml").setFileType("xml")
+			.setFileContent(fhirContext.newXmlParser().setPrettyPrint(true).encodeResourceToString(document()));
+		int[] lines = BundlePartitioner.entryLines(xml);
+		assertEquals(6, lines.length);
+		for (int i = 1; i < lines.length; i++) {
+			assertTrue(lines[i] > lines[i - 1]);
+		}
+	}
+
+	/**
+	 * Reports each section entry of the Composition with the status of its
+	 * target, as a target profile or a slice discriminated by resolve() would
+	 * look into it.
+	 */
+	private static OperationOutcome checkSectionTargets(Bundle bundle) {
+		OperationOutcome outcome = new OperationOutcome();
+		Composition composition = (Composition) bundle.getEntry().get(0).getResource();
+		List<Reference> targets = composition.getSectionFirstRep().getEntry();
+		for (int i = 0; i < targets.size(); i++) {
+			String target = targets.get(i).getReference();
+			String found = "unresolved";
+			for (BundleEntryComponent entry : bundle.getEntry()) {
+				if (target.equals(entry.getFullUrl())) {
+					Observation observation = (Observation) entry.getResource();
+					found = observation.hasStatus() ? observation.getStatus().toCode() : "no status";
+				}
+			}
+			outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDiagnostics(target + " " + found)
+				.addExpression("Bundle.entry[0].resource.section[0].entry[" + i + "]");
+		}
+		return outcome;
+	}
+
+	private static List<String> firstEntryIssues(OperationOutcome outcome) {
+		return outcome.getIssue().stream()
+			.filter(issue -> issue.getExpression().get(0).getValue().startsWith("Bundle.entry[0]"))
+			.map(issue -> issue.getExpression().get(0).getValue() + " " + issue.getDiagnostics())
+			.collect(Collectors.toList());
+	}
+
+	private static void issue(OperationOutcome outcome, String diagnostics, String expression, int line) {
+		OperationOutcomeIssueComponent issue = outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDiagnostics(diagnostics);
+		issue.addExpression(expression);
+		issue.addLocation(expression);
+		issue.addLocation("Line[" + line + "] Col[7]");
+		issue.addExtension(ToolingExtensions.EXT_ISSUE_LINE, new IntegerType(line));
+		issue.addExtension(ToolingExtensions.EXT_ISSUE_COL, new IntegerType(7));
+	}
+
+	private static int line(OperationOutcomeIssueComponent issue) {
+		return ((IntegerType) issue.getExtensionByUrl(ToolingExtensions.EXT_ISSUE_LINE).getValue()).getValue();
+	}
+}
@@ -0,0 +1,120 @@
+package edu.gatech.chai.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class IgRingTest {
+
+	private static final List<String> NODES = Arrays.asList("http://validator-a:8080/fhir", "http://validator-b:8080/fhir", "http://validator-c:8080/fhir");
+
+	private static List<String> igs() {
+		List<String> igs = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			igs.add("example.fhir.ig" + i + "#1.0.0");
+		}
+		return igs;
+	}
+
+	@Test
+	public void igKeyIgnoresOrderAndSpacing() {
+		assertEquals("hl7.fhir.us.core#5.0.1,hl7.fhir.uv.ips#1.1.0", IgRing.igKey(" hl7.fhir.uv.ips#1.1.0 ,hl7.fhir.us.core#5.0.1,,"));
+		assertEquals(IgRing.igKey("a#1,b#2"), IgRing.igKey("b#2, a#1"));
+		assertEquals("", IgRing.igKey(null));
+	}
+
+	@Test
+	public void everyNodeAgreesOnTheOwner() {
+		List<IgRing> rings = new ArrayList<>();
+		for (String self : NODES) {
+			//The node list may be configured in any order
+			List<String> shuffled = new ArrayList<>(NODES);
+			Collections.rotate(shuffled, rings.size());
+			rings.add(new IgRing(shuffled, self, 64));
+		}
+		for (String ig : igs()) {
+			String owner = rings.get(0).ownerOf(ig);
+			int owners = 0;
+			for (IgRing ring : rings) {
+				assertEquals(owner, ring.ownerOf(ig));
+				if (ring.isOwner(ig)) {
+					owners++;
+				}
+			}
+			assertEquals(1, owners);
+		}
+	}
+
+	@Test
+	public void igsAreSpreadOverEveryNode() {
+		IgRing ring = new IgRing(NODES, NODES.get(0), 64);
+		HashSet<String> owners = new HashSet<>();
+		for (String ig : igs()) {
+			owners.add(ring.ownerOf(ig));
+		}
+		assertEquals(new HashSet<>(NODES), owners);
+	}
+
+	@Test
+	public void addingANodeOnlyMovesIgsToIt() {
+		IgRing before = new IgRing(NODES, NODES.get(0), 64);
+		List<String> grown = new ArrayList<>(NODES);
+		grown.add("http://validator-d:8080/fhir");
+		IgRing after = new IgRing(grown, NODES.get(0), 64);
+		int moved = 0;
+		for (String ig : igs()) {
+			String owner = after.ownerOf(ig);
+			if (!owner.equals(before.ownerOf(ig))) {
+				assertEquals("http://validator-d:8080/fhir", owner);
+				moved++;
+			}
+		}
+		assertTrue(moved > 0);
+		assertTrue(moved < igs().size() / 2);
+	}
+
+	@Test
+	public void nodesAreNormalized() {
+		IgRing ring = new IgRing(Arrays.asList(" http://validator-a:8080/fhir/", "http://validator-b:8080/fhir", "http://validator-a:8080/fhir"),
+			"http://validator-a:8080/fhir//", 16);
+		assertEquals(Arrays.asList("http://validator-a:8080/fhir", "http://validator-b:8080/fhir"), ring.getNodes());
+		assertEquals("http://validator-a:8080/fhir", ring.getSelf());
+		assertTrue(ring.isEnabled());
+		IgRing plain = new IgRing(Arrays.asList("http://validator-a:8080/fhir", "http://validator-b:8080/fhir"), "http://validator-a:8080/fhir", 16);
+		for (String ig : igs()) {
+			assertEquals(plain.ownerOf(ig), ring.ownerOf(ig));
+		}
+	}
+
+	@Test
+	public void routingIsOffForASingleNodeOrAnUnlistedSelf() {
+		IgRing single = new IgRing(Arrays.asList("http://validator-a:8080/fhir"), "http://validator-a:8080/fhir", 64);
+		assertFalse(single.isEnabled());
+		IgRing unlisted = new IgRing(NODES, "http://elsewhere:8080/fhir", 64);
+		assertFalse(unlisted.isEnabled());
+		for (IgRing ring : Arrays.asList(single, unlisted)) {
+			assertTrue(ring.isOwner("hl7.fhir.us.core#5.0.1"));
+			assertEquals(ring.getSelf(), ring.ownerOf("hl7.fhir.us.core#5.0.1"));
+			assertEquals(igs(), ring.owned(igs()));
+		}
+	}
+
+	@Test
+	public void ownedListsThisNodesShare() {
+		IgRing ring = new IgRing(NODES, NODES.get(1), 64);
+		List<String> owned = ring.owned(igs());
+		assertFalse(owned.isEmpty());
+		assertTrue(owned.size() < igs().size());
+		for (String ig : igs()) {
+			assertEquals(owned.contains(ig), NODES.get(1).equals(ring.ownerOf(ig)));
+		}
+	}
+}
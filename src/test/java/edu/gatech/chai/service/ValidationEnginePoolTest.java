@@ -0,0 +1,246 @@
+package edu.gatech.chai.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import org.hl7.fhir.validation.ValidationEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.gatech.chai.service.ValidationEnginePool.Lease;
+import edu.gatech.chai.service.ValidationEnginePool.LeaseOutcome;
+
+public class ValidationEnginePoolTest {
+
+	private static final EngineKey US_CORE = key("hl7.fhir.us.core#5.0.1");
+	private static final EngineKey IPS = key("hl7.fhir.uv.ips#1.1.0");
+	private static final EngineKey MCODE = key("hl7.fhir.us.mcode#2.1.0");
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final AtomicInteger builds = new AtomicInteger();
+	private final List<EngineKey> evicted = new ArrayList<>();
+
+	@AfterEach
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static EngineKey key(String ig) {
+		return new EngineKey(Arrays.asList(ig), "4.0.1", null, null, "flags");
+	}
+
+	private Callable<ValidationEngine> builder() {
+		return () -> {
+			builds.incrementAndGet();
+			return mock(ValidationEngine.class, RETURNS_DEEP_STUBS);
+		};
+	}
+
+	//One instance per key; every engine is estimated at bytesPerEngine
+	private ValidationEnginePool limitedPool(int maxEngines, long maxBytes, long bytesPerEngine, Predicate<EngineKey> pinned) {
+		return new ValidationEnginePool(1, template -> template, maxEngines, maxBytes, pinned,
+			(key, engine) -> bytesPerEngine, pool -> evicted.add(pool.getKey()));
+	}
+
+	private static void use(ValidationEnginePool pool, EngineKey key, Callable<ValidationEngine> builder) throws Exception {
+		try (Lease lease = pool.acquire(key, builder)) {
+			lease.getEngine();
+		}
+	}
+
+	@Test
+	public void engineIsBuiltOnceAndThenLeased() throws Exception {
+		ValidationEnginePool pool = new ValidationEnginePool(1, template -> template);
+		ValidationEngine engine;
+		try (Lease lease = pool.acquire(US_CORE, builder())) {
+			assertEquals(LeaseOutcome.MISS, lease.getOutcome());
+			assertFalse(lease.isCacheHit());
+			engine = lease.getEngine();
+		}
+		try (Lease lease = pool.acquire(US_CORE, builder())) {
+			assertEquals(LeaseOutcome.HIT, lease.getOutcome());
+			assertTrue(lease.isCacheHit());
+			assertSame(engine, lease.getEngine());
+		}
+		assertEquals(1, builds.get());
+		assertTrue(pool.contains(US_CORE));
+	}
+
+	@Test
+	public void concurrentRequestsWaitForOneBuild() throws Exception {
+		ValidationEnginePool pool = new ValidationEnginePool(2, template -> mock(ValidationEngine.class, RETURNS_DEEP_STUBS));
+		CountDownLatch building = new CountDownLatch(1);
+		CountDownLatch finish = new CountDownLatch(1);
+		Future<Lease> first = executor.submit(() -> pool.acquire(US_CORE, () -> {
+			building.countDown();
+			finish.await(10, TimeUnit.SECONDS);
+			return builder().call();
+		}));
+		assertTrue(building.await(10, TimeUnit.SECONDS));
+		AtomicReference<Thread> secondThread = new AtomicReference<>();
+		Future<Lease> second = executor.submit(() -> {
+			secondThread.set(Thread.currentThread());
+			return pool.acquire(US_CORE, builder());
+		});
+		//Parked on the template the first caller is building
+		waitFor(() -> secondThread.get() != null && secondThread.get().getState() == Thread.State.WAITING);
+		finish.countDown();
+
+		try (Lease firstLease = first.get(10, TimeUnit.SECONDS); Lease secondLease = second.get(10, TimeUnit.SECONDS)) {
+			assertEquals(LeaseOutcome.MISS, firstLease.getOutcome());
+			assertEquals(LeaseOutcome.COALESCED, secondLease.getOutcome());
+			assertNotSame(firstLease.getEngine(), secondLease.getEngine());
+		}
+		assertEquals(1, builds.get());
+	}
+
+	@Test
+	public void instancesAreForkedUpToTheLimitAndReused() throws Exception {
+		AtomicInteger forks = new AtomicInteger();
+		ValidationEnginePool pool = new ValidationEnginePool(2, template -> {
+			forks.incrementAndGet();
+			return mock(ValidationEngine.class, RETURNS_DEEP_STUBS);
+		});
+		try (Lease first = pool.acquire(US_CORE, builder()); Lease second = pool.acquire(US_CORE, builder())) {
+			assertNotSame(first.getEngine(), second.getEngine());
+			assertEquals(2, pool.getPools().get(US_CORE).getCreatedCount());
+		}
+		try (Lease lease = pool.acquire(US_CORE, builder())) {
+			assertEquals(LeaseOutcome.HIT, lease.getOutcome());
+			assertEquals(2, forks.get());
+			assertEquals(1, pool.getPools().get(US_CORE).getIdleCount());
+		}
+		assertEquals(1, builds.get());
+	}
+
+	@Test
+	public void failedBuildIsTriedAgain() throws Exception {
+		ValidationEnginePool pool = new ValidationEnginePool(1, template -> template);
+		assertThrows(IllegalStateException.class, () -> pool.acquire(US_CORE, () -> {
+			throw new IllegalStateException("package not found");
+		}));
+		assertFalse(pool.contains(US_CORE));
+		try (Lease lease = pool.acquire(US_CORE, builder())) {
+			assertEquals(LeaseOutcome.MISS, lease.getOutcome());
+		}
+		assertTrue(pool.contains(US_CORE));
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvictedPastMaxEngines() throws Exception {
+		ValidationEnginePool pool = limitedPool(2, 0, 0, key -> false);
+		use(pool, US_CORE, builder());
+		use(pool, IPS, builder());
+		//Using US Core again makes IPS the least recently used
+		use(pool, US_CORE, builder());
+		use(pool, MCODE, builder());
+
+		assertTrue(pool.contains(US_CORE));
+		assertFalse(pool.contains(IPS));
+		assertTrue(pool.contains(MCODE));
+		assertEquals(1, pool.getEvictions());
+		assertEquals(Arrays.asList(IPS), evicted);
+	}
+
+	@Test
+	public void pinnedKeysAreNotEvicted() throws Exception {
+		ValidationEnginePool pool = limitedPool(2, 0, 0, key -> key.equals(US_CORE));
+		use(pool, US_CORE, builder());
+		use(pool, IPS, builder());
+		use(pool, MCODE, builder());
+
+		assertTrue(pool.isPinned(US_CORE));
+		assertTrue(pool.contains(US_CORE));
+		assertFalse(pool.contains(IPS));
+		assertTrue(pool.contains(MCODE));
+	}
+
+	@Test
+	public void estimatedBytesStayWithinMaxBytes() throws Exception {
+		ValidationEnginePool pool = limitedPool(0, 250, 100, key -> false);
+		use(pool, US_CORE, builder());
+		use(pool, IPS, builder());
+		assertEquals(200, pool.getTotalBytes());
+		use(pool, MCODE, builder());
+
+		assertEquals(200, pool.getTotalBytes());
+		assertFalse(pool.contains(US_CORE));
+		assertEquals(Arrays.asList(US_CORE), evicted);
+	}
+
+	@Test
+	public void engineJustBuiltIsKeptEvenOverTheLimit() throws Exception {
+		ValidationEnginePool pool = limitedPool(0, 50, 100, key -> false);
+		use(pool, US_CORE, builder());
+		assertTrue(pool.contains(US_CORE));
+		assertEquals(0, pool.getEvictions());
+
+		//The next build evicts the older engine but keeps itself
+		use(pool, IPS, builder());
+		assertFalse(pool.contains(US_CORE));
+		assertTrue(pool.contains(IPS));
+	}
+
+	@Test
+	public void nothingIsEvictedWhenEveryOtherEngineIsPinned() throws Exception {
+		ValidationEnginePool pool = limitedPool(1, 0, 0, key -> !key.equals(MCODE));
+		use(pool, US_CORE, builder());
+		use(pool, IPS, builder());
+		use(pool, MCODE, builder());
+
+		assertTrue(pool.contains(US_CORE));
+		assertTrue(pool.contains(IPS));
+		assertTrue(pool.contains(MCODE));
+		assertEquals(0, pool.getEvictions());
+	}
+
+	@Test
+	public void evictedKeyIsBuiltAgainOnItsNextRequest() throws Exception {
+		ValidationEnginePool pool = limitedPool(1, 0, 0, key -> false);
+		use(pool, US_CORE, builder());
+		use(pool, IPS, builder());
+		try (Lease lease = pool.acquire(US_CORE, builder())) {
+			assertEquals(LeaseOutcome.MISS, lease.getOutcome());
+		}
+		assertEquals(3, builds.get());
+		assertFalse(pool.contains(IPS));
+	}
+
+	@Test
+	public void leaseOutcomesAreOrderedBySpeed() {
+		assertTrue(LeaseOutcome.MISS.isSlowerThan(LeaseOutcome.COALESCED));
+		assertTrue(LeaseOutcome.COALESCED.isSlowerThan(LeaseOutcome.HIT));
+		assertFalse(LeaseOutcome.HIT.isSlowerThan(LeaseOutcome.HIT));
+		assertEquals("coalesced", LeaseOutcome.COALESCED.tag());
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline) {
+				throw new AssertionError("Timed out waiting");
+			}
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package edu.gatech.chai.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.gatech.chai.service.ValidationJobManager.JobState;
+import edu.gatech.chai.service.ValidationJobManager.ValidationJob;
+
+public class ValidationJobManagerTest {
+
+	private final ValidationJobManager manager = new ValidationJobManager(1, 4, 60);
+
+	@AfterEach
+	public void tearDown() {
+		manager.shutdown();
+	}
+
+	@Test
+	public void completedJobKeepsItsOutcome() throws Exception {
+		OperationOutcome outcome = new OperationOutcome();
+		ValidationJob job = manager.submit(() -> outcome);
+		waitFor(job::isDone);
+
+		assertEquals(JobState.COMPLETE, job.getState());
+		assertSame(outcome, job.getOutcome());
+		assertNull(job.getError());
+		assertTrue(job.getCompletedAt() >= job.getStartedAt());
+	}
+
+	@Test
+	public void errorsFailTheJob() throws Exception {
+		ValidationJob job = manager.submit(() -> {
+			throw new StackOverflowError();
+		});
+		waitFor(job::isDone);
+
+		assertEquals(JobState.FAILED, job.getState());
+		assertTrue(job.getError() instanceof StackOverflowError);
+		assertTrue(job.getCompletedAt() > 0);
+	}
+
+	@Test
+	public void finishedJobIsKeptForItsTtl() throws Exception {
+		ValidationJob job = manager.submit(() -> {
+			throw new IllegalStateException("engine build failed");
+		});
+		waitFor(job::isDone);
+		manager.expireJobs();
+
+		assertSame(job, manager.getJob(job.getId()));
+		assertEquals(1, manager.getRetained());
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline) {
+				throw new AssertionError("Timed out waiting");
+			}
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package edu.gatech.chai.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.hl7.fhir.validation.cli.utils.ValidationLevel;
+import org.junit.jupiter.api.Test;
+
+public class ValidationLimitsTest {
+
+	private static ValidationMessage message(ValidationMessage.IssueSeverity level, String text) {
+		return new ValidationMessage(Source.InstanceValidator, IssueType.STRUCTURE, "Patient.name", text, level);
+	}
+
+	@Test
+	public void unlimitedListKeepsEverything() {
+		List<ValidationMessage> messages = ValidationLimits.NONE.newMessageList();
+		for (int i = 0; i < 5; i++) {
+			messages.add(message(ValidationMessage.IssueSeverity.ERROR, "error " + i));
+		}
+		messages.add(message(ValidationMessage.IssueSeverity.INFORMATION, "information"));
+		assertEquals(6, messages.size());
+		assertFalse(ValidationLimits.isStopped(messages));
+	}
+
+	@Test
+	public void listKeepsNothingAfterMaxErrors() {
+		List<ValidationMessage> messages = new ValidationLimits(2, null).newMessageList();
+		assertTrue(messages.add(message(ValidationMessage.IssueSeverity.WARNING, "warning 1")));
+		assertTrue(messages.add(message(ValidationMessage.IssueSeverity.ERROR, "error 1")));
+		assertFalse(ValidationLimits.isStopped(messages));
+		assertTrue(messages.add(message(ValidationMessage.IssueSeverity.FATAL, "fatal 1")));
+		assertTrue(ValidationLimits.isStopped(messages));
+
+		//The validator carries on; nothing it reports from here on is kept
+		assertFalse(messages.add(message(ValidationMessage.IssueSeverity.ERROR, "error 2")));
+		assertFalse(messages.add(message(ValidationMessage.IssueSeverity.WARNING, "warning 2")));
+		messages.addAll(Arrays.asList(message(ValidationMessage.IssueSeverity.ERROR, "error 3")));
+		assertEquals(Arrays.asList("warning 1", "error 1", "fatal 1"), texts(messages));
+	}
+
+	@Test
+	public void listDropsMessagesBelowMinSeverity() {
+		List<ValidationMessage> messages = new ValidationLimits(0, IssueSeverity.WARNING).newMessageList();
+		messages.addAll(Arrays.asList(
+			message(ValidationMessage.IssueSeverity.INFORMATION, "information"),
+			message(ValidationMessage.IssueSeverity.WARNING, "warning"),
+			message(ValidationMessage.IssueSeverity.ERROR, "error")));
+		assertEquals(Arrays.asList("warning", "error"), texts(messages));
+		assertFalse(ValidationLimits.isStopped(messages));
+	}
+
+	@Test
+	public void droppedMessagesDoNotCountTowardsMaxErrors() {
+		List<ValidationMessage> messages = new ValidationLimits(1, IssueSeverity.FATAL).newMessageList();
+		messages.add(message(ValidationMessage.IssueSeverity.ERROR, "error"));
+		assertFalse(ValidationLimits.isStopped(messages));
+		messages.add(message(ValidationMessage.IssueSeverity.FATAL, "fatal"));
+		assertTrue(ValidationLimits.isStopped(messages));
+		assertEquals(Arrays.asList("fatal"), texts(messages));
+	}
+
+	@Test
+	public void trimCutsMergedOutcomeAndMarksIt() {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDiagnostics("error 1");
+		outcome.addIssue().setSeverity(IssueSeverity.INFORMATION).setDiagnostics("information");
+		outcome.addIssue().setSeverity(IssueSeverity.WARNING).setDiagnostics("warning");
+		outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDiagnostics("error 2");
+		outcome.addIssue().setSeverity(IssueSeverity.FATAL).setDiagnostics("fatal");
+
+		new ValidationLimits(2, IssueSeverity.WARNING).trim(outcome);
+
+		assertEquals(3, outcome.getIssue().size());
+		assertEquals("error 1", outcome.getIssue().get(0).getDiagnostics());
+		assertEquals("warning", outcome.getIssue().get(1).getDiagnostics());
+		assertEquals("error 2", outcome.getIssue().get(2).getDiagnostics());
+		assertTrue(outcome.hasExtension(ValidationLimits.EXT_MAX_ERRORS_REACHED));
+	}
+
+	@Test
+	public void trimLeavesCompleteOutcomeUnmarked() {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDiagnostics("error");
+		outcome.addIssue().setSeverity(IssueSeverity.WARNING).setDiagnostics("warning");
+
+		new ValidationLimits(1, null).trim(outcome);
+
+		assertEquals(2, outcome.getIssue().size());
+		assertFalse(outcome.hasExtension(ValidationLimits.EXT_MAX_ERRORS_REACHED));
+	}
+
+	@Test
+	public void reachedOnceMaxErrorsErrorsAreFound() {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDiagnostics("error");
+		outcome.addIssue().setSeverity(IssueSeverity.WARNING).setDiagnostics("warning");
+
+		assertFalse(new ValidationLimits(2, null).isReached(outcome));
+		assertFalse(new ValidationLimits(0, IssueSeverity.ERROR).isReached(outcome));
+		outcome.addIssue().setSeverity(IssueSeverity.FATAL).setDiagnostics("fatal");
+		assertTrue(new ValidationLimits(2, null).isReached(outcome));
+
+		OperationOutcome stopped = new OperationOutcome();
+		ValidationLimits.markStopped(stopped);
+		assertTrue(new ValidationLimits(5, null).isReached(stopped));
+	}
+
+	@Test
+	public void engineLevelFollowsMinSeverity() {
+		assertEquals(ValidationLevel.HINTS, ValidationLimits.NONE.engineLevel(ValidationLevel.HINTS));
+		assertEquals(ValidationLevel.HINTS, new ValidationLimits(0, IssueSeverity.INFORMATION).engineLevel(ValidationLevel.HINTS));
+		assertEquals(ValidationLevel.WARNINGS, new ValidationLimits(0, IssueSeverity.WARNING).engineLevel(ValidationLevel.HINTS));
+		assertEquals(ValidationLevel.ERRORS, new ValidationLimits(0, IssueSeverity.WARNING).engineLevel(ValidationLevel.ERRORS));
+		assertEquals(ValidationLevel.ERRORS, new ValidationLimits(0, IssueSeverity.ERROR).engineLevel(ValidationLevel.HINTS));
+		assertEquals(ValidationLevel.ERRORS, new ValidationLimits(3, IssueSeverity.FATAL).engineLevel(ValidationLevel.WARNINGS));
+		assertEquals(ValidationLevel.WARNINGS, new ValidationLimits(3, null).engineLevel(ValidationLevel.WARNINGS));
+	}
+
+	@Test
+	public void markStoppedAddsTheExtensionOnce() {
+		OperationOutcome outcome = new OperationOutcome();
+		ValidationLimits.markStopped(outcome);
+		ValidationLimits.markStopped(outcome);
+		assertEquals(1, outcome.getExtension().size());
+	}
+
+	@Test
+	public void parseSeverity() {
+		assertNull(ValidationLimits.parseSeverity(" "));
+		assertEquals(IssueSeverity.WARNING, ValidationLimits.parseSeverity(" Warning "));
+		assertThrows(IllegalArgumentException.class, () -> ValidationLimits.parseSeverity("severe"));
+	}
+
+	@Test
+	public void limitsArePartOfTheCacheKey() {
+		assertEquals("maxErrors=0;minSeverity=", ValidationLimits.NONE.toString());
+		assertEquals("maxErrors=3;minSeverity=error", new ValidationLimits(3, IssueSeverity.ERROR).toString());
+		assertTrue(new ValidationLimits(-1, null).isNone());
+	}
+
+	private static List<String> texts(List<ValidationMessage> messages) {
+		return messages.stream().map(ValidationMessage::getMessage).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,188 @@
+package edu.gatech.chai.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.hl7.fhir.validation.cli.model.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ValidationResultCacheTest {
+
+	private static final EngineKey ENGINE = new EngineKey(Arrays.asList("hl7.fhir.us.core#5.0.1"), "4.0.1", "us", null, "flags");
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@AfterEach
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static FileInfo source(String content) {
+		return new FileInfo().setFileName("resource.json").setFileContent(content).setFileType("json");
+	}
+
+	//Every result counts as the same number of bytes
+	private static ValidationResultCache sizedCache(int maxEntries, long maxBytes, long bytesPerResult) {
+		return new ValidationResultCache(maxEntries, maxBytes) {
+			@Override
+			protected long estimateBytes(ValidatedSource result) {
+				return bytesPerResult;
+			}
+		};
+	}
+
+	@Test
+	public void keysTellContentProfilesAndVariantsApart() {
+		ValidationResultCache cache = new ValidationResultCache(10, 1024 * 1024);
+		ValidationResultCache.ResultKey key = cache.keyFor(ENGINE, Collections.emptyList(), source("{\"a\":1}"));
+		assertEquals(key, cache.keyFor(ENGINE, Collections.emptyList(), source("{\"a\":1}")));
+		assertNotEquals(key, cache.keyFor(ENGINE, Collections.emptyList(), source("{\"a\":2}")));
+		assertNotEquals(key, cache.keyFor(ENGINE, Arrays.asList("http://example.org/profile"), source("{\"a\":1}")));
+		assertNotEquals(key, cache.keyFor(ENGINE, Collections.emptyList(), source("{\"a\":1}"), "maxErrors=1;minSeverity="));
+	}
+
+	@Test
+	public void storedResultIsServedWithoutLoading() throws Exception {
+		ValidationResultCache cache = new ValidationResultCache(10, 1024 * 1024);
+		ValidationResultCache.ResultKey key = cache.keyFor(ENGINE, Collections.emptyList(), source("{}"));
+		ValidatedSource result = new ValidatedSource(source("{}"));
+		assertSame(result, cache.get(key, () -> result));
+		assertSame(result, cache.get(key, () -> {
+			throw new AssertionError("loaded twice");
+		}));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertSame(result, cache.lookup(key).get());
+	}
+
+	@Test
+	public void concurrentRequestsShareOneValidation() throws Exception {
+		ValidationResultCache cache = new ValidationResultCache(10, 1024 * 1024);
+		ValidationResultCache.ResultKey key = cache.keyFor(ENGINE, Collections.emptyList(), source("{}"));
+		ValidatedSource result = new ValidatedSource(source("{}"));
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger loads = new AtomicInteger();
+
+		Future<ValidatedSource> first = executor.submit(() -> cache.get(key, () -> {
+			loads.incrementAndGet();
+			loading.countDown();
+			release.await();
+			return result;
+		}));
+		assertTrue(loading.await(10, TimeUnit.SECONDS));
+		//A scheduled caller finds the validation in flight and waits on it without a slot
+		CompletableFuture<ValidatedSource> inFlight = cache.lookup(key);
+		assertFalse(inFlight.isDone());
+		Future<ValidatedSource> second = executor.submit(() -> cache.get(key, () -> {
+			loads.incrementAndGet();
+			return new ValidatedSource(source("{}"));
+		}));
+		waitFor(() -> cache.getCoalesced() == 2);
+		release.countDown();
+
+		assertSame(result, first.get(10, TimeUnit.SECONDS));
+		assertSame(result, second.get(10, TimeUnit.SECONDS));
+		assertSame(result, inFlight.get(10, TimeUnit.SECONDS));
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void failedValidationIsNotCached() throws Exception {
+		ValidationResultCache cache = new ValidationResultCache(10, 1024 * 1024);
+		ValidationResultCache.ResultKey key = cache.keyFor(ENGINE, Collections.emptyList(), source("{}"));
+		assertThrows(IllegalStateException.class, () -> cache.get(key, () -> {
+			throw new IllegalStateException("engine build failed");
+		}));
+		assertNull(cache.lookup(key));
+		ValidatedSource result = new ValidatedSource(source("{}"));
+		assertSame(result, cache.get(key, () -> result));
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvictedPastMaxEntries() throws Exception {
+		ValidationResultCache cache = new ValidationResultCache(2, 1024 * 1024);
+		ValidationResultCache.ResultKey a = cache.keyFor(ENGINE, Collections.emptyList(), source("a"));
+		ValidationResultCache.ResultKey b = cache.keyFor(ENGINE, Collections.emptyList(), source("b"));
+		ValidationResultCache.ResultKey c = cache.keyFor(ENGINE, Collections.emptyList(), source("c"));
+		cache.get(a, () -> new ValidatedSource(source("a")));
+		cache.get(b, () -> new ValidatedSource(source("b")));
+		//Using a makes b the least recently used
+		cache.get(a, () -> new ValidatedSource(source("a")));
+		cache.get(c, () -> new ValidatedSource(source("c")));
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.lookup(b));
+		assertTrue(cache.lookup(a).isDone());
+		assertTrue(cache.lookup(c).isDone());
+	}
+
+	@Test
+	public void estimatedBytesStayWithinMaxBytes() throws Exception {
+		ValidationResultCache cache = sizedCache(100, 250, 100);
+		for (String content : Arrays.asList("a", "b", "c", "d")) {
+			cache.get(cache.keyFor(ENGINE, Collections.emptyList(), source(content)), () -> new ValidatedSource(source(content)));
+			assertTrue(cache.getTotalBytes() <= 250);
+		}
+		assertEquals(2, cache.size());
+		assertEquals(200, cache.getTotalBytes());
+		assertEquals(2, cache.getEvictions());
+		assertNull(cache.lookup(cache.keyFor(ENGINE, Collections.emptyList(), source("a"))));
+		assertTrue(cache.lookup(cache.keyFor(ENGINE, Collections.emptyList(), source("d"))).isDone());
+	}
+
+	@Test
+	public void resultLargerThanMaxBytesIsNotStored() throws Exception {
+		ValidationResultCache cache = sizedCache(100, 250, 300);
+		ValidationResultCache.ResultKey key = cache.keyFor(ENGINE, Collections.emptyList(), source("{}"));
+		ValidatedSource result = new ValidatedSource(source("{}"));
+		assertSame(result, cache.get(key, () -> result));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getTotalBytes());
+		assertEquals(0, cache.getEvictions());
+	}
+
+	@Test
+	public void disabledCacheAlwaysLoads() throws Exception {
+		ValidationResultCache cache = new ValidationResultCache(0, 1024 * 1024);
+		ValidationResultCache.ResultKey key = cache.keyFor(ENGINE, Collections.emptyList(), source("{}"));
+		AtomicInteger loads = new AtomicInteger();
+		for (int i = 0; i < 2; i++) {
+			cache.get(key, () -> {
+				loads.incrementAndGet();
+				return new ValidatedSource(source("{}"));
+			});
+		}
+		assertEquals(2, loads.get());
+		assertNull(cache.lookup(key));
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline) {
+				throw new AssertionError("Timed out waiting");
+			}
+			Thread.sleep(5);
+		}
+	}
+}
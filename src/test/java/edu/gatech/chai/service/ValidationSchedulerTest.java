@@ -0,0 +1,162 @@
+package edu.gatech.chai.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.gatech.chai.service.ValidationScheduler.Lane;
+
+public class ValidationSchedulerTest {
+
+	private static final EngineKey US_CORE = new EngineKey(Arrays.asList("hl7.fhir.us.core#5.0.1"), "4.0.1", "us", null, "flags");
+	private static final EngineKey IPS = new EngineKey(Arrays.asList("hl7.fhir.uv.ips#1.1.0"), "4.0.1", null, null, "flags");
+
+	//Submits from other threads, since admission blocks the submitting thread
+	private final ExecutorService submitters = Executors.newCachedThreadPool();
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final List<Future<?>> tasks = new ArrayList<>();
+	private ValidationScheduler scheduler;
+
+	@AfterEach
+	public void tearDown() {
+		release.countDown();
+		submitters.shutdownNow();
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+	}
+
+	//A task that holds its slot until release is counted down
+	private Callable<Boolean> blocking() {
+		return () -> release.await(10, TimeUnit.SECONDS);
+	}
+
+	private void submitInBackground(Lane lane, EngineKey key) {
+		tasks.add(submitters.submit(() -> scheduler.submit(lane, key, blocking()).get()));
+	}
+
+	private void finishAll() throws Exception {
+		release.countDown();
+		for (Future<?> task : tasks) {
+			task.get(10, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void bulkIsCappedBelowTheSlotsInteractiveCanUse() throws Exception {
+		scheduler = new ValidationScheduler(3, 1, 10, false);
+		tasks.add(scheduler.submit(Lane.BULK, US_CORE, blocking()));
+		tasks.add(scheduler.submit(Lane.BULK, US_CORE, blocking()));
+		submitInBackground(Lane.BULK, US_CORE);
+		waitFor(() -> scheduler.getWaiting(Lane.BULK) == 1);
+		assertEquals(2, scheduler.getRunning(Lane.BULK));
+
+		//The reserved slot is still free for an interactive request
+		tasks.add(scheduler.submit(Lane.INTERACTIVE, US_CORE, blocking()));
+		assertEquals(1, scheduler.getRunning(Lane.INTERACTIVE));
+		assertEquals(1, scheduler.getWaiting(Lane.BULK));
+
+		finishAll();
+		assertEquals(0, scheduler.getRunning(Lane.BULK));
+		assertEquals(0, scheduler.getRunning(Lane.INTERACTIVE));
+	}
+
+	@Test
+	public void engineLimitHoldsBackOnlyThatEngine() throws Exception {
+		scheduler = new ValidationScheduler(4, 0, 1, false);
+		tasks.add(scheduler.submit(Lane.INTERACTIVE, US_CORE, blocking()));
+		submitInBackground(Lane.INTERACTIVE, US_CORE);
+		waitFor(() -> scheduler.getWaiting(Lane.INTERACTIVE) == 1);
+
+		//Another configuration still has room while US Core waits for its engine
+		tasks.add(scheduler.submit(Lane.INTERACTIVE, IPS, blocking()));
+		assertEquals(2, scheduler.getRunning(Lane.INTERACTIVE));
+		assertEquals(1, scheduler.getWaiting(Lane.INTERACTIVE));
+
+		finishAll();
+	}
+
+	@Test
+	public void interactiveGoesAheadOfWaitingBulkForTheSameEngine() throws Exception {
+		scheduler = new ValidationScheduler(4, 0, 1, false);
+		CountDownLatch firstDone = new CountDownLatch(1);
+		Future<Boolean> first = scheduler.submit(Lane.BULK, US_CORE, () -> firstDone.await(10, TimeUnit.SECONDS));
+		submitInBackground(Lane.BULK, US_CORE);
+		waitFor(() -> scheduler.getWaiting(Lane.BULK) == 1);
+		submitInBackground(Lane.INTERACTIVE, US_CORE);
+		waitFor(() -> scheduler.getWaiting(Lane.INTERACTIVE) == 1);
+
+		firstDone.countDown();
+		first.get(10, TimeUnit.SECONDS);
+		waitFor(() -> scheduler.getRunning(Lane.INTERACTIVE) == 1);
+		assertEquals(0, scheduler.getRunning(Lane.BULK));
+		assertEquals(1, scheduler.getWaiting(Lane.BULK));
+
+		finishAll();
+		assertEquals(0, scheduler.getWaiting(Lane.BULK));
+	}
+
+	@Test
+	public void engineCountsAreDroppedWhenNothingRunsOrWaits() throws Exception {
+		scheduler = new ValidationScheduler(4, 1, 1, false);
+		tasks.add(scheduler.submit(Lane.INTERACTIVE, US_CORE, blocking()));
+		submitInBackground(Lane.INTERACTIVE, US_CORE);
+		tasks.add(scheduler.submit(Lane.BULK, IPS, blocking()));
+		waitFor(() -> scheduler.getWaiting(Lane.INTERACTIVE) == 1);
+		assertEquals(2, scheduler.getTrackedEngines());
+
+		finishAll();
+		assertEquals(0, scheduler.getTrackedEngines());
+	}
+
+	@Test
+	public void runReturnsTheResultAndRethrowsTheTaskException() throws Exception {
+		scheduler = new ValidationScheduler(2, 1, 1, false);
+		assertEquals("done", scheduler.run(Lane.INTERACTIVE, US_CORE, () -> "done"));
+		assertThrows(IOException.class, () -> scheduler.run(Lane.BULK, US_CORE, () -> {
+			throw new IOException("unreadable");
+		}));
+		//A failed task still gives its slot back
+		assertEquals(0, scheduler.getRunning(Lane.BULK));
+		assertEquals(0, scheduler.getTrackedEngines());
+	}
+
+	@Test
+	public void platformThreadsWhenVirtualThreadsAreNotWanted() {
+		scheduler = new ValidationScheduler(2, 1, 1, false);
+		assertFalse(scheduler.isVirtualThreads());
+	}
+
+	@Test
+	public void laneFromHeader() {
+		assertEquals(Lane.BULK, Lane.fromHeader(" bulk ", Lane.INTERACTIVE));
+		assertEquals(Lane.INTERACTIVE, Lane.fromHeader("Interactive", Lane.BULK));
+		assertEquals(Lane.BULK, Lane.fromHeader("urgent", Lane.BULK));
+		assertEquals(Lane.INTERACTIVE, Lane.fromHeader(null, Lane.INTERACTIVE));
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline) {
+				throw new AssertionError("Timed out waiting");
+			}
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package edu.gatech.chai.servlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class CaptureRedactorTest {
+
+	private static final String PATIENT_JSON = "{\"resourceType\":\"Patient\",\"id\":\"p1\","
+		+ "\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">Jane Doe, MRN 12345</div>\"},"
+		+ "\"identifier\":[{\"system\":\"http://hospital.example.org/mrn\",\"value\":\"MRN-12345\"}],"
+		+ "\"name\":[{\"family\":\"Doe\",\"given\":[\"Jane\",\"Q\"]}],"
+		+ "\"telecom\":[{\"system\":\"phone\",\"value\":\"555-0100\"}],"
+		+ "\"gender\":\"female\",\"birthDate\":\"1970-01-01\","
+		+ "\"address\":[{\"line\":[\"1 Main St\"],\"city\":\"Atlanta\",\"state\":\"GA\",\"postalCode\":\"30332\"}],"
+		+ "\"managingOrganization\":{\"reference\":\"Organization/org1\"}}";
+
+	private final CaptureRedactor redactor = new CaptureRedactor();
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void jsonMasksIdentifyingTextOnly() throws Exception {
+		JsonNode redacted = mapper.readTree(redactor.redact(PATIENT_JSON, "application/fhir+json; charset=UTF-8"));
+
+		assertEquals("Xxx", redacted.at("/name/0/family").asText());
+		assertEquals("Xxxx", redacted.at("/name/0/given/0").asText());
+		assertEquals("X", redacted.at("/name/0/given/1").asText());
+		assertEquals("XXX-00000", redacted.at("/identifier/0/value").asText());
+		assertEquals("000-0000", redacted.at("/telecom/0/value").asText());
+		assertEquals("0 Xxxx Xx", redacted.at("/address/0/line/0").asText());
+		assertEquals("Xxxxxxx", redacted.at("/address/0/city").asText());
+		assertEquals("00000", redacted.at("/address/0/postalCode").asText());
+		assertEquals("<div xmlns=\"http://www.w3.org/1999/xhtml\">redacted</div>", redacted.at("/text/div").asText());
+
+		//Codes, systems, dates and references are kept
+		assertEquals("http://hospital.example.org/mrn", redacted.at("/identifier/0/system").asText());
+		assertEquals("phone", redacted.at("/telecom/0/system").asText());
+		assertEquals("GA", redacted.at("/address/0/state").asText());
+		assertEquals("female", redacted.at("/gender").asText());
+		assertEquals("1970-01-01", redacted.at("/birthDate").asText());
+		assertEquals("Organization/org1", redacted.at("/managingOrganization/reference").asText());
+		assertEquals("generated", redacted.at("/text/status").asText());
+	}
+
+	@Test
+	public void nestedResourcesAndExtensionsAreMasked() throws Exception {
+		String bundle = "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[{\"resource\":" + PATIENT_JSON + "},"
+			+ "{\"resource\":{\"resourceType\":\"Observation\",\"status\":\"final\","
+			+ "\"extension\":[{\"url\":\"http://example.org/contact\",\"valueHumanName\":{\"text\":\"John Roe\"}}]}}]}";
+		JsonNode redacted = mapper.readTree(redactor.redact(bundle, "application/json"));
+
+		assertEquals("Xxx", redacted.at("/entry/0/resource/name/0/family").asText());
+		assertEquals("Xxxx Xxx", redacted.at("/entry/1/resource/extension/0/valueHumanName/text").asText());
+		assertEquals("final", redacted.at("/entry/1/resource/status").asText());
+	}
+
+	@Test
+	public void ndjsonIsMaskedLineByLine() throws Exception {
+		String ndjson = PATIENT_JSON + "\n\n" + PATIENT_JSON.replace("Doe", "Smith") + "\n";
+		String redacted = redactor.redact(ndjson, "application/fhir+ndjson");
+		String[] lines = redacted.split("\n", -1);
+
+		//Blank lines and the final newline are kept
+		assertEquals(4, lines.length);
+		assertEquals("Xxx", mapper.readTree(lines[0]).at("/name/0/family").asText());
+		assertTrue(lines[1].isEmpty());
+		assertEquals("Xxxxx", mapper.readTree(lines[2]).at("/name/0/family").asText());
+		assertTrue(lines[3].isEmpty());
+	}
+
+	@Test
+	public void xmlMasksValueAttributesAndNarrative() {
+		String xml = "<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"p1\"/>"
+			+ "<text><status value=\"generated\"/><div xmlns=\"http://www.w3.org/1999/xhtml\"><p>Jane Doe</p></div></text>"
+			+ "<identifier><system value=\"http://hospital.example.org/mrn\"/><value value=\"MRN-12345\"/></identifier>"
+			+ "<name><family value=\"Doe\"/><given value=\"Jane\"/></name>"
+			+ "<gender value=\"female\"/></Patient>";
+		String redacted = redactor.redact(xml, "application/fhir+xml");
+
+		assertTrue(redacted.contains("<family value=\"Xxx\"/>"));
+		assertTrue(redacted.contains("<given value=\"Xxxx\"/>"));
+		assertTrue(redacted.contains("<value value=\"XXX-00000\"/>"));
+		assertTrue(redacted.contains(">redacted</div>"));
+		assertTrue(redacted.contains("<system value=\"http://hospital.example.org/mrn\"/>"));
+		assertTrue(redacted.contains("<gender value=\"female\"/>"));
+		assertFalse(redacted.contains("Jane"));
+		assertFalse(redacted.startsWith("<?xml"));
+	}
+
+	@Test
+	public void otherContentIsNotCaptured() {
+		assertNull(redactor.redact("name=Jane", "application/x-www-form-urlencoded"));
+		assertNull(redactor.redact(PATIENT_JSON, null));
+		assertNull(redactor.redact("{\"name\": [", "application/fhir+json"));
+		assertNull(redactor.redact("<Patient>", "application/fhir+xml"));
+		assertNull(redactor.redact("<!DOCTYPE x [<!ENTITY e \"e\">]><x>&e;</x>", "application/xml"));
+	}
+
+	@Test
+	public void maskKeepsLengthAndShape() {
+		assertEquals("Xxxx X'Xxxxx-Xxxxx 00", CaptureRedactor.mask("Jane O'Brien-Smith 42"));
+		assertEquals("", CaptureRedactor.mask(""));
+		assertEquals("+0 (000) 000-0000", CaptureRedactor.mask("+1 (404) 555-0100"));
+	}
+}
@@ -0,0 +1,217 @@
+package edu.gatech.chai.servlet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class CompressionFilterTest {
+
+	private static final String BODY = "{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Doe\"}]}";
+
+	private static CompressionFilter filter(String... initParameters) throws ServletException {
+		MockFilterConfig config = new MockFilterConfig();
+		for (int i = 0; i + 1 < initParameters.length; i += 2) {
+			config.addInitParameter(initParameters[i], initParameters[i + 1]);
+		}
+		CompressionFilter filter = new CompressionFilter();
+		filter.init(config);
+		return filter;
+	}
+
+	private static MockHttpServletRequest post(byte[] body, String contentEncoding) {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/fhir/$validate");
+		request.setContentType("application/fhir+json");
+		request.setContent(body);
+		request.addHeader("Content-Length", body.length);
+		request.addHeader("X-Validation-Priority", "bulk");
+		if (contentEncoding != null) {
+			request.addHeader("Content-Encoding", contentEncoding);
+		}
+		return request;
+	}
+
+	private static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+			gzip.write(content);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] deflate(byte[] content) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DeflaterOutputStream deflate = new DeflaterOutputStream(bytes)) {
+			deflate.write(content);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] gunzip(byte[] content) throws IOException {
+		try (InputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(content))) {
+			return gunzip.readAllBytes();
+		}
+	}
+
+	private static byte[] utf8(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void gzipBodyIsDecodedAndItsHeadersHidden() throws Exception {
+		MockHttpServletRequest request = post(gzip(utf8(BODY)), "gzip");
+		byte[][] read = new byte[1][];
+		filter().doFilter(request, new MockHttpServletResponse(), (req, res) -> {
+			HttpServletRequest httpRequest = (HttpServletRequest) req;
+			assertNull(httpRequest.getHeader("Content-Encoding"));
+			assertNull(httpRequest.getHeader("Content-Length"));
+			assertEquals(-1, httpRequest.getContentLength());
+			assertFalse(Collections.list(httpRequest.getHeaderNames()).contains("Content-Encoding"));
+			assertEquals("bulk", httpRequest.getHeader("X-Validation-Priority"));
+			read[0] = req.getInputStream().readAllBytes();
+		});
+		assertEquals(BODY, new String(read[0], StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void deflateBodyIsDecodedThroughTheReader() throws Exception {
+		MockHttpServletRequest request = post(deflate(utf8(BODY)), "deflate");
+		StringBuilder read = new StringBuilder();
+		filter().doFilter(request, new MockHttpServletResponse(), (req, res) -> {
+			String line;
+			while ((line = req.getReader().readLine()) != null) {
+				read.append(line);
+			}
+		});
+		assertEquals(BODY, read.toString());
+	}
+
+	@Test
+	public void stackedEncodingsAreUndoneInReverse() throws Exception {
+		MockHttpServletRequest request = post(gzip(deflate(utf8(BODY))), "deflate, gzip");
+		byte[][] read = new byte[1][];
+		filter().doFilter(request, new MockHttpServletResponse(), (req, res) -> read[0] = req.getInputStream().readAllBytes());
+		assertEquals(BODY, new String(read[0], StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void plainBodyIsPassedThrough() throws Exception {
+		MockHttpServletRequest request = post(utf8(BODY), "identity");
+		byte[][] read = new byte[1][];
+		filter().doFilter(request, new MockHttpServletResponse(), (req, res) -> {
+			assertEquals(BODY.length(), ((HttpServletRequest) req).getContentLength());
+			read[0] = req.getInputStream().readAllBytes();
+		});
+		assertEquals(BODY, new String(read[0], StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void unsupportedEncodingIsRejected() throws Exception {
+		MockHttpServletRequest request = post(utf8(BODY), "br");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		boolean[] called = new boolean[1];
+		filter().doFilter(request, response, (req, res) -> called[0] = true);
+
+		assertFalse(called[0]);
+		assertEquals(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, response.getStatus());
+		assertEquals("gzip, deflate", response.getHeader("Accept-Encoding"));
+		assertTrue(response.getErrorMessage().contains("br"));
+	}
+
+	@Test
+	public void decodedBodyIsCappedAtMaxSize() throws Exception {
+		//Two MB of zeros compress to a few KB
+		MockHttpServletRequest request = post(gzip(new byte[2 * 1024 * 1024]), "gzip");
+		CompressionFilter filter = filter(CompressionFilter.DECODED_BODY_MAX_MB, "1");
+		IOException e = assertThrows(IOException.class,
+			() -> filter.doFilter(request, new MockHttpServletResponse(), (req, res) -> req.getInputStream().readAllBytes()));
+		assertEquals("Decoded request body is larger than 1 MB", e.getMessage());
+	}
+
+	@Test
+	public void responseIsGzippedWhenAccepted() throws Exception {
+		MockHttpServletRequest request = post(utf8(BODY), null);
+		request.addHeader("Accept-Encoding", "br;q=0.9, gzip");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter().doFilter(request, response, (req, res) -> {
+			//HAPI must not compress a second time
+			assertNull(((HttpServletRequest) req).getHeader("Accept-Encoding"));
+			res.setContentLength(BODY.length());
+			res.getWriter().write(BODY);
+		});
+
+		assertEquals("gzip", response.getHeader("Content-Encoding"));
+		assertNull(response.getHeader("Content-Length"));
+		assertEquals(Arrays.asList("Accept-Encoding"), response.getHeaders("Vary"));
+		assertArrayEquals(utf8(BODY), gunzip(response.getContentAsByteArray()));
+	}
+
+	@Test
+	public void responseIsPlainButVariesWhenGzipIsNotAccepted() throws Exception {
+		MockHttpServletRequest request = post(utf8(BODY), null);
+		request.addHeader("Accept-Encoding", "gzip;q=0");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter().doFilter(request, response, (req, res) -> res.getWriter().write(BODY));
+
+		assertNull(response.getHeader("Content-Encoding"));
+		assertEquals(Arrays.asList("Accept-Encoding"), response.getHeaders("Vary"));
+		assertEquals(BODY, response.getContentAsString());
+	}
+
+	@Test
+	public void responsesAreLeftAloneWhenCompressionIsOff() throws Exception {
+		MockHttpServletRequest request = post(utf8(BODY), null);
+		request.addHeader("Accept-Encoding", "gzip");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter(CompressionFilter.COMPRESS_RESPONSES, "false").doFilter(request, response, (req, res) -> {
+			assertEquals("gzip", ((HttpServletRequest) req).getHeader("Accept-Encoding"));
+			res.getWriter().write(BODY);
+		});
+
+		assertNull(response.getHeader("Content-Encoding"));
+		assertNull(response.getHeader("Vary"));
+		assertEquals(BODY, response.getContentAsString());
+	}
+
+	@Test
+	public void acceptsGzip() {
+		assertTrue(CompressionFilter.acceptsGzip("gzip"));
+		assertTrue(CompressionFilter.acceptsGzip("deflate, GZIP;q=0.5"));
+		assertTrue(CompressionFilter.acceptsGzip("*"));
+		assertTrue(CompressionFilter.acceptsGzip("x-gzip"));
+		assertFalse(CompressionFilter.acceptsGzip(null));
+		assertFalse(CompressionFilter.acceptsGzip("identity, br"));
+		assertFalse(CompressionFilter.acceptsGzip("gzip;q=0"));
+		assertFalse(CompressionFilter.acceptsGzip("gzip;q=0.0, *;q=0"));
+		assertFalse(CompressionFilter.acceptsGzip("gzip;q=high"));
+	}
+
+	@Test
+	public void contentEncodingsSkipIdentity() {
+		assertEquals(Arrays.asList("deflate", "gzip"), CompressionFilter.contentEncodings(" Deflate, identity ,GZIP"));
+		assertTrue(CompressionFilter.contentEncodings(null).isEmpty());
+		assertTrue(CompressionFilter.contentEncodings("identity").isEmpty());
+	}
+}